@@ -1,11 +1,14 @@
 package com.github.fakemongo;
 
+import com.github.fakemongo.impl.Snapshot;
+import com.github.fakemongo.impl.aggregation.AggregationListener;
 import com.mongodb.DB;
 import com.mongodb.FongoDB;
 import com.mongodb.MockMongoClient;
 import com.mongodb.MongoClient;
 import com.mongodb.ServerAddress;
 import com.mongodb.WriteConcern;
+import java.io.File;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -38,6 +41,9 @@ public class Fongo {
   private final ServerAddress serverAddress;
   private final MongoClient mongo;
   private final String name;
+  private volatile AggregationListener aggregationListener;
+
+  private volatile boolean parallelMapReduce;
 
   /**
    * @param name Used only for a nice toString in case you have multiple instances
@@ -115,6 +121,53 @@ public class Fongo {
     return this.mongo;
   }
 
+  /**
+   * Profile all the aggregations : the listener receives the statistics of each stage.
+   *
+   * @param aggregationListener the listener, null to stop profiling.
+   */
+  public void setAggregationListener(AggregationListener aggregationListener) {
+    this.aggregationListener = aggregationListener;
+  }
+
+  public AggregationListener getAggregationListener() {
+    return aggregationListener;
+  }
+
+  /**
+   * Map the documents of the javascript map-reduces by several threads, false by default : the map, reduce and
+   * finalize functions must not rely on the order of the calls or share state between them.
+   *
+   * @param parallelMapReduce true to map the large map-reduces in parallel.
+   */
+  public void setParallelMapReduce(boolean parallelMapReduce) {
+    this.parallelMapReduce = parallelMapReduce;
+  }
+
+  public boolean isParallelMapReduce() {
+    return parallelMapReduce;
+  }
+
+  /**
+   * Write all the databases, with their collections and the definition of their indexes, in a binary file.
+   *
+   * @param file the snapshot, replaced if it exists.
+   */
+  public void saveSnapshot(File file) {
+    new Snapshot(this).save(file);
+  }
+
+  /**
+   * Read a snapshot written by {@link #saveSnapshot(File)} : its collections replace the documents of the collections
+   * with the same name. An invalid file changes nothing, but the restore is not atomic : when a collection can't be
+   * restored, the other collections may already be.
+   *
+   * @param file the snapshot.
+   */
+  public void restoreSnapshot(File file) {
+    new Snapshot(this).restore(file);
+  }
+
   public WriteConcern getWriteConcern() {
     return mongo.getWriteConcern();
   }
@@ -11,4 +11,8 @@ public class FongoException extends RuntimeException {
   public FongoException(String message) {
     super(message);
   }
+
+  public FongoException(String message, Throwable cause) {
+    super(message, cause);
+  }
 }
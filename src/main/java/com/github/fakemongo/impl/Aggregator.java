@@ -1,20 +1,30 @@
 package com.github.fakemongo.impl;
 
+import com.github.fakemongo.impl.aggregation.AggregationContext;
+import com.github.fakemongo.impl.aggregation.AggregationListener;
 import com.github.fakemongo.impl.aggregation.Group;
 import com.github.fakemongo.impl.aggregation.Limit;
+import com.github.fakemongo.impl.aggregation.Lookup;
 import com.github.fakemongo.impl.aggregation.Match;
+import com.github.fakemongo.impl.aggregation.Out;
 import com.github.fakemongo.impl.aggregation.PipelineKeyword;
 import com.github.fakemongo.impl.aggregation.Project;
+import com.github.fakemongo.impl.aggregation.Sample;
 import com.github.fakemongo.impl.aggregation.Skip;
 import com.github.fakemongo.impl.aggregation.Sort;
+import com.github.fakemongo.impl.aggregation.StageProfile;
 import com.github.fakemongo.impl.aggregation.Unwind;
-import com.mongodb.DBCollection;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.FongoDB;
 import com.mongodb.FongoDBCollection;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
-import java.util.UUID;
+import java.util.NoSuchElementException;
+import java.util.Random;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,45 +34,330 @@ import org.slf4j.LoggerFactory;
 public class Aggregator {
   private static final Logger LOG = LoggerFactory.getLogger(Aggregator.class);
 
-  private final FongoDB fongoDB;
   private final FongoDBCollection fongoDBCollection;
   private final List<DBObject> pipeline;
-  private static final List<PipelineKeyword> keywords = Arrays.asList(Match.INSTANCE, Project.INSTANCE, Group.INSTANCE, Sort.INSTANCE, Limit.INSTANCE, Skip.INSTANCE, Unwind.INSTANCE);
+  private final AggregationContext context;
+  private List<StageProfile> profiles;
+  private static final List<PipelineKeyword> keywords = Arrays.asList(Match.INSTANCE, Project.INSTANCE, Group.INSTANCE, Sort.INSTANCE, Limit.INSTANCE, Skip.INSTANCE, Unwind.INSTANCE, Lookup.INSTANCE, Sample.INSTANCE, Out.INSTANCE);
 
   public Aggregator(FongoDB fongoDB, FongoDBCollection coll, List<DBObject> pipeline) {
-    this.fongoDB = fongoDB;
+    this(fongoDB, coll, pipeline, new AggregationContext(fongoDB, false));
+  }
+
+  public Aggregator(FongoDB fongoDB, FongoDBCollection coll, List<DBObject> pipeline, AggregationContext context) {
     this.fongoDBCollection = coll;
     this.pipeline = pipeline;
+    this.context = context;
   }
 
   /**
+   * The documents are pulled from the source collection through the stages, one by one.
+   * Only the blocking stages ($sort, $group) keep all the documents in memory, or in temporary files when they exceed
+   * the memory limit with allowDiskUse.
+   *
    * @return null if error.
    */
   public List<DBObject> computeResult() {
-    DBCollection coll = fongoDB.createCollection(UUID.randomUUID().toString(), null);
+    List<DBObject> result = new ArrayList<DBObject>();
+    try {
+      Iterator<DBObject> documents = resultIterator();
+      while (documents.hasNext()) {
+        result.add(documents.next());
+      }
+    } finally {
+      context.close();
+    }
+    LOG.debug("computeResult() : {}", result);
+    return result;
+  }
+
+  /**
+   * The documents of the last stage, computed while they are read. The context of the aggregation is closed at the end
+   * of the documents or on error ; a caller stopping before must close it.
+   */
+  public Iterator<DBObject> resultIterator() {
+    Iterator<DBObject> documents;
     try {
-      coll.insert(this.fongoDBCollection.find().toArray());
-
-      for (DBObject object : pipeline) {
-        boolean found = false;
-        for (PipelineKeyword keyword : keywords) {
-          if (keyword.canApply(object)) {
-            coll = keyword.apply(coll, object);
-            found = true;
-            break;
+      documents = stageIterator();
+    } catch (RuntimeException e) {
+      context.close();
+      throw e;
+    }
+    return closeAtEnd(documents);
+  }
+
+  private Iterator<DBObject> stageIterator() {
+    List<PipelineKeyword> stages = stages();
+    DBObject source = new BasicDBObject();
+    int start = source(stages, source);
+    LOG.debug("resultIterator() source : {}, {} stages run by the collection", source, start);
+
+    if (!context.isProfile()) {
+      Iterator<DBObject> documents = read(source);
+      for (int i = start; i < stages.size(); i++) {
+        documents = apply(stages, i, documents);
+      }
+      return detach(stages, documents);
+    }
+
+    // Each stage is measured, without its previous stages.
+    final List<StageProfile> profiles = new ArrayList<StageProfile>();
+    StageProfile profile = new StageProfile(new BasicDBObject("$cursor", source), null);
+    profile.start();
+    Iterator<DBObject> documents = read(source);
+    profile.stop();
+    documents = profile.profile(documents);
+    profiles.add(profile);
+    for (int i = start; i < stages.size(); i++) {
+      profile = new StageProfile(pipeline.get(i), profile);
+      profile.start();
+      documents = apply(stages, i, documents);
+      profile.stop();
+      documents = profile.profile(documents);
+      profiles.add(profile);
+    }
+    this.profiles = profiles;
+    return notifyAtEnd(detach(stages, documents), profiles);
+  }
+
+  /**
+   * The documents of some stages share values (like the fields of an unwound document) : they are copied when
+   * returned, to be modified independently.
+   */
+  private static Iterator<DBObject> detach(List<PipelineKeyword> stages, final Iterator<DBObject> documents) {
+    if (!sharesDocuments(stages)) {
+      return documents;
+    }
+    return new Iterator<DBObject>() {
+      @Override
+      public boolean hasNext() {
+        return documents.hasNext();
+      }
+
+      @Override
+      public DBObject next() {
+        return Util.clone(documents.next());
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  /**
+   * The documents of the collection, for the stages run by the collection.
+   */
+  private Iterator<DBObject> read(DBObject source) {
+    if (source.containsField("sample")) {
+      return this.fongoDBCollection.sample((Integer) source.get("sample"), new Random()).iterator();
+    }
+    DBCursor cursor = this.fongoDBCollection.find((DBObject) source.get("query"));
+    if (source.containsField("sort")) {
+      cursor.sort((DBObject) source.get("sort"));
+    }
+    if (source.containsField("limit")) {
+      cursor.limit((Integer) source.get("limit"));
+    }
+    return cursor.iterator();
+  }
+
+  private Iterator<DBObject> apply(List<PipelineKeyword> stages, int index, Iterator<DBObject> documents) {
+    if (stages.get(index) == Sort.INSTANCE) {
+      // $sort + $limit : only keep the top documents.
+      return Sort.INSTANCE.apply(context, documents, pipeline.get(index), limitAfter(stages, index));
+    }
+    return stages.get(index).apply(context, documents, pipeline.get(index));
+  }
+
+  private Iterator<DBObject> closeAtEnd(final Iterator<DBObject> documents) {
+    return new Iterator<DBObject>() {
+      @Override
+      public boolean hasNext() {
+        try {
+          boolean hasNext = documents.hasNext();
+          if (!hasNext) {
+            context.close();
           }
+          return hasNext;
+        } catch (RuntimeException e) {
+          context.close();
+          throw e;
         }
-        if (!found) {
-          fongoDB.notOkErrorResult(16436, "exception: Unrecognized pipeline stage name: '" + object.keySet() + "'").throwOnError();
+      }
+
+      @Override
+      public DBObject next() {
+        try {
+          return documents.next();
+        } catch (RuntimeException e) {
+          context.close();
+          throw e;
         }
-        // Not found : com.mongodb.CommandFailureException: { "serverUsed" : "localhost/127.0.0.1:27017" , "errmsg" : "exception: Unrecognized pipeline stage name: '_id'" , "code" : 16436 , "ok" : 0.0}
       }
 
-      List<DBObject> result = coll.find().toArray();
-      LOG.debug("computeResult() : {}", result);
-      return result;
-    } finally {
-      coll.drop();
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  private Iterator<DBObject> notifyAtEnd(final Iterator<DBObject> documents, final List<StageProfile> profiles) {
+    final AggregationListener listener = context.getListener();
+    if (listener == null) {
+      return documents;
+    }
+    return new Iterator<DBObject>() {
+      private boolean notified;
+
+      @Override
+      public boolean hasNext() {
+        boolean hasNext = documents.hasNext();
+        if (!hasNext && !notified) {
+          notified = true;
+          listener.onAggregation(fongoDBCollection.getFullName(), pipeline, profiles);
+        }
+        return hasNext;
+      }
+
+      @Override
+      public DBObject next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return documents.next();
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  /**
+   * The stages as planned : the documents read from the collection ($cursor), then the other stages.
+   */
+  public List<DBObject> explain() {
+    List<PipelineKeyword> stages = stages();
+    DBObject source = new BasicDBObject();
+    int start = source(stages, source);
+    List<DBObject> explain = new ArrayList<DBObject>();
+    explain.add(new BasicDBObject("$cursor", source));
+    for (int i = start; i < stages.size(); i++) {
+      if (stages.get(i) == Sort.INSTANCE) {
+        DBObject sort = new BasicDBObject("sortKey", pipeline.get(i).get(Sort.INSTANCE.getKeyword()));
+        int limit = limitAfter(stages, i);
+        if (limit > 0) {
+          sort.put("limit", limit);
+        }
+        explain.add(new BasicDBObject(Sort.INSTANCE.getKeyword(), sort));
+      } else {
+        explain.add(pipeline.get(i));
+      }
+    }
+    return explain;
+  }
+
+  /**
+   * @return the profile of each stage, once the documents are read ; null if the aggregation is not profiled.
+   */
+  public List<StageProfile> getProfiles() {
+    return profiles;
+  }
+
+  private static boolean sharesDocuments(List<PipelineKeyword> stages) {
+    for (PipelineKeyword stage : stages) {
+      if (stage.sharesDocuments()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private List<PipelineKeyword> stages() {
+    List<PipelineKeyword> stages = new ArrayList<PipelineKeyword>(pipeline.size());
+    for (DBObject object : pipeline) {
+      stages.add(keywordFor(object));
+    }
+    int out = stages.indexOf(Out.INSTANCE);
+    if (out >= 0 && out != stages.size() - 1) {
+      context.errorResult(16991, "exception: $out can only be the final stage in the pipeline").throwOnError();
+    }
+    return stages;
+  }
+
+  /**
+   * Leading $match and $sort are run by the collection, with its indexes ; a first $sample reads random documents from
+   * the "_id" index.
+   *
+   * @param source filled with the query, the sort and the limit of the collection (or the size of the sample).
+   * @return the index of the first stage not run by the collection.
+   */
+  private int source(List<PipelineKeyword> stages, DBObject source) {
+    if (!stages.isEmpty() && stages.get(0) == Sample.INSTANCE) {
+      source.put("sample", Sample.INSTANCE.size(context, pipeline.get(0)));
+      return 1;
+    }
+    int start = 0;
+    List<DBObject> matches = new ArrayList<DBObject>();
+    while (start < stages.size() && stages.get(start) == Match.INSTANCE) {
+      matches.add((DBObject) pipeline.get(start++).get(Match.INSTANCE.getKeyword()));
+    }
+    source.put("query", query(matches));
+    if (start < stages.size() && stages.get(start) == Sort.INSTANCE) {
+      // Checked like a $sort run by the pipeline.
+      Sort.INSTANCE.comparator(context, pipeline.get(start));
+      int limit = limitAfter(stages, start);
+      source.put("sort", pipeline.get(start++).get(Sort.INSTANCE.getKeyword()));
+      if (limit > 0) {
+        source.put("limit", limit);
+      }
+    }
+    return start;
+  }
+
+  /**
+   * Number of documents read after a $sort, when followed by a $limit (with or without a $skip before).
+   *
+   * @return $skip + $limit, 0 if all the documents are read.
+   */
+  private int limitAfter(List<PipelineKeyword> stages, int sortIndex) {
+    long skip = 0;
+    int index = sortIndex + 1;
+    if (index < stages.size() && stages.get(index) == Skip.INSTANCE) {
+      skip = Math.max(0, ((Number) pipeline.get(index++).get(Skip.INSTANCE.getKeyword())).intValue());
+    }
+    if (index < stages.size() && stages.get(index) == Limit.INSTANCE) {
+      long limit = Math.abs(((Number) pipeline.get(index).get(Limit.INSTANCE.getKeyword())).longValue());
+      if (limit > 0 && skip + limit <= Integer.MAX_VALUE) {
+        return (int) (skip + limit);
+      }
+    }
+    return 0;
+  }
+
+  private static DBObject query(List<DBObject> matches) {
+    switch (matches.size()) {
+      case 0:
+        return new BasicDBObject();
+      case 1:
+        return matches.get(0);
+      default:
+        return new BasicDBObject("$and", matches);
+    }
+  }
+
+  private PipelineKeyword keywordFor(DBObject object) {
+    for (PipelineKeyword keyword : keywords) {
+      if (keyword.canApply(object)) {
+        return keyword;
+      }
     }
+    // Not found : com.mongodb.CommandFailureException: { "serverUsed" : "localhost/127.0.0.1:27017" , "errmsg" : "exception: Unrecognized pipeline stage name: '_id'" , "code" : 16436 , "ok" : 0.0}
+    context.errorResult(16436, "exception: Unrecognized pipeline stage name: '" + object.keySet() + "'").throwOnError();
+    return null;
   }
 }
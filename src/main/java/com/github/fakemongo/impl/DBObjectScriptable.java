@@ -0,0 +1,95 @@
+package com.github.fakemongo.impl;
+
+import com.mongodb.DBObject;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import org.bson.types.ObjectId;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+/**
+ * A javascript view of a {@link DBObject}, without serialization into JSON.
+ * <p/>
+ * Fields are converted lazily when the script read them. Writes are kept in the view and never touch the document.
+ */
+final class DBObjectScriptable extends ScriptableObject {
+  private static final long serialVersionUID = 1L;
+
+  private final transient DBObject dbObject;
+
+  DBObjectScriptable(Scriptable scope, DBObject dbObject) {
+    super(scope, ScriptableObject.getObjectPrototype(scope));
+    this.dbObject = dbObject;
+  }
+
+  @Override
+  public String getClassName() {
+    return "Object";
+  }
+
+  @Override
+  public boolean has(String name, Scriptable start) {
+    return dbObject.containsField(name) || super.has(name, start);
+  }
+
+  @Override
+  public Object get(String name, Scriptable start) {
+    if (!super.has(name, start) && dbObject.containsField(name)) {
+      return toJavascript(getParentScope(), dbObject.get(name));
+    }
+    return super.get(name, start);
+  }
+
+  @Override
+  public Object[] getIds() {
+    Object[] written = super.getIds();
+    if (written.length == 0) {
+      return dbObject.keySet().toArray();
+    }
+    Set<Object> ids = new LinkedHashSet<Object>(dbObject.keySet());
+    ids.addAll(Arrays.asList(written));
+    return ids.toArray();
+  }
+
+  DBObject getDBObject() {
+    return dbObject;
+  }
+
+  /**
+   * @return the names of the fields written by the scripts in the view.
+   */
+  Object[] getWrittenIds() {
+    return super.getIds();
+  }
+
+  /**
+   * Convert a value of a document into a javascript value.
+   */
+  static Object toJavascript(Scriptable scope, Object value) {
+    if (value == null || value instanceof String || value instanceof Boolean || value instanceof Number) {
+      return value;
+    }
+    if (value instanceof List) {
+      List<?> list = (List<?>) value;
+      Object[] elements = new Object[list.size()];
+      for (int i = 0; i < elements.length; i++) {
+        elements[i] = toJavascript(scope, list.get(i));
+      }
+      return Context.getCurrentContext().newArray(scope, elements);
+    }
+    if (value instanceof DBObject) {
+      return new DBObjectScriptable(scope, (DBObject) value);
+    }
+    if (value instanceof Date) {
+      return Context.getCurrentContext().newObject(scope, "Date", new Object[]{((Date) value).getTime()});
+    }
+    if (value instanceof ObjectId || value instanceof Character) {
+      return value.toString();
+    }
+    return Context.javaToJS(value, scope);
+  }
+}
@@ -9,7 +9,6 @@ import com.mongodb.DBRefBase;
 import com.mongodb.FongoDBCollection;
 import com.mongodb.LazyDBObject;
 import com.mongodb.QueryOperators;
-import com.mongodb.util.JSON;
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Geometry;
 import java.math.BigDecimal;
@@ -24,6 +23,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -34,6 +34,8 @@ import org.bson.types.MaxKey;
 import org.bson.types.MinKey;
 import org.bson.types.ObjectId;
 import org.mozilla.javascript.Context;
+import org.mozilla.javascript.RhinoException;
+import org.mozilla.javascript.Script;
 import org.mozilla.javascript.Scriptable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -43,6 +45,11 @@ import org.slf4j.LoggerFactory;
 public class ExpressionParser {
   private static final Logger LOG = LoggerFactory.getLogger(ExpressionParser.class);
 
+  /**
+   * Max number of query shapes kept compiled by a parser.
+   */
+  static final int FILTER_PLAN_CACHE_SIZE = 1000;
+
   public final static String LT = "$lt";
   public final static String EQ = "$eq";
   public final static String LTE = "$lte";
@@ -84,6 +91,35 @@ public class ExpressionParser {
 
   private static final Map<Class, Integer> CLASS_TO_WEIGHT;
 
+  /**
+   * Results of {@link #getEmbeddedValue(List, DBObject)} when there is not exactly one value.
+   */
+  static final Object NO_VALUE = new Object();
+  static final Object MULTIPLE_VALUES = new Object();
+
+  /**
+   * Estimated cost of evaluating a filter on one document, relative to a simple comparison.
+   * Used to evaluate the cheapest filters of a conjunction first.
+   */
+  static final int DEFAULT_FILTER_COST = 1;
+  static final int PATTERN_FILTER_COST = 5;
+  static final int WHERE_FILTER_COST = 100;
+  private static final Map<String, Integer> FILTER_COSTS;
+
+  static {
+    Map<String, Integer> map = new HashMap<String, Integer>();
+    map.put(IN, 2);
+    map.put(NIN, 2);
+    map.put(ALL, 3);
+    map.put(REGEX, PATTERN_FILTER_COST);
+    map.put(ELEM_MATCH, 10);
+    map.put(NEAR, 20);
+    map.put(NEAR_SPHERE, 20);
+    map.put(GEO_WITHIN, 20);
+
+    FILTER_COSTS = Collections.unmodifiableMap(map);
+  }
+
   static {
     // Sort order per http://docs.mongodb.org/manual/reference/operator/aggregation/sort/
     Map<Class, Integer> map = new HashMap<Class, Integer>();
@@ -111,6 +147,14 @@ public class ExpressionParser {
     CLASS_TO_WEIGHT = Collections.unmodifiableMap(map);
   }
 
+  // Compiled filters by query shape, in LRU order.
+  private final Map<String, FilterPlan> filterPlans = Collections.synchronizedMap(new LinkedHashMap<String, FilterPlan>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, FilterPlan> eldest) {
+      return size() > FILTER_PLAN_CACHE_SIZE;
+    }
+  });
+
   public ObjectComparator objectComparator(int sortDirection) {
     if (!(sortDirection == -1 || sortDirection == 1)) {
       throw new FongoException("The $sort element value must be either 1 or -1. Actual: " + sortDirection);
@@ -155,7 +199,7 @@ public class ExpressionParser {
         DBObject dbo1 = (DBObject) o1;
         DBObject dbo2 = (DBObject) o2;
         for (String sortKey : orderByKeySet) {
-          final List<String> path = Util.split(sortKey);
+          final List<String> path = Util.path(sortKey);
           int sortDirection = (Integer) orderBy.get(sortKey);
 
           List<Object> o1list = getEmbeddedValues(path, dbo1);
@@ -170,7 +214,7 @@ public class ExpressionParser {
       } else if (isDBObjectButNotDBList(o1) || isDBObjectButNotDBList(o2)) {
         DBObject dbo = (DBObject) (o1 instanceof DBObject ? o1 : o2);
         for (String sortKey : orderByKeySet) {
-          final List<String> path = Util.split(sortKey);
+          final List<String> path = Util.path(sortKey);
           int sortDirection = (Integer) orderBy.get(sortKey);
 
           List<Object> foundValues = getEmbeddedValues(path, dbo);
@@ -191,15 +235,16 @@ public class ExpressionParser {
   }
 
   public Filter buildFilter(DBObject ref) {
-    AndFilter andFilter = new AndFilter();
-    if (ref != null) {
-      for (String key : ref.keySet()) {
-        Object expression = ref.get(key);
-
-        andFilter.addFilter(buildExpressionFilter(key, expression));
-      }
+    if (ref == null) {
+      return new AndFilter();
     }
-    return andFilter;
+    String shape = queryShape(ref);
+    FilterPlan plan = filterPlans.get(shape);
+    if (plan == null) {
+      plan = compileQuery(ref);
+      filterPlans.put(shape, plan);
+    }
+    return plan.bind(ref);
   }
 
   /**
@@ -223,6 +268,11 @@ public class ExpressionParser {
     public boolean matchesCommand(DBObject refExpression);
 
     public Filter createFilter(List<String> path, DBObject refExpression);
+
+    /**
+     * @return the estimated cost of a filter created by this factory (see {@link #FILTER_COSTS}).
+     */
+    public int cost();
   }
 
   abstract class BasicCommandFilterFactory implements FilterFactory {
@@ -237,6 +287,12 @@ public class ExpressionParser {
     public boolean matchesCommand(DBObject refExpression) {
       return refExpression.containsField(command);
     }
+
+    @Override
+    public int cost() {
+      Integer cost = FILTER_COSTS.get(command);
+      return cost == null ? DEFAULT_FILTER_COST : cost;
+    }
   }
 
   abstract class BasicFilterFactory extends BasicCommandFilterFactory {
@@ -251,20 +307,11 @@ public class ExpressionParser {
 
     @Override
     public Filter createFilter(final List<String> path, final DBObject refExpression) {
-      return new Filter() {
+      final Object queryValue = refExpression.get(command);
+      return new EmbeddedValuesFilter(path) {
         @Override
-        public boolean apply(DBObject o) {
-          List<Object> storedList = getEmbeddedValues(path, o);
-          if (storedList.isEmpty()) {
-            return false;
-          } else {
-            for (Object storedValue : storedList) {
-              if (compare(refExpression.get(command), storedValue)) {
-                return true;
-              }
-            }
-            return false;
-          }
+        boolean applyValue(Object storedValue) {
+          return compare(queryValue, storedValue);
         }
       };
     }
@@ -273,28 +320,58 @@ public class ExpressionParser {
 
   }
 
-  private final class WhereFilter implements Filter {
+  /**
+   * The $where expression is compiled once by the JVM (see {@link ScriptCache}), and run for each document in the scope
+   * of the filter. The document is given through a {@link DBObjectScriptable}, without JSON serialization.
+   */
+  private static final class WhereFilter implements Filter {
     private final String expression;
+    // Only one of them is set : functionScript if the expression is a function, script otherwise.
+    private final Script functionScript;
+    private final Script script;
 
     public WhereFilter(String expression) {
       this.expression = expression;
+      Script compiledFunction = null;
+      Script compiledScript = null;
+      Context cx = ScriptCache.enter();
+      try {
+        if (expression.trim().startsWith("function")) {
+          compiledFunction = ScriptCache.functionScript(cx, expression, "<$where>");
+        } else {
+          compiledScript = ScriptCache.script(cx, expression.replace("this.", "obj.") + ";\n", "<$where>");
+        }
+      } catch (RhinoException e) {
+        LOG.error("Exception compiling javascript expression {}", expression, e);
+      } finally {
+        Context.exit();
+      }
+      this.functionScript = compiledFunction;
+      this.script = compiledScript;
     }
 
     @Override
     public boolean apply(DBObject o) {
-      Context cx = Context.enter();
-
+      if (functionScript == null && script == null) {
+        return false;
+      }
+      Context cx = ScriptCache.enter();
       try {
-        Scriptable scope = cx.initStandardObjects();
-        String json = JSON.serialize(o);
-        String expr = "obj=" + json + ";\n" + expression.replace("this.", "obj.") + ";\n";
-        try {
-          return (Boolean) cx.evaluateString(scope, expr, "<$where>", 0, null);
-        } catch (Exception e) {
-          LOG.error("Exception evaluating javascript expression {}", expression, e);
+        // Variables of the expression must stay local to this document.
+        Scriptable scope = ScriptCache.newScope(cx);
+        DBObjectScriptable obj = new DBObjectScriptable(scope, o);
+        Object result;
+        if (functionScript != null) {
+          result = ScriptCache.function(cx, scope, functionScript, "<$where>").call(cx, scope, obj, new Object[0]);
+        } else {
+          scope.put("obj", scope, obj);
+          result = script.exec(cx, scope);
         }
+        return (Boolean) result;
+      } catch (Exception e) {
+        LOG.error("Exception evaluating javascript expression {}", expression, e);
       } finally {
-        cx.exit();
+        Context.exit();
       }
 
       return false;
@@ -314,53 +391,86 @@ public class ExpressionParser {
     @Override
     public Filter createFilter(final List<String> path, final DBObject refExpression) {
       Collection queryList = typecast(command + " clause", refExpression.get(command), Collection.class);
-      final Set querySet = new HashSet(queryList);
-      return new Filter() {
+      final InValues querySet = new InValues(queryList);
+      final Object queryValue = refExpression.get(command);
+      return new EmbeddedValuesFilter(path) {
         @Override
-        public boolean apply(DBObject o) {
-          List<Object> storedList = getEmbeddedValues(path, o);
-          if (storedList.isEmpty()) {
-            return !direction;
-          } else {
-            for (Object storedValue : storedList) {
-              if (compare(refExpression.get(command), storedValue, querySet) == direction) {
-                return direction;
-              }
+        boolean applyMissing() {
+          return !direction;
+        }
+
+        @Override
+        boolean applyValue(Object storedValue) {
+          return compare(queryValue, storedValue, querySet) == direction ? direction : !direction;
+        }
+
+        @Override
+        boolean applyValues(List<Object> storedValues) {
+          for (Object storedValue : storedValues) {
+            if (compare(queryValue, storedValue, querySet) == direction) {
+              return direction;
             }
-            return !direction;
           }
+          return !direction;
         }
       };
     }
 
-    boolean compare(Object queryValueIgnored, Object storedValue, Set querySet) {
+    boolean compare(Object queryValueIgnored, Object storedValue, InValues querySet) {
       if (storedValue instanceof List) {
         for (Object valueItem : (List) storedValue) {
-          if (containsWithRegex(querySet, valueItem)) {
+          if (querySet.contains(valueItem)) {
             return direction;
           }
         }
-        if (containsWithRegex(querySet, storedValue)) {
+        if (querySet.contains(storedValue)) {
           return direction;
         }
         return !direction;
       } else {
-        return !(direction ^ containsWithRegex(querySet, storedValue));
+        return !(direction ^ querySet.contains(storedValue));
+      }
+    }
+  }
+
+  /**
+   * Values of a $in/$nin clause, looked up in a hash set.
+   * Numbers are canonicalized so 1, 1L and 1.0 are the same value ; regex and arrays are checked one by one.
+   */
+  static final class InValues {
+    private final Set<Object> hashed = new HashSet<Object>();
+    private final List<Pattern> patterns = new ArrayList<Pattern>();
+    private final List<Object> others = new ArrayList<Object>();
+
+    InValues(Collection<?> values) {
+      for (Object value : values) {
+        if (value instanceof Pattern) {
+          patterns.add((Pattern) value);
+        } else if (value != null && value.getClass().isArray()) {
+          // No usable hashCode/equals.
+          others.add(value);
+        } else {
+          hashed.add(Util.canonicalNumber(value));
+        }
       }
     }
 
-    boolean containsWithRegex(Set querySet, Object storedValue) {
-      if (querySet.contains(storedValue)) {
+    boolean contains(Object storedValue) {
+      if (hashed.contains(Util.canonicalNumber(storedValue))) {
         return true;
       }
-      if (storedValue instanceof CharSequence) {
+      if (!patterns.isEmpty() && storedValue instanceof CharSequence) {
         CharSequence s = (CharSequence) storedValue;
-        for (Object o : querySet) {
-          if (o instanceof Pattern) {
-            Pattern p = (Pattern) o;
-            if (p.matcher(s).find()) {
-              return true;
-            }
+        for (Pattern pattern : patterns) {
+          if (pattern.matcher(s).find()) {
+            return true;
+          }
+        }
+      }
+      if (!others.isEmpty() && storedValue != null && storedValue.getClass().isArray()) {
+        for (Object other : others) {
+          if (Arrays.deepEquals(new Object[]{other}, new Object[]{storedValue})) {
+            return true;
           }
         }
       }
@@ -487,28 +597,33 @@ public class ExpressionParser {
       new BasicCommandFilterFactory(NE) {
         @Override
         public Filter createFilter(final List<String> path, final DBObject refExpression) {
-          return new Filter() {
+          final Object queryValue = refExpression.get(command);
+          return new EmbeddedValuesFilter(path) {
             @Override
-            public boolean apply(DBObject o) {
-              Object queryValue = refExpression.get(command);
-              List<Object> storedList = getEmbeddedValues(path, o);
-              if (storedList.isEmpty()) {
-                return queryValue != null;
-              } else {
-                for (Object storedValue : storedList) {
-                  if (storedValue instanceof List) {
-                    for (Object aValue : (List) storedValue) {
-                      if (isEqual(queryValue, aValue)) {
-                        return false;
-                      }
-                    }
-                  }
-                  if (isEqual(queryValue, storedValue)) {
+            boolean applyMissing() {
+              return queryValue != null;
+            }
+
+            @Override
+            boolean applyValue(Object storedValue) {
+              if (storedValue instanceof List) {
+                for (Object aValue : (List) storedValue) {
+                  if (isEqual(queryValue, aValue)) {
                     return false;
                   }
                 }
-                return true;
               }
+              return !isEqual(queryValue, storedValue);
+            }
+
+            @Override
+            boolean applyValues(List<Object> storedValues) {
+              for (Object storedValue : storedValues) {
+                if (!applyValue(storedValue)) {
+                  return false;
+                }
+              }
+              return true;
             }
 
             private boolean isEqual(Object obj1, Object obj2) {
@@ -583,11 +698,21 @@ public class ExpressionParser {
       new BasicCommandFilterFactory(EXISTS) {
         @Override
         public Filter createFilter(final List<String> path, final DBObject refExpression) {
-          return new Filter() {
+          final boolean exists = typecast(command + " clause", refExpression.get(command), Boolean.class);
+          return new EmbeddedValuesFilter(path) {
             @Override
-            public boolean apply(DBObject o) {
-              List<Object> storedOption = getEmbeddedValues(path, o);
-              return typecast(command + " clause", refExpression.get(command), Boolean.class) == !storedOption.isEmpty();
+            boolean applyMissing() {
+              return !exists;
+            }
+
+            @Override
+            boolean applyValue(Object storedValue) {
+              return exists;
+            }
+
+            @Override
+            boolean applyValues(List<Object> storedValues) {
+              return exists;
             }
           };
         }
@@ -711,7 +836,7 @@ public class ExpressionParser {
   }
 
   public List<Object> getEmbeddedValues(String key, DBObject dbo) {
-    return getEmbeddedValues(Util.split(key), 0, dbo);
+    return getEmbeddedValues(Util.path(key), 0, dbo);
   }
 
   public List<Object> extractDBRefValue(DBRefBase ref, String refKey) {
@@ -724,6 +849,31 @@ public class ExpressionParser {
     } else return Collections.emptyList();
   }
 
+  /**
+   * Resolve a path which goes only through embedded documents, without allocating anything.
+   *
+   * @return the value, {@link #NO_VALUE} if the path is absent, or {@link #MULTIPLE_VALUES} if the path goes
+   * through an array or a DBRef : use {@link #getEmbeddedValues(List, DBObject)} in this case.
+   */
+  Object getEmbeddedValue(List<String> path, DBObject dbo) {
+    final int last = path.size() - 1;
+    for (int i = 0; i < last; i++) {
+      Object value = dbo.get(path.get(i));
+      if (value instanceof List || value instanceof DBRefBase) {
+        return MULTIPLE_VALUES;
+      }
+      if (!(value instanceof DBObject)) {
+        return NO_VALUE;
+      }
+      dbo = (DBObject) value;
+    }
+    String subKey = path.get(last);
+    if (dbo.containsField(subKey)) {
+      return dbo.get(subKey);
+    }
+    return NO_VALUE;
+  }
+
   public List<Object> getEmbeddedValues(List<String> path, int startIndex, DBObject dbo) {
     String subKey = path.get(startIndex);
     if (path.size() > 1 && LOG.isDebugEnabled()) {
@@ -766,86 +916,263 @@ public class ExpressionParser {
 
 
   private Filter buildExpressionFilter(final String key, final Object expression) {
-    return buildExpressionFilter(Util.split(key), expression);
+    return buildExpressionFilter(Util.path(key), expression);
   }
 
-
   private Filter buildExpressionFilter(final List<String> path, Object expression) {
-    if (OR.equals(path.get(0))) {
+    return compileExpression(path, expression).bind(expression);
+  }
+
+  /**
+   * Compute the shape of a query : field names and operators are kept, values are replaced by a slot.
+   * Two queries with the same shape can share the same {@link FilterPlan}.
+   */
+  String queryShape(DBObject ref) {
+    StringBuilder sb = new StringBuilder(64);
+    appendQueryShape(sb, ref);
+    return sb.toString();
+  }
+
+  private void appendQueryShape(StringBuilder sb, DBObject ref) {
+    sb.append('{');
+    for (String key : ref.keySet()) {
+      // Length prefix : a key can contains any character.
+      sb.append(key.length()).append(':').append(key);
+      Object expression = ref.get(key);
+      if ((OR.equals(key) || AND.equals(key)) && expression instanceof Collection) {
+        sb.append('[');
+        for (Object query : (Collection) expression) {
+          if (query instanceof DBObject) {
+            appendQueryShape(sb, (DBObject) query);
+          } else {
+            sb.append('?');
+          }
+        }
+        sb.append(']');
+      } else {
+        appendExpressionShape(sb, expression);
+      }
+    }
+    sb.append('}');
+  }
+
+  private void appendExpressionShape(StringBuilder sb, Object expression) {
+    if (expression instanceof List) {
+      sb.append('?');
+    } else if (expression instanceof DBObject) {
+      appendQueryShape(sb, (DBObject) expression);
+    } else if (expression instanceof Map) {
+      appendQueryShape(sb, new BasicDBObject((Map) expression));
+    } else if (expression instanceof Pattern) {
+      sb.append('/');
+    } else {
+      sb.append('?');
+    }
+  }
+
+  private FilterPlan compileQuery(DBObject ref) {
+    List<String> keys = new ArrayList<String>(ref.keySet());
+    List<FilterPlan> plans = new ArrayList<FilterPlan>(keys.size());
+    for (String key : keys) {
+      plans.add(compileExpression(Util.path(key), ref.get(key)));
+    }
+    return new QueryFilterPlan(keys, plans);
+  }
+
+  private static int sumCosts(List<FilterPlan> plans) {
+    int cost = 0;
+    for (FilterPlan plan : plans) {
+      cost += plan.cost;
+    }
+    return Math.max(cost, DEFAULT_FILTER_COST);
+  }
+
+  private FilterPlan compileExpression(final List<String> path, Object expression) {
+    if (OR.equals(path.get(0)) || AND.equals(path.get(0))) {
       @SuppressWarnings(
           "unchecked") Collection<DBObject> queryList = typecast(path + " operator", expression, Collection.class);
-      OrFilter orFilter = new OrFilter();
-      for (DBObject query : queryList) {
-        orFilter.addFilter(buildFilter(query));
-      }
-      return orFilter;
-    } else if (AND.equals(path.get(0))) {
-      Collection<DBObject> queryList = typecast(path + " operator", expression, Collection.class);
-      AndFilter andFilter = new AndFilter();
+      List<FilterPlan> plans = new ArrayList<FilterPlan>(queryList.size());
       for (DBObject query : queryList) {
-        andFilter.addFilter(buildFilter(query));
+        plans.add(compileQuery(query));
       }
-      return andFilter;
+      return new ConjunctionFilterPlan(OR.equals(path.get(0)), plans);
     } else if (WHERE.equals(path.get(0))) {
-      return new WhereFilter((String) expression);
+      return new FilterPlan(WHERE_FILTER_COST) {
+        @Override
+        Filter bind(Object expression) {
+          return new WhereFilter((String) expression);
+        }
+      };
     } else if (expression instanceof DBObject || expression instanceof Map) {
-      DBObject ref = expression instanceof DBObject ? (DBObject) expression : new BasicDBObject((Map) expression);
+      DBObject ref = asDBObject(expression);
 
       if (ref.containsField(NOT)) {
-        return new NotFilter(buildExpressionFilter(path, ref.get(NOT)));
+        final FilterPlan notPlan = compileExpression(path, ref.get(NOT));
+        return new FilterPlan(notPlan.cost) {
+          @Override
+          Filter bind(Object expression) {
+            return new NotFilter(notPlan.bind(asDBObject(expression).get(NOT)));
+          }
+        };
       } else {
-
-        AndFilter andFilter = new AndFilter();
-        int matchCount = 0;
+        final List<FilterFactory> factories = new ArrayList<FilterFactory>(2);
         for (FilterFactory filterFactory : filterFactories) {
           if (filterFactory.matchesCommand(ref)) {
-            matchCount++;
-            andFilter.addFilter(filterFactory.createFilter(path, ref));
+            factories.add(filterFactory);
           }
         }
-        if (matchCount == 0) {
-          return simpleFilter(path, expression);
+        if (factories.isEmpty()) {
+          return new SimpleFilterPlan(path);
         }
-        if (matchCount > 2) {
+        if (factories.size() > 2) {
           throw new FongoException("Invalid expression for key " + path + ": " + expression);
         }
-        return andFilter;
+        int cost = 0;
+        for (FilterFactory filterFactory : factories) {
+          cost += filterFactory.cost() + path.size() - 1;
+        }
+        return new FilterPlan(cost) {
+          @Override
+          Filter bind(Object expression) {
+            DBObject ref = asDBObject(expression);
+            AndFilter andFilter = new AndFilter();
+            for (FilterFactory filterFactory : factories) {
+              andFilter.addFilter(filterFactory.createFilter(path, ref), filterFactory.cost());
+            }
+            return andFilter;
+          }
+        };
       }
     } else if (expression instanceof Pattern) {
-      return createPatternFilter(path, (Pattern) expression);
+      return new FilterPlan(PATTERN_FILTER_COST + path.size() - 1) {
+        @Override
+        Filter bind(Object expression) {
+          return createPatternFilter(path, (Pattern) expression);
+        }
+      };
     } else {
+      return new SimpleFilterPlan(path);
+    }
+  }
+
+  private static DBObject asDBObject(Object expression) {
+    return expression instanceof DBObject ? (DBObject) expression : new BasicDBObject((Map) expression);
+  }
+
+  /**
+   * A filter compiled once for a query shape : paths are already split and operators already resolved.
+   * The values are read from the query at {@link #bind(Object)} time.
+   */
+  abstract static class FilterPlan {
+    // Estimated cost of the bound filter.
+    final int cost;
+
+    FilterPlan(int cost) {
+      this.cost = cost;
+    }
+
+    abstract Filter bind(Object expression);
+  }
+
+  private static final class QueryFilterPlan extends FilterPlan {
+    private final List<String> keys;
+    private final List<FilterPlan> plans;
+
+    QueryFilterPlan(List<String> keys, List<FilterPlan> plans) {
+      super(sumCosts(plans));
+      this.keys = keys;
+      this.plans = plans;
+    }
+
+    @Override
+    Filter bind(Object expression) {
+      DBObject ref = (DBObject) expression;
+      AndFilter andFilter = new AndFilter();
+      for (int i = 0; i < keys.size(); i++) {
+        andFilter.addFilter(plans.get(i).bind(ref.get(keys.get(i))), plans.get(i).cost);
+      }
+      return andFilter;
+    }
+  }
+
+  private static final class ConjunctionFilterPlan extends FilterPlan {
+    private final boolean or;
+    private final List<FilterPlan> plans;
+
+    ConjunctionFilterPlan(boolean or, List<FilterPlan> plans) {
+      super(sumCosts(plans));
+      this.or = or;
+      this.plans = plans;
+    }
+
+    @Override
+    Filter bind(Object expression) {
+      ConjunctionFilter conjunctionFilter = or ? new OrFilter() : new AndFilter();
+      int i = 0;
+      for (Object query : (Collection) expression) {
+        FilterPlan plan = plans.get(i++);
+        conjunctionFilter.addFilter(plan.bind(query), plan.cost);
+      }
+      return conjunctionFilter;
+    }
+  }
+
+  private final class SimpleFilterPlan extends FilterPlan {
+    private final List<String> path;
+
+    SimpleFilterPlan(List<String> path) {
+      super(DEFAULT_FILTER_COST + path.size() - 1);
+      this.path = path;
+    }
+
+    @Override
+    Filter bind(Object expression) {
       return simpleFilter(path, expression);
     }
   }
 
   public Filter simpleFilter(final List<String> path, final Object expression) {
-    return new Filter() {
+    return new EmbeddedValuesFilter(path) {
       @Override
-      public boolean apply(DBObject o) {
-        List<Object> storedOption = getEmbeddedValues(path, o);
-        if (storedOption.isEmpty()) {
-          return (expression == null);
-        } else {
-          for (Object storedValue : storedOption) {
-            if (storedValue instanceof List) {
-              if (expression instanceof Collection) {
-                return storedValue.equals(expression) || contains((List) storedValue, (Collection) expression);
-              }
-              if (contains((List) storedValue, expression)) {
-                return true;
-              }
-            } else {
-              if (expression == null) {
-                return (storedValue == null);
-              }
-              if (compareObjects(expression, storedValue) == 0L) {
-                return true;
-              }
-            }
+      boolean applyMissing() {
+        return (expression == null);
+      }
+
+      @Override
+      boolean applyValue(Object storedValue) {
+        Boolean match = match(storedValue);
+        return match != null && match;
+      }
+
+      @Override
+      boolean applyValues(List<Object> storedValues) {
+        for (Object storedValue : storedValues) {
+          Boolean match = match(storedValue);
+          if (match != null) {
+            return match;
           }
-          return false;
         }
+        return false;
+      }
 
+      // null if this value doesn't decide, the next ones must be checked.
+      private Boolean match(Object storedValue) {
+        if (storedValue instanceof List) {
+          if (expression instanceof Collection) {
+            return storedValue.equals(expression) || contains((List) storedValue, (Collection) expression);
+          }
+          if (contains((List) storedValue, expression)) {
+            return Boolean.TRUE;
+          }
+        } else {
+          if (expression == null) {
+            return (storedValue == null);
+          }
+          if (compareObjects(expression, storedValue) == 0L) {
+            return Boolean.TRUE;
+          }
+        }
+        return null;
       }
     };
   }
@@ -1046,51 +1373,30 @@ public class ExpressionParser {
   }
 
   public Filter createPatternFilter(final List<String> path, final Pattern pattern) {
-    return new Filter() {
+    return new EmbeddedValuesFilter(path) {
       @Override
-      public boolean apply(DBObject o) {
-        List<Object> storedOption = getEmbeddedValues(path, o);
-        if (storedOption.isEmpty()) {
-          return false;
-        } else {
-          for (Object storedValue : storedOption) {
-            if (storedValue != null) {
-              if (storedValue instanceof List) {
-                if (listContainsPattern((List) storedValue, pattern)) {
-                  return true;
-                }
-              } else if (objectMatchesPattern(storedValue, pattern)) {
-                return true;
-              }
-            }
-          }
-          return false;
+      boolean applyValue(Object storedValue) {
+        if (storedValue instanceof List) {
+          return listContainsPattern((List) storedValue, pattern);
         }
+        return storedValue != null && objectMatchesPattern(storedValue, pattern);
       }
     };
   }
 
   public Filter createTypeFilter(final List<String> path, final int type) {
-    return new Filter() {
+    return new EmbeddedValuesFilter(path) {
       @Override
-      public boolean apply(DBObject o) {
-        List<Object> storedOption = getEmbeddedValues(path, o);
-        if (storedOption.isEmpty()) {
-          return false;
-        } else {
-          for (Object storedValue : storedOption) {
-            if (storedValue instanceof Collection) {
-              for (Object object : (Collection) storedValue) {
-                if (objectMatchesType(object, type)) {
-                  return true;
-                }
-              }
-            } else if (objectMatchesType(storedValue, type)) {
+      boolean applyValue(Object storedValue) {
+        if (storedValue instanceof Collection) {
+          for (Object object : (Collection) storedValue) {
+            if (objectMatchesType(object, type)) {
               return true;
             }
           }
           return false;
         }
+        return objectMatchesType(storedValue, type);
       }
     };
   }
@@ -1122,6 +1428,52 @@ public class ExpressionParser {
   }
 
 
+  /**
+   * A filter on the values stored at a path.
+   * When the path resolves to one value (no array on the way), the value is checked without building a list.
+   */
+  abstract class EmbeddedValuesFilter implements Filter {
+    final List<String> path;
+
+    EmbeddedValuesFilter(List<String> path) {
+      this.path = path;
+    }
+
+    @Override
+    public final boolean apply(DBObject o) {
+      Object storedValue = getEmbeddedValue(path, o);
+      if (storedValue == NO_VALUE) {
+        return applyMissing();
+      }
+      if (storedValue != MULTIPLE_VALUES) {
+        return applyValue(storedValue);
+      }
+      List<Object> storedValues = getEmbeddedValues(path, o);
+      return storedValues.isEmpty() ? applyMissing() : applyValues(storedValues);
+    }
+
+    /**
+     * The path is absent from the document.
+     */
+    boolean applyMissing() {
+      return false;
+    }
+
+    abstract boolean applyValue(Object storedValue);
+
+    /**
+     * The path went through arrays : by default, one matching value is enough.
+     */
+    boolean applyValues(List<Object> storedValues) {
+      for (Object storedValue : storedValues) {
+        if (applyValue(storedValue)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
   static class NotFilter implements Filter {
     private final Filter filter;
 
@@ -1139,23 +1491,95 @@ public class ExpressionParser {
   static abstract class ConjunctionFilter implements Filter {
 
     final List<Filter> filters = new ArrayList<Filter>();
+    final List<Integer> costs = new ArrayList<Integer>();
 
     public void addFilter(Filter filter) {
-      filters.add(filter);
+      addFilter(filter, DEFAULT_FILTER_COST);
+    }
+
+    /**
+     * Add a filter, the cheapest filters are kept first. Filters of same cost keep the order of the query.
+     */
+    public void addFilter(Filter filter, int cost) {
+      int index = costs.size();
+      while (index > 0 && costs.get(index - 1) > cost) {
+        index--;
+      }
+      filters.add(index, filter);
+      costs.add(index, cost);
     }
 
   }
 
+  /**
+   * Evaluate the filters by estimated cost, and every {@link #ADAPT_EVERY} documents reorder them with the pass rates
+   * observed : a document must be rejected as cheaply as possible.
+   * <p/>
+   * A filter is used by only one query, the statistics are not synchronized.
+   */
   static class AndFilter extends ConjunctionFilter {
+    static final int ADAPT_EVERY = 256;
+
+    private RankedFilter[] rankedFilters;
+    private int applied;
+
     @Override
     public boolean apply(DBObject o) {
-      for (Filter f : filters) {
-        if (!f.apply(o)) {
+      RankedFilter[] ranked = rankedFilters;
+      if (ranked == null || ranked.length != filters.size()) {
+        ranked = rankedFilters = rankedFilters();
+      }
+      if (ranked.length > 1 && ++applied % ADAPT_EVERY == 0) {
+        ranked = rankedFilters = adapt(ranked);
+      }
+      for (RankedFilter rankedFilter : ranked) {
+        rankedFilter.evaluated++;
+        if (!rankedFilter.filter.apply(o)) {
           return false;
         }
+        rankedFilter.passed++;
       }
       return true;
     }
+
+    private RankedFilter[] rankedFilters() {
+      RankedFilter[] ranked = new RankedFilter[filters.size()];
+      for (int i = 0; i < ranked.length; i++) {
+        ranked[i] = new RankedFilter(filters.get(i), costs.get(i));
+      }
+      return ranked;
+    }
+
+    private static RankedFilter[] adapt(RankedFilter[] ranked) {
+      RankedFilter[] adapted = ranked.clone();
+      Arrays.sort(adapted, new Comparator<RankedFilter>() {
+        @Override
+        public int compare(RankedFilter o1, RankedFilter o2) {
+          return Double.compare(o1.costByRejection(), o2.costByRejection());
+        }
+      });
+      return adapted;
+    }
+  }
+
+  static final class RankedFilter {
+    final Filter filter;
+    final int cost;
+    int evaluated;
+    int passed;
+
+    RankedFilter(Filter filter, int cost) {
+      this.filter = filter;
+      this.cost = cost;
+    }
+
+    /**
+     * Expected cost spent for each rejected document : cost / (1 - passRate).
+     */
+    double costByRejection() {
+      double passRate = (passed + 1D) / (evaluated + 2D);
+      return cost / (1D - passRate);
+    }
   }
 
   static class OrFilter extends ConjunctionFilter {
@@ -1,16 +1,31 @@
 package com.github.fakemongo.impl;
 
 import com.github.fakemongo.Fongo;
+import com.github.fakemongo.FongoException;
 import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
 import com.mongodb.FongoDB;
 import com.mongodb.FongoDBCollection;
-import com.mongodb.util.JSON;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.mozilla.javascript.*;
 import org.slf4j.Logger;
@@ -19,11 +34,40 @@ import org.slf4j.LoggerFactory;
 /**
  * http://docs.mongodb.org/manual/reference/method/db.collection.mapReduce/
  * <p/>
- * TODO : finalize.
+ * The map, reduce and finalize functions are compiled once by the JVM (see {@link ScriptCache}) ; the map is called
+ * with a javascript view of each document and its emits are kept in a java map.
+ * <p/>
+ * With {@link Fongo#setParallelMapReduce(boolean)}, when there are more documents than a chunk, the chunks are mapped
+ * in parallel, each task with its own job.
+ * <p/>
+ * A map-reduce can also run java functions, with the same outputs.
  */
 public class MapReduce {
   private static final Logger LOG = LoggerFactory.getLogger(MapReduce.class);
 
+  /**
+   * Number of documents mapped by a task when the map runs in parallel : a script is slower than a $group.
+   */
+  static final int CHUNK_SIZE = 1024;
+
+  private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "fongo-mapreduce-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  };
+
+  /**
+   * The threads of the parallel maps, shared by all the map-reduces : created with the first parallel map.
+   */
+  private static final class Executor {
+    private static final ExecutorService INSTANCE = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), THREAD_FACTORY);
+  }
+
   private final Fongo fongo;
 
   private final FongoDB fongoDB;
@@ -34,9 +78,14 @@ public class MapReduce {
 
   private final String reduce;
 
-  // TODO
   private final String finalize;
 
+  private final MapFunction mapFunction;
+
+  private final ReduceFunction reduceFunction;
+
+  private final FinalizeFunction finalizeFunction;
+
   private final DBObject out;
 
   private final DBObject query;
@@ -45,6 +94,8 @@ public class MapReduce {
 
   private final int limit;
 
+  private final boolean parallel;
+
   // http://docs.mongodb.org/manual/reference/method/db.collection.mapReduce/
   private enum Outmode {
     REPLACE {
@@ -63,20 +114,13 @@ public class MapReduce {
       @Override
       public void newResults(MapReduce mr, DBCollection coll, List<DBObject> results) {
         // Upsert == insert the result if not exist.
-        for (DBObject result : results) {
-          coll.update(new BasicDBObject(FongoDBCollection.ID_KEY, result.get(FongoDBCollection.ID_KEY)), result, true,
-              false);
-        }
+        mr.upsert((FongoDBCollection) coll, results, false);
       }
     },
     REDUCE {
       @Override
       public void newResults(MapReduce mr, DBCollection coll, List<DBObject> results) {
-        List<DBObject> reduced = mr.reduceOutputStage(coll, results);
-        for (DBObject result : reduced) {
-          coll.update(new BasicDBObject(FongoDBCollection.ID_KEY, result.get(FongoDBCollection.ID_KEY)), result, true,
-              false);
-        }
+        mr.upsert((FongoDBCollection) coll, results, true);
       }
     },
     INLINE {
@@ -131,7 +175,53 @@ public class MapReduce {
     }
   }
 
+  /**
+   * The map of a java map-reduce : emit the values of a document.
+   */
+  public interface MapFunction {
+    void map(DBObject document, Emitter emitter);
+  }
+
+  public interface Emitter {
+    void emit(Object key, Object value);
+  }
+
+  /**
+   * The reduce of a java map-reduce : like in javascript, it must accept its own results in the values.
+   */
+  public interface ReduceFunction {
+    Object reduce(Object key, List<Object> values);
+  }
+
+  public interface FinalizeFunction {
+    Object finalize(Object key, Object value);
+  }
+
+  /**
+   * A map-reduce of javascript functions, mapped in parallel only if the fongo allows it (see
+   * {@link Fongo#setParallelMapReduce(boolean)}).
+   */
   public MapReduce(Fongo fongo, FongoDBCollection coll, String map, String reduce, String finalize, DBObject out, DBObject query, DBObject sort, Number limit) {
+    this(fongo, coll, map, reduce, finalize, null, null, null, out, query, sort, limit, fongo.isParallelMapReduce());
+  }
+
+  /**
+   * A map-reduce of java functions, without script. The functions are called by the threads of a pool only if they
+   * can run in parallel.
+   *
+   * @param finalize null if the results are not finalized.
+   * @param parallel true if the functions can be called by several threads.
+   */
+  public MapReduce(Fongo fongo, FongoDBCollection coll, MapFunction map, ReduceFunction reduce, FinalizeFunction finalize, DBObject out, DBObject query, DBObject sort, Number limit, boolean parallel) {
+    this(fongo, coll, null, null, null, map, reduce, finalize, out, query, sort, limit, parallel);
+    if (map == null || reduce == null) {
+      throw new IllegalArgumentException("map and reduce functions are mandatory");
+    }
+  }
+
+  private MapReduce(Fongo fongo, FongoDBCollection coll, String map, String reduce, String finalize,
+                    MapFunction mapFunction, ReduceFunction reduceFunction, FinalizeFunction finalizeFunction,
+                    DBObject out, DBObject query, DBObject sort, Number limit, boolean parallel) {
     this.fongo = fongo;
     if (out.containsField("db")) {
       this.fongoDB = (FongoDB) fongo.getDB((String) out.get("db"));
@@ -142,10 +232,14 @@ public class MapReduce {
     this.map = map;
     this.reduce = reduce;
     this.finalize = finalize;
+    this.mapFunction = mapFunction;
+    this.reduceFunction = reduceFunction;
+    this.finalizeFunction = finalizeFunction;
     this.out = out;
     this.query = query;
     this.sort = sort;
     this.limit = limit == null ? 0 : limit.intValue();
+    this.parallel = parallel;
   }
 
   /**
@@ -157,190 +251,502 @@ public class MapReduce {
     DBCollection coll = fongoDB.createCollection(outmode.collectionName(out), null);
     // Mode replace.
     outmode.initCollection(coll);
-    outmode.newResults(this, coll, runInContext());
+    outmode.newResults(this, coll, mapFunction != null ? run() : runInContext());
     DBObject result = outmode.createResult(coll);
     LOG.debug("computeResult() : {}", result);
     return result;
   }
 
   private List<DBObject> runInContext() {
-    // TODO use Compilable ? http://www.jmdoudoux.fr/java/dej/chap-scripting.htm
-    Context cx = Context.enter();
     try {
-      Scriptable scope = cx.initStandardObjects();
-      List<DBObject> objects = this.fongoDBCollection.find(query).sort(sort).limit(limit).toArray();
-      List<String> javascriptFunctions = constructJavascriptFunction(objects);
-      for (String jsFunction : javascriptFunctions) {
-        try {
-          cx.evaluateString(scope, jsFunction, "<map-reduce>", 0, null);
-        } catch (RhinoException e) {
-          LOG.error("Exception running script {}", jsFunction, e);
-          fongoDB.notOkErrorResult(16722, "JavaScript execution failed: " + e.getMessage()).throwOnError();
-        }
+      return run();
+    } catch (RhinoException e) {
+      LOG.error("Exception running script", e);
+      fongoDB.notOkErrorResult(16722, "JavaScript execution failed: " + e.getMessage()).throwOnError();
+      return null;
+    }
+  }
+
+  private List<DBObject> run() {
+    Iterator<DBObject> objects = this.fongoDBCollection.find(query).sort(sort).limit(limit).iterator();
+    List<DBObject> chunk = nextChunk(objects);
+    Job job = newJob();
+    if (!parallel || !objects.hasNext()) {
+      while (!chunk.isEmpty()) {
+        job.map(chunk);
+        chunk = nextChunk(objects);
       }
+    } else {
+      parallelMap(job, chunk, objects, Runtime.getRuntime().availableProcessors());
+    }
+    return job.results();
+  }
+
+  private Job newJob() {
+    return mapFunction != null ? new NativeJob() : new ScriptJob();
+  }
 
-      // Get the result into an object.
-      NativeArray outs = (NativeArray) scope.get("$$$fongoOuts$$$", scope);
-      List<DBObject> dbOuts = new ArrayList<DBObject>();
-      for (int i = 0; i < outs.getLength(); i++) {
-        NativeObject out = (NativeObject) outs.get(i, outs);
-        dbOuts.add(getObject(out));
+  private static List<DBObject> nextChunk(Iterator<DBObject> input) {
+    List<DBObject> chunk = new ArrayList<DBObject>(CHUNK_SIZE);
+    while (chunk.size() < CHUNK_SIZE && input.hasNext()) {
+      chunk.add(input.next());
+    }
+    return chunk;
+  }
+
+  /**
+   * Map each chunk in a task while the documents are read : a task takes an idle job (for a script, its own scope and
+   * compiled functions), so a job is used by one task at a time. The values of a key emitted more than once in a chunk
+   * are reduced in the task, then the chunks are merged in order, so the keys are in the same order than in a
+   * sequential map.
+   */
+  private void parallelMap(Job job, List<DBObject> chunk, Iterator<DBObject> input, int threads) {
+    final Queue<Job> idleJobs = new ConcurrentLinkedQueue<Job>();
+    LinkedList<Future<Collection<Emitted>>> partials = new LinkedList<Future<Collection<Emitted>>>();
+    try {
+      int chunks = 0;
+      while (!chunk.isEmpty()) {
+        final List<DBObject> documents = chunk;
+        partials.add(Executor.INSTANCE.submit(new Callable<Collection<Emitted>>() {
+          @Override
+          public Collection<Emitted> call() {
+            Job worker = idleJobs.poll();
+            if (worker == null) {
+              worker = newJob();
+            }
+            worker.map(documents);
+            Collection<Emitted> combined = worker.combine();
+            idleJobs.offer(worker);
+            return combined;
+          }
+        }));
+        chunks++;
+        // Don't keep all the chunks in memory.
+        if (partials.size() > 2 * threads) {
+          job.merge(getPartial(partials.removeFirst()));
+        }
+        chunk = nextChunk(input);
       }
-      return dbOuts;
+      while (!partials.isEmpty()) {
+        job.merge(getPartial(partials.removeFirst()));
+      }
+      LOG.debug("mapReduce() in {} chunks", chunks);
     } finally {
-      cx.exit();
+      // On error, the pending chunks are not mapped.
+      for (Future<Collection<Emitted>> partial : partials) {
+        partial.cancel(true);
+      }
     }
   }
 
-  private List<DBObject> reduceOutputStage(DBCollection coll, List<DBObject> mapReduceOutput) {
-    Context cx = Context.enter();
+  private static Collection<Emitted> getPartial(Future<Collection<Emitted>> partial) {
     try {
-      Scriptable scope = cx.initStandardObjects();
-      List<String> jsFunctions = constructReduceOutputStageJavascriptFunction(coll, mapReduceOutput);
-      for (String jsFunction : jsFunctions) {
-        try {
-          cx.evaluateString(scope, jsFunction, "<reduce output stage>", 0, null);
-        } catch (RhinoException e) {
-          LOG.error("Exception running script {}", jsFunction, e);
-          fongoDB.notOkErrorResult(16722, "JavaScript execution failed: " + e.getMessage()).throwOnError();
+      return partial.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new FongoException("mapReduce() interrupted", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw new FongoException("mapReduce() failed", e.getCause());
+    }
+  }
+
+  /**
+   * The map, reduce and finalize functions, with the values emitted by the map grouped by key in a hash map.
+   * <p/>
+   * Used by one thread at a time.
+   */
+  private abstract static class Job {
+    final Map<Object, Emitted> byKey = new LinkedHashMap<Object, Emitted>();
+
+    Emitted emitted(Object id) {
+      Object hashKey = hashKey(id);
+      Emitted emitted = byKey.get(hashKey);
+      if (emitted == null) {
+        emitted = new Emitted(id);
+        byKey.put(hashKey, emitted);
+      }
+      return emitted;
+    }
+
+    abstract void map(List<DBObject> documents);
+
+    /**
+     * @param values values of the job.
+     * @return the reduced value, a value of the job.
+     */
+    abstract Object reduce(Object id, List<Object> values);
+
+    /**
+     * @return the result, as a document value.
+     */
+    abstract Object finalize(Object id, Object value);
+
+    abstract Object toDocumentValue(Object value);
+
+    abstract Object fromDocumentValue(Object value);
+
+    /**
+     * @return the emits of the chunk, as document values : the values of a key emitted more than once are reduced.
+     */
+    Collection<Emitted> combine() {
+      List<Emitted> combined = new ArrayList<Emitted>(byKey.size());
+      for (Emitted emitted : byKey.values()) {
+        Emitted partial = new Emitted(emitted.id);
+        if (emitted.values.size() == 1) {
+          partial.values.add(toDocumentValue(emitted.values.get(0)));
+        } else {
+          partial.values.add(toDocumentValue(reduce(emitted.id, emitted.values)));
         }
+        combined.add(partial);
       }
+      byKey.clear();
+      return combined;
+    }
 
-      // Get the result into an object.
-      NativeArray outs = (NativeArray) scope.get("$$$fongoOuts$$$", scope);
-      List<DBObject> dbOuts = new ArrayList<DBObject>();
-      for (int i = 0; i < outs.getLength(); i++) {
-        NativeObject out = (NativeObject) outs.get(i, outs);
-        dbOuts.add(getObject(out));
+    /**
+     * Add the emits of a chunk.
+     */
+    void merge(Collection<Emitted> partial) {
+      for (Emitted emitted : partial) {
+        Emitted current = emitted(emitted.id);
+        for (Object value : emitted.values) {
+          current.values.add(fromDocumentValue(value));
+        }
       }
+    }
 
-      LOG.debug("reduceOutputStage() : {}", dbOuts);
+    List<DBObject> results() {
+      List<DBObject> dbOuts = new ArrayList<DBObject>(byKey.size());
+      for (Emitted emitted : byKey.values()) {
+        Object value = finalize(emitted.id, reduce(emitted.id, emitted.values));
+        dbOuts.add(new BasicDBObject(FongoDBCollection.ID_KEY, emitted.id).append("value", value));
+      }
       return dbOuts;
-    } finally {
-      cx.exit();
+    }
+
+    /**
+     * The numbers are doubles in javascript : 1 and 1.0 are the same key.
+     */
+    private static Object hashKey(Object id) {
+      return id instanceof Number ? (Object) ((Number) id).doubleValue() : id;
     }
   }
 
+  /**
+   * The java functions : the emitted values are document values.
+   */
+  private final class NativeJob extends Job implements Emitter {
+    @Override
+    public void emit(Object key, Object value) {
+      emitted(key).values.add(value);
+    }
 
-  DBObject getObject(ScriptableObject no) {
-    if (no instanceof NativeArray) {
-        BasicDBList ret = new BasicDBList();
-        NativeArray noArray = (NativeArray) no;
-        for (int i = 0; i < noArray.getLength(); i++) {
-            Object value = noArray.get(i, noArray);
-            if (value instanceof NativeObject || value instanceof NativeArray) {
-                value = getObject((ScriptableObject) value);
-            }
-            ret.add(value);
+    @Override
+    void map(List<DBObject> documents) {
+      for (DBObject document : documents) {
+        mapFunction.map(document, this);
+      }
+    }
+
+    @Override
+    Object reduce(Object id, List<Object> values) {
+      return reduceFunction.reduce(id, values);
+    }
+
+    @Override
+    Object finalize(Object id, Object value) {
+      return finalizeFunction == null ? value : finalizeFunction.finalize(id, value);
+    }
+
+    @Override
+    Object toDocumentValue(Object value) {
+      return value;
+    }
+
+    @Override
+    Object fromDocumentValue(Object value) {
+      return value;
+    }
+  }
+
+  /**
+   * The map, reduce and finalize functions compiled in a scope : the map is called with a javascript view of each
+   * document. Each call enters the context of the thread.
+   */
+  private final class ScriptJob extends Job {
+    private final Scriptable scope;
+
+    private final Function mapScript;
+
+    private final Function reduceScript;
+
+    private final Function finalizeScript;
+
+    ScriptJob() {
+      Context cx = ScriptCache.enter();
+      try {
+        scope = ScriptCache.newScope(cx);
+        ScriptableObject.putProperty(scope, "emit", new Emits(this));
+
+        // The functions are compiled once by the JVM, then called for each document or key.
+        mapScript = compile(cx, scope, map, "<map>");
+        reduceScript = compile(cx, scope, reduce, "<reduce>");
+        finalizeScript = compile(cx, scope, finalize, "<finalize>");
+      } finally {
+        Context.exit();
+      }
+    }
+
+    @Override
+    void map(List<DBObject> documents) {
+      Context cx = ScriptCache.enter();
+      try {
+        for (DBObject document : documents) {
+          mapScript.call(cx, scope, new DBObjectScriptable(scope, document), new Object[0]);
         }
-        return ret;
+      } finally {
+        Context.exit();
+      }
     }
-    DBObject ret = new BasicDBObject();
-    Object[] propIds = no.getIds();
-    for (Object propId : propIds) {
-      String key = Context.toString(propId);
-      Object value = NativeObject.getProperty(no, key);
-      if (value instanceof NativeObject || value instanceof NativeArray) {
-          value = getObject((ScriptableObject) value);
+
+    @Override
+    Object reduce(Object id, List<Object> values) {
+      Context cx = ScriptCache.enter();
+      try {
+        return reduceScript.call(cx, scope, scope, new Object[]{DBObjectScriptable.toJavascript(scope, id), cx.newArray(scope, values.toArray())});
+      } finally {
+        Context.exit();
+      }
+    }
+
+    @Override
+    Object finalize(Object id, Object value) {
+      if (finalize == null) {
+        return toJava(value);
+      }
+      Context cx = ScriptCache.enter();
+      try {
+        return toJava(finalizeScript.call(cx, scope, scope, new Object[]{DBObjectScriptable.toJavascript(scope, id), value}));
+      } finally {
+        Context.exit();
+      }
+    }
+
+    @Override
+    Object toDocumentValue(Object value) {
+      return toJava(value);
+    }
+
+    /**
+     * A plain javascript value : unlike the {@link DBObjectScriptable} view, the reduce can modify it and return it.
+     */
+    @Override
+    Object fromDocumentValue(Object value) {
+      Context cx = ScriptCache.enter();
+      try {
+        return toJavascript(cx, scope, value);
+      } finally {
+        Context.exit();
       }
-      ret.put(key, value);
     }
-    return ret;
+  }
+
+  private static Object toJavascript(Context cx, Scriptable scope, Object value) {
+    if (value instanceof List) {
+      List<?> list = (List<?>) value;
+      Object[] elements = new Object[list.size()];
+      for (int i = 0; i < elements.length; i++) {
+        elements[i] = toJavascript(cx, scope, list.get(i));
+      }
+      return cx.newArray(scope, elements);
+    }
+    if (value instanceof DBObject) {
+      DBObject dbObject = (DBObject) value;
+      Scriptable object = cx.newObject(scope);
+      for (String key : dbObject.keySet()) {
+        ScriptableObject.putProperty(object, key, toJavascript(cx, scope, dbObject.get(key)));
+      }
+      return object;
+    }
+    return DBObjectScriptable.toJavascript(scope, value);
+  }
+
+  /**
+   * @return the function of the scope ; a function throwing an error when called if there is no source.
+   */
+  private static Function compile(Context cx, Scriptable scope, String source, final String name) {
+    if (source != null) {
+      return ScriptCache.function(cx, scope, source, name);
+    }
+    return new BaseFunction() {
+      @Override
+      public Object call(Context cx, Scriptable scope, Scriptable thisObj, Object[] args) {
+        throw ScriptRuntime.typeError(name + " is not a function");
+      }
+    };
   }
 
   /**
-   * Create the map/reduce/finalize function.
+   * Values emitted for a key : the key is kept as a document value, the values as values of the job.
    */
-  private List<String> constructJavascriptFunction(List<DBObject> objects) {
-    List<String> result = new ArrayList<String>();
-    StringBuilder sb = new StringBuilder(80000);
-    // Add some function to javascript engine.
-    addMongoFunctions(sb);
-
-    // Create variables for exporting.
-    sb.append("var $$$fongoEmits$$$ = new Object();\n");
-    sb.append("function emit(param1, param2) {\n" +
-        "var toSource = param1.toSource();\n" +
-        "if(typeof $$$fongoEmits$$$[toSource] === 'undefined') {\n " +
-        "$$$fongoEmits$$$[toSource] = new Array();\n" +
-        "}\n" +
-        "var val = {id: param1, value: param2};\n" +
-        "$$$fongoEmits$$$[toSource][$$$fongoEmits$$$[toSource].length] = val;\n" +
-        "};\n");
-    // Prepare map function.
-    sb.append("var fongoMapFunction = ").append(map).append(";\n");
-    sb.append("var $$$fongoVars$$$ = new Object();\n");
-    // For each object, execute in javascript the function.
-    for (DBObject object : objects) {
-      String json = JSON.serialize(object);
-      sb.append("$$$fongoVars$$$ = ").append(json).append(";\n");
-      sb.append("$$$fongoVars$$$['fongoExecute'] = fongoMapFunction;\n");
-      sb.append("$$$fongoVars$$$.fongoExecute();\n");
-      if (sb.length() > 65535) { // Rhino limit :-(
-        result.add(sb.toString());
-        sb.setLength(0);
-      }
-    }
-    result.add(sb.toString());
-
-    // Add Reduce Function
-    sb.setLength(0);
-    sb.append("var reduce = ").append(reduce).append("\n");
-    sb.append("var $$$fongoOuts$$$ = Array();\n" +
-        "for(var i in $$$fongoEmits$$$) {\n" +
-        "var elem = $$$fongoEmits$$$[i];\n" +
-        "values = []; id = null; for (var ii in elem) { values.push(elem[ii].value); id = elem[ii].id;}\n" +
-        "$$$fongoOuts$$$[$$$fongoOuts$$$.length] = { _id : id, value : reduce(id, values) };\n" +
-        "}\n");
-    result.add(sb.toString());
+  static final class Emitted {
+    final Object id;
+    final List<Object> values = new ArrayList<Object>();
 
-    return result;
+    Emitted(Object id) {
+      this.id = id;
+    }
   }
 
   /**
-   * Create 'reduce' stage output function.
+   * The emit(key, value) function of the map : the values are grouped by key in the job.
    */
-  private List<String> constructReduceOutputStageJavascriptFunction(DBCollection coll, List<DBObject> objects) {
-    List<String> result = new ArrayList<String>();
-    StringBuilder sb = new StringBuilder(80000);
-
-    addMongoFunctions(sb);
-
-    sb.append("var reduce = ").append(reduce).append("\n");
-    sb.append("var $$$fongoOuts$$$ = new Array();\n");
-    for (DBObject object : objects) {
-      String objectJson = JSON.serialize(object);
-      String objectValueJson = JSON.serialize(object.get("value"));
-      DBObject existing = coll.findOne(new BasicDBObject().append(FongoDBCollection.ID_KEY,
-          object.get(FongoDBCollection.ID_KEY)));
-      if (existing == null || existing.get("value") == null) {
-        sb.append("$$$fongoOuts$$$[$$$fongoOuts$$$.length] = ").append(objectJson).append(";\n");
-      } else {
-        String id = JSON.serialize(object.get(FongoDBCollection.ID_KEY));
-        String existingValueJson = JSON.serialize(existing.get("value"));
-        sb.append("$$$fongoId$$$ = ").append(id).append(";\n");
-        sb.append("$$$fongoValues$$$ = [ ").append(existingValueJson).append(", ").append(objectValueJson).append("];\n");
-        sb.append("$$$fongoReduced$$$ = { _id : $$$fongoId$$$, value : reduce($$$fongoId$$$, $$$fongoValues$$$)};")
-            .append(";\n");
-        sb.append("$$$fongoOuts$$$[$$$fongoOuts$$$.length] = $$$fongoReduced$$$;\n");
-      }
-      if (sb.length() > 65535) { // Rhino limit :-(
-        result.add(sb.toString());
-        sb.setLength(0);
-      }
-    }
-    result.add(sb.toString());
-    return result;
+  private static final class Emits extends BaseFunction {
+    private static final long serialVersionUID = 1L;
+
+    private final transient Job job;
+
+    Emits(Job job) {
+      this.job = job;
+    }
+
+    /**
+     * The views of the documents (like "this") are emitted as plain objects : the writes of the reduce and of the
+     * finalize are kept, like for the other values.
+     */
+    @Override
+    public Object call(Context cx, Scriptable scope, Scriptable thisObj, Object[] args) {
+      Object value = args.length > 1 ? args[1] : null;
+      if (hasView(value)) {
+        value = toJavascript(cx, scope, toJava(value));
+      }
+      job.emitted(toJava(args.length > 0 ? args[0] : null)).values.add(value);
+      return Undefined.instance;
+    }
+
+    private static boolean hasView(Object value) {
+      if (value instanceof DBObjectScriptable) {
+        return true;
+      }
+      if (value instanceof NativeArray) {
+        NativeArray array = (NativeArray) value;
+        for (int i = 0; i < array.getLength(); i++) {
+          if (hasView(array.get(i, array))) {
+            return true;
+          }
+        }
+        return false;
+      }
+      if (value instanceof Scriptable && !(value instanceof Function)) {
+        Scriptable scriptable = (Scriptable) value;
+        for (Object propId : scriptable.getIds()) {
+          if (propId instanceof String && hasView(ScriptableObject.getProperty(scriptable, (String) propId))) {
+            return true;
+          }
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Convert a javascript value into a document value.
+   */
+  static Object toJava(Object value) {
+    if (value == null || value instanceof Undefined) {
+      return null;
+    }
+    if (value instanceof DBObjectScriptable) {
+      DBObjectScriptable view = (DBObjectScriptable) value;
+      Object[] written = view.getWrittenIds();
+      if (written.length == 0) {
+        return view.getDBObject();
+      }
+      DBObject dbObject = new BasicDBObject();
+      dbObject.putAll(view.getDBObject());
+      for (Object propId : written) {
+        String key = Context.toString(propId);
+        dbObject.put(key, toJava(ScriptableObject.getProperty(view, key)));
+      }
+      return dbObject;
+    }
+    if (value instanceof Wrapper) {
+      return ((Wrapper) value).unwrap();
+    }
+    if (value instanceof NativeArray) {
+      NativeArray array = (NativeArray) value;
+      BasicDBList list = new BasicDBList();
+      for (int i = 0; i < array.getLength(); i++) {
+        list.add(toJava(array.get(i, array)));
+      }
+      return list;
+    }
+    if (value instanceof Scriptable) {
+      Scriptable scriptable = (Scriptable) value;
+      if ("Date".equals(scriptable.getClassName())) {
+        return Context.jsToJava(value, Date.class);
+      }
+      DBObject dbObject = new BasicDBObject();
+      for (Object propId : scriptable.getIds()) {
+        String key = Context.toString(propId);
+        dbObject.put(key, toJava(ScriptableObject.getProperty(scriptable, key)));
+      }
+      return dbObject;
+    }
+    if (value instanceof CharSequence) {
+      return value.toString();
+    }
+    return value;
   }
 
-  private void addMongoFunctions(StringBuilder construct) {
-    // Add some function to javascript engine.
-    construct.append("Array.sum = function(array) {\n" +
-        "    var a = 0;\n" +
-        "    for (var i = 0; i < array.length; i++) {\n" +
-        "        a = a + array[i];\n" +
-        "    }\n" +
-        "    return a;" +
-        "};\n");
+  /**
+   * Write the results into a collection : the existing documents of the keys are read at once from the "_id" index,
+   * then all the results are written at once, replacing the existing documents.
+   *
+   * @param reduce true to reduce the result with the value of the existing document.
+   */
+  private void upsert(FongoDBCollection coll, List<DBObject> results, boolean reduce) {
+    List<DBObject> documents = results;
+    if (reduce) {
+      List<Object> ids = new ArrayList<Object>(results.size());
+      for (DBObject result : results) {
+        ids.add(result.get(FongoDBCollection.ID_KEY));
+      }
+      List<DBObject> existings = coll.findByIds(ids);
+      documents = new ArrayList<DBObject>(results.size());
+      Job job = null;
+      for (int i = 0; i < results.size(); i++) {
+        DBObject result = results.get(i);
+        DBObject existing = existings.get(i);
+        if (existing != null && existing.get("value") != null) {
+          if (job == null) {
+            job = newJob();
+          }
+          result = new BasicDBObject(FongoDBCollection.ID_KEY, ids.get(i)).append("value", reduceWithExisting(job, ids.get(i), existing.get("value"), result.get("value")));
+        }
+        documents.add(result);
+      }
+    }
+    int replaced = coll.upsertByIds(documents);
+    LOG.debug("upsert() : {} inserted, {} replaced", documents.size() - replaced, replaced);
+  }
+
+  private Object reduceWithExisting(Job job, Object id, Object existingValue, Object value) {
+    List<Object> values = new ArrayList<Object>(2);
+    values.add(job.fromDocumentValue(existingValue));
+    values.add(job.fromDocumentValue(value));
+    try {
+      return job.toDocumentValue(job.reduce(id, values));
+    } catch (RhinoException e) {
+      LOG.error("Exception running script <reduce>", e);
+      fongoDB.notOkErrorResult(16722, "JavaScript execution failed: " + e.getMessage()).throwOnError();
+      return null;
+    }
   }
 }
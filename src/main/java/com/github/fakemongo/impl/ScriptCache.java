@@ -0,0 +1,204 @@
+package com.github.fakemongo.impl;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The compiled scripts of the JVM, by source : the $where expressions and the map-reduce functions are compiled once,
+ * and run on top of a scope of the standard objects shared by all the threads.
+ * <p/>
+ * The shared scope is sealed : a script can't change the standard objects seen by the other scripts. Its variables
+ * are kept in its own scope (see {@link #newScope(Context)}).
+ */
+public final class ScriptCache {
+  private static final Logger LOG = LoggerFactory.getLogger(ScriptCache.class);
+
+  /**
+   * Number of scripts kept in the cache, the least recently used are removed first.
+   */
+  static final int MAX_SCRIPTS = 1024;
+
+  private static final Map<String, Script> SCRIPTS = new LinkedHashMap<String, Script>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Script> eldest) {
+      return size() > MAX_SCRIPTS;
+    }
+  };
+
+  private static final AtomicLong HITS = new AtomicLong();
+
+  private static final AtomicLong MISSES = new AtomicLong();
+
+  private static final AtomicLong COMPILE_NANOS = new AtomicLong();
+
+  /**
+   * The context of each thread, created by its first script and entered again by the next ones.
+   */
+  private static final ThreadLocal<Context> CONTEXTS = new ThreadLocal<Context>();
+
+  private static final ScriptableObject SHARED_SCOPE = createSharedScope();
+
+  private ScriptCache() {
+  }
+
+  /**
+   * Enter the context of the current thread : must be followed by a {@link Context#exit()}.
+   */
+  static Context enter() {
+    Context cx = CONTEXTS.get();
+    if (cx == null) {
+      cx = ContextFactory.getGlobal().enterContext();
+      CONTEXTS.set(cx);
+      return cx;
+    }
+    return ContextFactory.getGlobal().enterContext(cx);
+  }
+
+  /**
+   * @return a new scope for the variables of a script, on top of the shared scope.
+   */
+  static Scriptable newScope(Context cx) {
+    Scriptable scope = cx.newObject(SHARED_SCOPE);
+    scope.setPrototype(SHARED_SCOPE);
+    scope.setParentScope(null);
+    return scope;
+  }
+
+  /**
+   * @return the compiled script of the source. The lock is held while compiling : a source is compiled once, even
+   * when several threads ask for it.
+   */
+  static Script script(Context cx, String source, String name) {
+    synchronized (SCRIPTS) {
+      Script script = SCRIPTS.get(source);
+      if (script != null) {
+        HITS.incrementAndGet();
+        return script;
+      }
+      MISSES.incrementAndGet();
+      long start = System.nanoTime();
+      script = cx.compileString(source, name, 0, null);
+      long elapsed = System.nanoTime() - start;
+      COMPILE_NANOS.addAndGet(elapsed);
+      LOG.debug("script() : {} compiled in {} ms", name, elapsed / 1000000);
+      SCRIPTS.put(source, script);
+      return script;
+    }
+  }
+
+  /**
+   * The function of a source like "function(key, values) { ... }", compiled once : the compiled script only
+   * creates the function in the scope.
+   *
+   * @param scope the scope of the variables of the function.
+   */
+  static Function function(Context cx, Scriptable scope, String source, String name) {
+    return function(cx, scope, functionScript(cx, source, name), name);
+  }
+
+  /**
+   * @return the compiled script creating the function of the source, see {@link #function(Context, Scriptable, Script, String)}.
+   */
+  static Script functionScript(Context cx, String source, String name) {
+    String expression = source.trim();
+    while (expression.endsWith(";")) {
+      expression = expression.substring(0, expression.length() - 1).trim();
+    }
+    return script(cx, "(" + expression + "\n)", name);
+  }
+
+  /**
+   * @param functionScript the script of {@link #functionScript(Context, String, String)}.
+   * @param scope          the scope of the variables of the function.
+   */
+  static Function function(Context cx, Scriptable scope, Script functionScript, String name) {
+    Object function = functionScript.exec(cx, scope);
+    if (!(function instanceof Function)) {
+      throw Context.reportRuntimeError(name + " is not a function");
+    }
+    return (Function) function;
+  }
+
+  /**
+   * @return the number of scripts found in the cache.
+   */
+  public static long getHits() {
+    return HITS.get();
+  }
+
+  /**
+   * @return the number of scripts compiled.
+   */
+  public static long getMisses() {
+    return MISSES.get();
+  }
+
+  /**
+   * @return the time spent to compile the scripts, in nanoseconds.
+   */
+  public static long getCompileNanos() {
+    return COMPILE_NANOS.get();
+  }
+
+  public static int size() {
+    synchronized (SCRIPTS) {
+      return SCRIPTS.size();
+    }
+  }
+
+  /**
+   * Remove the compiled scripts and reset the statistics.
+   */
+  public static void clear() {
+    synchronized (SCRIPTS) {
+      SCRIPTS.clear();
+    }
+    HITS.set(0);
+    MISSES.set(0);
+    COMPILE_NANOS.set(0);
+  }
+
+  /**
+   * The standard objects, with the functions of the mongo shell, sealed with their prototypes.
+   */
+  private static ScriptableObject createSharedScope() {
+    Context cx = enter();
+    try {
+      ScriptableObject scope = cx.initStandardObjects(null, false);
+      cx.evaluateString(scope, "Array.sum = function(array) {\n" +
+          "    var a = 0;\n" +
+          "    for (var i = 0; i < array.length; i++) {\n" +
+          "        a = a + array[i];\n" +
+          "    }\n" +
+          "    return a;" +
+          "};\n", "<mongo functions>", 0, null);
+      for (Object id : scope.getAllIds()) {
+        if (!(id instanceof String)) {
+          continue;
+        }
+        // Also load the lazy constructors before sealing.
+        Object value = ScriptableObject.getProperty(scope, (String) id);
+        if (value instanceof ScriptableObject) {
+          Object prototype = ScriptableObject.getProperty((ScriptableObject) value, "prototype");
+          if (prototype instanceof ScriptableObject) {
+            ((ScriptableObject) prototype).sealObject();
+          }
+          ((ScriptableObject) value).sealObject();
+        }
+      }
+      scope.sealObject();
+      return scope;
+    } finally {
+      Context.exit();
+    }
+  }
+}
@@ -0,0 +1,325 @@
+package com.github.fakemongo.impl;
+
+import com.github.fakemongo.Fongo;
+import com.github.fakemongo.FongoException;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.DefaultDBEncoder;
+import com.mongodb.FongoDB;
+import com.mongodb.FongoDBCollection;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Binary snapshot of all the databases of a {@link Fongo} : their collections, with their documents and the definition
+ * of their indexes.
+ * <p/>
+ * The file starts with a header, then each collection is written in its own section : the definitions of the indexes
+ * and the documents in BSON, after the size of the section. The restore maps the file in memory, reads the headers of
+ * the sections, and decodes each collection in parallel ; the collections are changed once all the sections are
+ * decoded, and the indexes of a collection are built with all its documents.
+ * <p/>
+ * A file that can't be decoded doesn't change the databases. The collections are then restored in parallel, and the
+ * restore is not atomic : when a collection fails (like a unique index of the collection violated by the documents of
+ * the snapshot), the other collections may already be restored.
+ */
+public class Snapshot {
+  private static final Logger LOG = LoggerFactory.getLogger(Snapshot.class);
+
+  private static final int MAGIC = 0x464f4e47; // "FONG"
+
+  private static final int VERSION = 1;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * The collection of the index definitions : the indexes are created again with the collections.
+   */
+  private static final String SYSTEM_INDEXES = "system.indexes";
+
+  private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "fongo-snapshot-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  };
+
+  private final Fongo fongo;
+
+  public Snapshot(Fongo fongo) {
+    this.fongo = fongo;
+  }
+
+  /**
+   * Write all the databases in the file, replaced if it exists.
+   */
+  public void save(File file) {
+    long start = System.currentTimeMillis();
+    try {
+      DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+      try {
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        List<String> databaseNames = fongo.getDatabaseNames();
+        output.writeInt(databaseNames.size());
+        for (String databaseName : databaseNames) {
+          saveDatabase(output, (FongoDB) fongo.getDB(databaseName));
+        }
+      } finally {
+        output.close();
+      }
+    } catch (IOException e) {
+      throw new FongoException("can't write the snapshot " + file, e);
+    }
+    LOG.debug("save() : {} in {} ms", file, System.currentTimeMillis() - start);
+  }
+
+  private void saveDatabase(DataOutputStream output, FongoDB db) throws IOException {
+    List<String> collectionNames = new ArrayList<String>(new TreeSet<String>(db.getCollectionNames()));
+    collectionNames.remove(SYSTEM_INDEXES);
+    writeString(output, db.getName());
+    output.writeInt(collectionNames.size());
+    DBCollection indexes = db.getCollection(SYSTEM_INDEXES);
+    DefaultDBEncoder encoder = new DefaultDBEncoder();
+    for (String collectionName : collectionNames) {
+      FongoDBCollection collection = (FongoDBCollection) db.getCollection(collectionName);
+      writeString(output, collectionName);
+
+      ByteArrayOutputStream section = new ByteArrayOutputStream(BUFFER_SIZE);
+      List<DBObject> definitions = indexes.find(new BasicDBObject("ns", collection.getFullName())).toArray();
+      int count = 0;
+      for (DBObject definition : definitions) {
+        if (!FongoDBCollection.ID_NAME_INDEX.equals(definition.get("name"))) {
+          section.write(encoder.encode(definition));
+          count++;
+        }
+      }
+      int indexCount = count;
+      count = 0;
+      Iterator<DBObject> documents = collection.find().iterator();
+      while (documents.hasNext()) {
+        section.write(encoder.encode(documents.next()));
+        count++;
+      }
+      output.writeInt(indexCount);
+      output.writeInt(count);
+      output.writeLong(section.size());
+      section.writeTo(output);
+    }
+  }
+
+  /**
+   * Read a snapshot : the collections of the snapshot replace the documents of the collections with the same name, the
+   * other collections don't change. If a collection fails, the collections restored before are not rolled back.
+   */
+  public void restore(File file) {
+    long start = System.currentTimeMillis();
+    try {
+      RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+      try {
+        FileChannel channel = randomAccessFile.getChannel();
+        ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        restore(file, buffer);
+      } finally {
+        randomAccessFile.close();
+      }
+    } catch (IOException e) {
+      throw new FongoException("can't read the snapshot " + file, e);
+    }
+    LOG.debug("restore() : {} in {} ms", file, System.currentTimeMillis() - start);
+  }
+
+  private void restore(File file, ByteBuffer buffer) {
+    if (buffer.remaining() < 8 || buffer.getInt() != MAGIC) {
+      throw new FongoException("not a snapshot : " + file);
+    }
+    int version = buffer.getInt();
+    if (version != VERSION) {
+      throw new FongoException("unknown version " + version + " of the snapshot " + file);
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), THREAD_FACTORY);
+    try {
+      List<Future<Section>> sections = new ArrayList<Future<Section>>();
+      try {
+        int databases = readCount(buffer);
+        for (int i = 0; i < databases; i++) {
+          final String databaseName = readString(buffer);
+          int collectionCount = readCount(buffer);
+          for (int j = 0; j < collectionCount; j++) {
+            final String collectionName = readString(buffer);
+            final int indexCount = readCount(buffer);
+            final int documentCount = readCount(buffer);
+            long size = buffer.getLong();
+            // A document takes 5 bytes at least.
+            if (size < 0 || size > buffer.remaining() || 5L * ((long) indexCount + documentCount) > size) {
+              throw new FongoException("invalid section size " + size + " in the snapshot");
+            }
+            // The section is decoded by a task while the next ones are read.
+            final ByteBuffer section = buffer.slice();
+            section.limit((int) size);
+            buffer.position(buffer.position() + (int) size);
+            sections.add(executor.submit(new Callable<Section>() {
+              @Override
+              public Section call() {
+                return new Section(databaseName, collectionName, section, indexCount, documentCount);
+              }
+            }));
+          }
+        }
+      } catch (BufferUnderflowException e) {
+        throw new FongoException("truncated snapshot " + file, e);
+      }
+      // All the sections are decoded before the first change.
+      List<Section> decoded = new ArrayList<Section>(sections.size());
+      for (Future<Section> section : sections) {
+        decoded.add(getResult(section));
+      }
+      List<Future<Integer>> collections = new ArrayList<Future<Integer>>(decoded.size());
+      for (final Section section : decoded) {
+        collections.add(executor.submit(new Callable<Integer>() {
+          @Override
+          public Integer call() {
+            FongoDB db = (FongoDB) fongo.getDB(section.databaseName);
+            return section.apply((FongoDBCollection) db.getCollection(section.collectionName));
+          }
+        }));
+      }
+      int documents = 0;
+      for (Future<Integer> collection : collections) {
+        documents += getResult(collection);
+      }
+      LOG.debug("restore() : {} collections, {} documents", collections.size(), documents);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * The decoded section of a collection.
+   */
+  private static final class Section {
+    private final String databaseName;
+    private final String collectionName;
+    private final List<DBObject> definitions;
+    private final List<DBObject> documents;
+
+    Section(String databaseName, String collectionName, ByteBuffer section, int indexCount, int documentCount) {
+      this.databaseName = databaseName;
+      this.collectionName = collectionName;
+      DefaultDBDecoder decoder = new DefaultDBDecoder();
+      this.definitions = new ArrayList<DBObject>(indexCount);
+      for (int i = 0; i < indexCount; i++) {
+        definitions.add(readDocument(decoder, section));
+      }
+      this.documents = new ArrayList<DBObject>(documentCount);
+      for (int i = 0; i < documentCount; i++) {
+        documents.add(readDocument(decoder, section));
+      }
+    }
+
+    /**
+     * Replace the documents of the collection, then create its missing indexes : the documents of the collection
+     * before the restore can't violate the indexes of the snapshot.
+     */
+    int apply(FongoDBCollection collection) {
+      int count = collection.replaceDocuments(documents.iterator());
+      for (DBObject definition : definitions) {
+        DBObject options = new BasicDBObject();
+        for (String key : definition.keySet()) {
+          if (!"v".equals(key) && !"key".equals(key) && !"ns".equals(key)) {
+            options.put(key, definition.get(key));
+          }
+        }
+        collection.createIndex((DBObject) definition.get("key"), options);
+      }
+      return count;
+    }
+  }
+
+  private static DBObject readDocument(DefaultDBDecoder decoder, ByteBuffer section) {
+    // BSON size : little endian, including its 4 bytes.
+    if (section.remaining() < 4) {
+      throw new FongoException("truncated document in the snapshot");
+    }
+    int position = section.position();
+    int length = (section.get(position) & 0xff) | (section.get(position + 1) & 0xff) << 8
+        | (section.get(position + 2) & 0xff) << 16 | (section.get(position + 3) & 0xff) << 24;
+    if (length < 5 || length > section.remaining()) {
+      throw new FongoException("invalid document size " + length + " in the snapshot");
+    }
+    byte[] document = new byte[length];
+    section.get(document);
+    return decoder.decode(document, (DBCollection) null);
+  }
+
+  private static void writeString(DataOutputStream output, String value) throws IOException {
+    byte[] bytes = value.getBytes(UTF8);
+    output.writeInt(bytes.length);
+    output.write(bytes);
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    if (length < 0 || length > buffer.remaining()) {
+      throw new FongoException("invalid string size " + length + " in the snapshot");
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, UTF8);
+  }
+
+  private static int readCount(ByteBuffer buffer) {
+    int count = buffer.getInt();
+    if (count < 0) {
+      throw new FongoException("invalid count " + count + " in the snapshot");
+    }
+    return count;
+  }
+
+  private static <T> T getResult(Future<T> result) {
+    try {
+      return result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new FongoException("restore() interrupted", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw new FongoException("restore() failed", e.getCause());
+    }
+  }
+}
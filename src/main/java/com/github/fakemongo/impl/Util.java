@@ -14,6 +14,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import org.bson.BSON;
@@ -22,6 +24,11 @@ import org.bson.types.Binary;
 
 public final class Util {
 
+  // Upper bound of interned paths, generated keys must not make it grow forever.
+  static final int PATH_CACHE_SIZE = 10000;
+
+  private static final ConcurrentMap<String, List<String>> PATHS = new ConcurrentHashMap<String, List<String>>();
+
   private Util() {
   }
 
@@ -133,6 +140,42 @@ public final class Util {
     return list;
   }
 
+  /**
+   * Same as {@link #split(String)}, but the path is parsed once : the returned list is unmodifiable and shared.
+   */
+  public static List<String> path(String key) {
+    List<String> path = PATHS.get(key);
+    if (path == null) {
+      path = Collections.unmodifiableList(split(key));
+      if (PATHS.size() < PATH_CACHE_SIZE) {
+        List<String> previous = PATHS.putIfAbsent(key, path);
+        if (previous != null) {
+          path = previous;
+        }
+      }
+    }
+    return path;
+  }
+
+  /**
+   * Canonical form of a number, for hashing : integral numbers become a Long, others a Double.
+   * So 1, 1L and 1.0 are equals once canonicalized. Other values are returned as is.
+   */
+  public static Object canonicalNumber(Object value) {
+    if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+      return ((Number) value).longValue();
+    }
+    if (value instanceof Number) {
+      double d = ((Number) value).doubleValue();
+      long l = (long) d;
+      if (l == d && l != Long.MAX_VALUE && l != Long.MIN_VALUE) {
+        return l;
+      }
+      return d;
+    }
+    return value;
+  }
+
   public static List<String> split(String key) {
     char dot = '.';
     int index = key.indexOf(dot);
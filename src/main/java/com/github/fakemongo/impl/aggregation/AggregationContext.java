@@ -0,0 +1,156 @@
+package com.github.fakemongo.impl.aggregation;
+
+import com.mongodb.CommandResult;
+import com.mongodb.DBObject;
+import com.mongodb.FongoDB;
+import com.mongodb.FongoDBCollection;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * State of one aggregation : its options and the memory limit of the blocking stages ($sort, $group).
+ * <p/>
+ * Like in MongoDB, a stage keeping more documents than the limit fails, unless the aggregation allows the use of the disk :
+ * the documents are then written in temporary files, deleted when the aggregation is closed.
+ */
+public class AggregationContext implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(AggregationContext.class);
+
+  /**
+   * Memory limit of a stage in MongoDB (100 Mb).
+   */
+  public static final long DEFAULT_MEMORY_LIMIT = 100L * 1024 * 1024;
+
+  private final FongoDB fongoDB;
+
+  private final boolean allowDiskUse;
+
+  private final long memoryLimit;
+
+  private final boolean profile;
+
+  private final List<Closeable> resources = new ArrayList<Closeable>();
+
+  public AggregationContext(FongoDB fongoDB, boolean allowDiskUse) {
+    this(fongoDB, allowDiskUse, DEFAULT_MEMORY_LIMIT, false);
+  }
+
+  public AggregationContext(FongoDB fongoDB, boolean allowDiskUse, long memoryLimit) {
+    this(fongoDB, allowDiskUse, memoryLimit, false);
+  }
+
+  /**
+   * @param fongoDB      database of the aggregation.
+   * @param allowDiskUse true if the blocking stages can write in temporary files.
+   * @param memoryLimit  bytes kept in memory by a blocking stage.
+   * @param profile      true to measure each stage.
+   */
+  public AggregationContext(FongoDB fongoDB, boolean allowDiskUse, long memoryLimit, boolean profile) {
+    this.fongoDB = fongoDB;
+    this.allowDiskUse = allowDiskUse;
+    this.memoryLimit = memoryLimit;
+    this.profile = profile;
+  }
+
+  public boolean isAllowDiskUse() {
+    return allowDiskUse;
+  }
+
+  public long getMemoryLimit() {
+    return memoryLimit;
+  }
+
+  /**
+   * @return true if the stages are measured : asked by the aggregation, or for the listener of the Fongo.
+   */
+  public boolean isProfile() {
+    return profile || getListener() != null;
+  }
+
+  public AggregationListener getListener() {
+    return fongoDB.getAggregationListener();
+  }
+
+  /**
+   * @return the collection of the database of the aggregation, null if it doesn't exist.
+   */
+  public FongoDBCollection getCollection(String name) {
+    return fongoDB.collectionExists(name) ? (FongoDBCollection) fongoDB.getCollection(name) : null;
+  }
+
+  /**
+   * @return the collection of the database of the aggregation, created if it doesn't exist.
+   */
+  public FongoDBCollection getOrCreateCollection(String name) {
+    return (FongoDBCollection) fongoDB.getCollection(name);
+  }
+
+  public CommandResult errorResult(int code, String err) {
+    return fongoDB.notOkErrorResult(code, err);
+  }
+
+  /**
+   * Keep a resource of a stage (like a temporary file) until the aggregation is closed.
+   */
+  synchronized void register(Closeable resource) {
+    resources.add(resource);
+  }
+
+  /**
+   * Release the resources of the stages : called once the documents are read, or when the aggregation fails or is
+   * dropped before its end.
+   */
+  @Override
+  public synchronized void close() {
+    for (Closeable resource : resources) {
+      try {
+        resource.close();
+      } catch (IOException e) {
+        LOG.warn("can't close {}", resource, e);
+      }
+    }
+    resources.clear();
+  }
+
+  /**
+   * Estimate the bytes used in memory by a value, to check the memory limit without walking the heap.
+   */
+  static long sizeOf(Object value) {
+    if (value == null) {
+      return 0;
+    }
+    if (value instanceof String) {
+      return 40 + 2L * ((String) value).length();
+    }
+    if (value instanceof DBObject && !(value instanceof List)) {
+      long size = 64;
+      for (String key : ((DBObject) value).keySet()) {
+        size += 40 + sizeOf(key) + sizeOf(((DBObject) value).get(key));
+      }
+      return size;
+    }
+    if (value instanceof List) {
+      long size = 40;
+      for (Object item : (List) value) {
+        size += 8 + sizeOf(item);
+      }
+      return size;
+    }
+    if (value instanceof Map) {
+      long size = 64;
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        size += 40 + sizeOf(entry.getKey()) + sizeOf(entry.getValue());
+      }
+      return size;
+    }
+    if (value instanceof byte[]) {
+      return 16 + ((byte[]) value).length;
+    }
+    return 24;
+  }
+}
@@ -0,0 +1,19 @@
+package com.github.fakemongo.impl.aggregation;
+
+import com.mongodb.DBObject;
+import java.util.List;
+
+/**
+ * Receive the profile of the aggregations of a {@link com.github.fakemongo.Fongo}.
+ */
+public interface AggregationListener {
+
+  /**
+   * Called when all the documents of an aggregation have been read.
+   *
+   * @param namespace the aggregated collection, like "db.collection".
+   * @param pipeline  the stages of the aggregation.
+   * @param profiles  a profile by stage, the first one for the documents read from the collection ($cursor).
+   */
+  void onAggregation(String namespace, List<DBObject> pipeline, List<StageProfile> profiles);
+}
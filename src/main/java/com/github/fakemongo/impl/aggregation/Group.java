@@ -1,17 +1,26 @@
 package com.github.fakemongo.impl.aggregation;
 
+import com.github.fakemongo.FongoException;
 import com.github.fakemongo.impl.Util;
 import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
-import com.mongodb.DBCollection;
-import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.FongoDBCollection;
+import java.math.BigDecimal;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.bson.util.annotations.ThreadSafe;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,29 +34,122 @@ public class Group extends PipelineKeyword {
 
   public static final Group INSTANCE = new Group();
 
-  static class Mapping {
-    private final DBObject key;
+  /**
+   * Number of documents grouped by a task when the group runs in parallel.
+   */
+  static final int CHUNK_SIZE = 8192;
 
-    private final DBCollection collection;
+  /**
+   * Number of temporary files for the groups over the memory limit.
+   */
+  static final int PARTITIONS = 16;
 
-    private final DBObject result;
+  private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+    private final AtomicInteger count = new AtomicInteger();
 
-    public Mapping(DBObject key, DBCollection collection, DBObject result) {
-      this.key = key;
-      this.collection = collection;
-      this.result = result;
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "fongo-group-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  };
+
+  /**
+   * The threads of the parallel groups, shared by all the aggregations : created with the first parallel group.
+   */
+  private static final class Executor {
+    private static final ExecutorService INSTANCE = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), THREAD_FACTORY);
+  }
+
+  /**
+   * An accumulated field of the group, like { total : { $sum : "$price" } }.
+   */
+  static class GroupField {
+    private final String name;
+
+    private final GroupKeyword keyword;
+
+    private final Object parameter;
+
+    GroupField(String name, GroupKeyword keyword, Object parameter) {
+      this.name = name;
+      this.keyword = keyword;
+      this.parameter = parameter;
     }
 
     @Override
     public String toString() {
-      return "Mapping{" +
-          "keyword=" + key +
-          ", collection=" + collection +
-          ", result=" + result +
+      return "GroupField{" +
+          "name=" + name +
+          ", keyword=" + keyword +
+          ", parameter=" + parameter +
           '}';
     }
   }
 
+  /**
+   * State of one group : its key and an accumulator by field.
+   */
+  static class GroupState {
+    private final DBObject key;
+
+    private final Accumulator[] accumulators;
+
+    private final long keySize;
+
+    GroupState(DBObject key, List<GroupField> fields) {
+      this.key = key;
+      this.keySize = AggregationContext.sizeOf(key);
+      this.accumulators = new Accumulator[fields.size()];
+      for (int i = 0; i < accumulators.length; i++) {
+        GroupField field = fields.get(i);
+        accumulators[i] = field.keyword.newAccumulator(field.parameter);
+      }
+    }
+
+    void accumulate(DBObject object) {
+      for (Accumulator accumulator : accumulators) {
+        accumulator.accumulate(object);
+      }
+    }
+
+    /**
+     * Merge the state of the same group computed on the next documents.
+     */
+    void merge(GroupState next) {
+      for (int i = 0; i < accumulators.length; i++) {
+        accumulators[i].merge(next.accumulators[i]);
+      }
+    }
+
+    /**
+     * @return estimation of the bytes used by the group.
+     */
+    long size() {
+      long size = keySize;
+      for (Accumulator accumulator : accumulators) {
+        size += accumulator.size();
+      }
+      return size;
+    }
+
+    DBObject result(List<GroupField> fields) {
+      DBObject result = Util.clone(key);
+      for (int i = 0; i < accumulators.length; i++) {
+        GroupField field = fields.get(i);
+        Object value = accumulators[i].result();
+        if (value != null || field.keyword.isCanReturnNull()) {
+          LOG.debug("_id:{}, keyword:{}, result:{}", key, field.name, value);
+          result.put(field.name, value);
+        } else {
+          LOG.warn("result is null for entry {}", field);
+        }
+      }
+      return result;
+    }
+  }
+
   private Group() {
   }
 
@@ -55,50 +157,50 @@ public class Group extends PipelineKeyword {
   static enum GroupKeyword {
     MIN("$min") {
       @Override
-      Object work(DBCollection coll, Object keywordParameter) {
-        return minmax(coll, keywordParameter, 1);
+      Accumulator newAccumulator(Object keywordParameter) {
+        return new MinMaxAccumulator(keywordParameter, 1);
       }
     },
     MAX("$max") {
       @Override
-      Object work(DBCollection coll, Object keywordParameter) {
-        return minmax(coll, keywordParameter, -1);
+      Accumulator newAccumulator(Object keywordParameter) {
+        return new MinMaxAccumulator(keywordParameter, -1);
       }
     },
     FIRST("$first", true) {
       @Override
-      Object work(DBCollection coll, Object keywordParameter) {
-        return firstlast(coll, keywordParameter, true);
+      Accumulator newAccumulator(Object keywordParameter) {
+        return new FirstLastAccumulator(keywordParameter, true);
       }
     },
     LAST("$last", true) {
       @Override
-      Object work(DBCollection coll, Object keywordParameter) {
-        return firstlast(coll, keywordParameter, false);
+      Accumulator newAccumulator(Object keywordParameter) {
+        return new FirstLastAccumulator(keywordParameter, false);
       }
     },
     AVG("$avg") {
       @Override
-      Object work(DBCollection coll, Object keywordParameter) {
-        return avg(coll, keywordParameter);
+      Accumulator newAccumulator(Object keywordParameter) {
+        return new AvgAccumulator(keywordParameter);
       }
     },
     SUM("$sum") {
       @Override
-      Object work(DBCollection coll, Object keywordParameter) {
-        return sum(coll, keywordParameter);
+      Accumulator newAccumulator(Object keywordParameter) {
+        return new SumAccumulator(keywordParameter);
       }
     },
     PUSH("$push") {
       @Override
-      Object work(DBCollection coll, Object keywordParameter) {
-        return pushAddToSet(coll, keywordParameter, false);
+      Accumulator newAccumulator(Object keywordParameter) {
+        return new PushAccumulator(keywordParameter, false);
       }
     },
     ADD_TO_SET("$addToSet") {
       @Override
-      Object work(DBCollection coll, Object keywordParameter) {
-        return pushAddToSet(coll, keywordParameter, true);
+      Accumulator newAccumulator(Object keywordParameter) {
+        return new PushAccumulator(keywordParameter, true);
       }
     };
 
@@ -115,11 +217,11 @@ public class Group extends PipelineKeyword {
       this.canReturnNull = canReturnNull;
     }
 
-    abstract Object work(DBCollection coll, Object keywordParameter);
-
-    public Object apply(DBCollection coll, DBObject parameter) {
-      return work(coll, parameter.get(keyword));
-    }
+    /**
+     * @param keywordParameter parameter of the keyword, like "$price" in { $sum : "$price" }.
+     * @return a new state for one group.
+     */
+    abstract Accumulator newAccumulator(Object keywordParameter);
 
     public boolean canApply(DBObject parameter) {
       return parameter.containsField(keyword);
@@ -130,79 +232,310 @@ public class Group extends PipelineKeyword {
     }
   }
 
-  public DBCollection apply(DBCollection coll, DBObject object) {
+  /**
+   * Group the documents in one pass : each document goes into the state of its group.
+   * <p/>
+   * When the input is bigger than a chunk, each chunk is grouped in parallel and the partial groups are merged in order.
+   */
+  @Override
+  public Iterator<DBObject> apply(AggregationContext context, Iterator<DBObject> input, DBObject object) {
     DBObject group = (DBObject) object.get(getKeyword());
 
-    Object id = ((DBObject) object.get(getKeyword())).removeField(FongoDBCollection.ID_KEY);
+    Object id = group.get(FongoDBCollection.ID_KEY);
     LOG.debug("group() for _id : {}", id);
-    // Try to group in the mapping.
-    Map<DBObject, Mapping> mapping = createMapping(coll, id);
+    List<GroupField> fields = groupFields(group);
 
-    //noinspection unchecked
-    for (Map.Entry<String, Object> entry : ((Set<Map.Entry<String, Object>>) group.toMap().entrySet())) {
-      String key = entry.getKey();
-      Object value = entry.getValue();
-      if (value instanceof DBObject) {
-        DBObject objectValue = (DBObject) value;
-        for (Map.Entry<DBObject, Mapping> entryMapping : mapping.entrySet()) {
-          DBCollection workColl = entryMapping.getValue().collection;
-          for (GroupKeyword keyword : GroupKeyword.values()) {
-            if (keyword.canApply(objectValue)) {
-              Object result = keyword.apply(workColl, objectValue);
-              if (result != null || keyword.isCanReturnNull()) {
-                LOG.debug("_id:{}, keyword:{}, result:{}", entryMapping.getKey(), key, result);
-                entryMapping.getValue().result.put(key, result);
-              } else {
-                LOG.warn("result is null for entry {}", entry);
-              }
-              break;
+    return new Grouping(context, id, fields, 0).group(input);
+  }
+
+  private static void accumulate(Map<Object, GroupState> states, Object id, List<GroupField> fields, Iterator<DBObject> input) {
+    while (input.hasNext()) {
+      DBObject dbObject = input.next();
+      DBObject key = keyForId(id, dbObject);
+      Object hashKey = hashKey(key.get(FongoDBCollection.ID_KEY));
+      GroupState state = states.get(hashKey);
+      if (state == null) {
+        state = new GroupState(key, fields);
+        states.put(hashKey, state);
+        LOG.trace("group() new key : {}", key);
+      }
+      state.accumulate(dbObject);
+    }
+  }
+
+  private static List<DBObject> nextChunk(Iterator<DBObject> input) {
+    List<DBObject> chunk = new ArrayList<DBObject>(CHUNK_SIZE);
+    while (chunk.size() < CHUNK_SIZE && input.hasNext()) {
+      chunk.add(input.next());
+    }
+    return chunk;
+  }
+
+  /**
+   * A chunk of documents, grouped by a task.
+   */
+  private static class Partial {
+    private final List<DBObject> documents;
+
+    private final Future<Map<Object, GroupState>> states;
+
+    Partial(List<DBObject> documents, Future<Map<Object, GroupState>> states) {
+      this.documents = documents;
+      this.states = states;
+    }
+  }
+
+  /**
+   * The groups of one $group stage.
+   * <p/>
+   * Over the memory limit of the aggregation (with allowDiskUse), the groups in memory are still accumulated but the
+   * documents of the new groups are written in temporary files, by hash partition. Each partition is grouped after
+   * the groups in memory : all the documents of a group are in the same partition, in input order.
+   */
+  private static class Grouping {
+    private final AggregationContext context;
+
+    private final Object id;
+
+    private final List<GroupField> fields;
+
+    /**
+     * 0 for the input of the stage, 1 for a partition of the input...
+     */
+    private final int depth;
+
+    private final Map<Object, GroupState> states = new LinkedHashMap<Object, GroupState>();
+
+    private long memory;
+
+    private SpillFile[] partitions;
+
+    Grouping(AggregationContext context, Object id, List<GroupField> fields, int depth) {
+      this.context = context;
+      this.id = id;
+      this.fields = fields;
+      this.depth = depth;
+    }
+
+    Iterator<DBObject> group(Iterator<DBObject> input) {
+      List<DBObject> chunk = nextChunk(input);
+      if (!input.hasNext()) {
+        for (DBObject dbObject : chunk) {
+          accumulate(dbObject);
+        }
+      } else {
+        parallelGroup(chunk, input, Runtime.getRuntime().availableProcessors());
+      }
+      return results();
+    }
+
+    private void accumulate(DBObject dbObject) {
+      DBObject key = keyForId(id, dbObject);
+      Object hashKey = hashKey(key.get(FongoDBCollection.ID_KEY));
+      GroupState state = states.get(hashKey);
+      if (state == null) {
+        if (partitions != null) {
+          spill(hashKey, dbObject);
+          return;
+        }
+        state = new GroupState(key, fields);
+        states.put(hashKey, state);
+        memory += state.size();
+        LOG.trace("group() new key : {}", key);
+      }
+      long size = state.size();
+      state.accumulate(dbObject);
+      memory += state.size() - size;
+      checkMemory();
+    }
+
+    /**
+     * Group each chunk in a task while the input is read, and merge the partial groups in the order of the chunks,
+     * so $first, $last, $push and the order of the groups are the same than in a sequential group.
+     */
+    private void parallelGroup(List<DBObject> chunk, Iterator<DBObject> input, int threads) {
+      LinkedList<Partial> partials = new LinkedList<Partial>();
+      try {
+        int chunks = 0;
+        while (!chunk.isEmpty()) {
+          final List<DBObject> documents = chunk;
+          partials.add(new Partial(documents, Executor.INSTANCE.submit(new Callable<Map<Object, GroupState>>() {
+            @Override
+            public Map<Object, GroupState> call() {
+              Map<Object, GroupState> states = new LinkedHashMap<Object, GroupState>();
+              Group.accumulate(states, id, fields, documents.iterator());
+              return states;
             }
+          })));
+          chunks++;
+          // Don't keep all the chunks in memory.
+          if (partials.size() > 2 * threads) {
+            merge(partials.removeFirst());
+          }
+          chunk = nextChunk(input);
+        }
+        while (!partials.isEmpty()) {
+          merge(partials.removeFirst());
+        }
+        LOG.debug("group() in {} chunks", chunks);
+      } finally {
+        // On error, the pending chunks are not grouped.
+        for (Partial partial : partials) {
+          partial.states.cancel(true);
+        }
+      }
+    }
+
+    private void merge(Partial partial) {
+      boolean spill = false;
+      for (Map.Entry<Object, GroupState> entry : getPartial(partial.states).entrySet()) {
+        GroupState state = states.get(entry.getKey());
+        if (state == null) {
+          if (partitions != null) {
+            spill = true;
+          } else {
+            states.put(entry.getKey(), entry.getValue());
+            memory += entry.getValue().size();
+          }
+        } else {
+          long size = state.size();
+          state.merge(entry.getValue());
+          memory += state.size() - size;
+        }
+      }
+      if (spill) {
+        // The new groups of the chunk are written with their documents.
+        for (DBObject dbObject : partial.documents) {
+          Object hashKey = hashKey(keyForId(id, dbObject).get(FongoDBCollection.ID_KEY));
+          if (!states.containsKey(hashKey)) {
+            spill(hashKey, dbObject);
           }
         }
       }
+      checkMemory();
+    }
+
+    private void checkMemory() {
+      if (partitions == null && memory > context.getMemoryLimit()) {
+        if (!context.isAllowDiskUse()) {
+          context.errorResult(16945, "exception: Exceeded memory limit for $group, but didn't allow external sort. Pass allowDiskUse:true to opt in.").throwOnError();
+        }
+        LOG.debug("group() : {} groups over the memory limit, spill the next groups", states.size());
+        partitions = new SpillFile[PARTITIONS];
+      }
     }
 
-    coll = dropAndInsert(coll, new ArrayList<DBObject>());
+    private void spill(Object hashKey, DBObject dbObject) {
+      int partition = partition(hashKey);
+      if (partitions[partition] == null) {
+        partitions[partition] = new SpillFile(context, "group");
+      }
+      partitions[partition].write(dbObject);
+    }
 
-    // Extract from mapping to do the result.
-    for (Map.Entry<DBObject, Mapping> entry : mapping.entrySet()) {
-      coll.insert(entry.getValue().result);
-      entry.getValue().collection.drop();
+    /**
+     * The hash is mixed with the depth : a partition over the memory limit is split differently.
+     */
+    private int partition(Object hashKey) {
+      int hash = (hashKey == null ? 0 : hashKey.hashCode()) + depth * 0x9e3779b9;
+      hash ^= hash >>> 16;
+      hash *= 0x85ebca6b;
+      hash ^= hash >>> 13;
+      return (hash & Integer.MAX_VALUE) % PARTITIONS;
     }
 
-    if (LOG.isDebugEnabled()) {
-      LOG.debug("group() : {} result : {}", object, coll.find().toArray());
+    private Iterator<DBObject> results() {
+      if (partitions == null) {
+        List<DBObject> objects = new ArrayList<DBObject>(states.size());
+        for (GroupState state : states.values()) {
+          objects.add(state.result(fields));
+        }
+        LOG.debug("group() for _id {} : {}", id, objects);
+        return objects.iterator();
+      }
+      final Iterator<GroupState> inMemory = states.values().iterator();
+      return new StreamIterator() {
+        private Iterator<DBObject> current = null;
+        private int partition = 0;
+
+        @Override
+        protected DBObject computeNext() {
+          if (inMemory.hasNext()) {
+            return inMemory.next().result(fields);
+          }
+          while (current == null || !current.hasNext()) {
+            if (partition == partitions.length) {
+              return null;
+            }
+            SpillFile file = partitions[partition++];
+            if (file != null) {
+              LOG.debug("group() : read {}", file);
+              current = new Grouping(context, id, fields, depth + 1).group(file.read());
+            }
+          }
+          return current.next();
+        }
+      };
+    }
+  }
+
+  private static Map<Object, GroupState> getPartial(Future<Map<Object, GroupState>> partial) {
+    try {
+      return partial.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new FongoException("group() interrupted", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw new FongoException("group() failed", e.getCause());
     }
-    return coll;
   }
 
   /**
-   * Create mapping. Group result with a 'keyword'.
-   *
-   * @param coll collection to be mapped
-   * @param id   id of the group
-   * @return a (Criteria, Mapping) for the id.
+   * Find the accumulators of the group, in order.
    */
-  private Map<DBObject, Mapping> createMapping(DBCollection coll, Object id) {
-    Map<DBObject, Mapping> mapping = new HashMap<DBObject, Mapping>();
-    List<DBObject> objects = coll.find().toArray();
-    for (DBObject dbObject : objects) {
-      DBObject criteria = criteriaForId(id, dbObject);
-      if (!mapping.containsKey(criteria)) {
-        // Return all object we can group
-        List<DBObject> newCollection = coll.find(criteria).toArray();
-        // Delete them from collection (optim for laaaaaarge collection)
-        for (DBObject o : newCollection) {
-          coll.remove(new BasicDBObject(FongoDBCollection.ID_KEY, o.get(FongoDBCollection.ID_KEY)));
+  private static List<GroupField> groupFields(DBObject group) {
+    List<GroupField> fields = new ArrayList<GroupField>();
+    for (Map.Entry<String, Object> entry : Util.entrySet(group)) {
+      String key = entry.getKey();
+      Object value = entry.getValue();
+      if (!FongoDBCollection.ID_KEY.equals(key) && value instanceof DBObject) {
+        DBObject objectValue = (DBObject) value;
+        for (GroupKeyword keyword : GroupKeyword.values()) {
+          if (keyword.canApply(objectValue)) {
+            fields.add(new GroupField(key, keyword, objectValue.get(keyword.keyword)));
+            break;
+          }
         }
-        // Generate keyword
-        DBObject key = keyForId(id, dbObject);
-        // Save into mapping
-        mapping.put(criteria, new Mapping(key, createAndInsert(newCollection), Util.clone(key)));
-        LOG.trace("createMapping() new criteria : {}", criteria);
       }
     }
-    return mapping;
+    return fields;
+  }
+
+  /**
+   * Key for hashing a group : numbers are canonicalized, so 1 and 1.0 fall in the same group.
+   */
+  private static Object hashKey(Object value) {
+    if (value instanceof List) {
+      BasicDBList list = new BasicDBList();
+      for (Object item : (List) value) {
+        list.add(hashKey(item));
+      }
+      return list;
+    }
+    if (value instanceof DBObject) {
+      DBObject dbObject = new BasicDBObject();
+      for (String key : ((DBObject) value).keySet()) {
+        dbObject.put(key, hashKey(((DBObject) value).get(key)));
+      }
+      return dbObject;
+    }
+    return Util.canonicalNumber(value);
   }
 
   /**
@@ -213,7 +546,7 @@ public class Group extends PipelineKeyword {
    * @return
    */
 
-  private DBObject keyForId(Object id, DBObject dbObject) {
+  private static DBObject keyForId(Object id, DBObject dbObject) {
     DBObject result = new BasicDBObject();
     if (id instanceof DBObject) {
       //ex: { "state" : "$state" , "city" : "$city"}
@@ -233,21 +566,6 @@ public class Group extends PipelineKeyword {
     return result;
   }
 
-  private DBObject criteriaForId(Object id, DBObject dbObject) {
-    DBObject result = new BasicDBObject();
-    if (id instanceof DBObject) {
-      //noinspection unchecked
-      for (Map.Entry<String, Object> entry : (Set<Map.Entry<String, Object>>) ((DBObject) id).toMap().entrySet()) {
-        result.put(entry.getKey(), Util.extractField(dbObject, fieldName(entry.getValue()))); // TODO : hierarchical, like "state" : {bar:"$foo"}
-      }
-    } else if (id != null) {
-      String field = fieldName(id);
-      result.put(field, Util.extractField(dbObject, field));
-    }
-    LOG.debug("criteriaForId() id:{}, dbObject:{}, result:{}", id, dbObject, result);
-    return result;
-  }
-
   private static String fieldName(Object name) {
     String field = name.toString();
     if (name instanceof String) {
@@ -258,42 +576,87 @@ public class Group extends PipelineKeyword {
     return field;
   }
 
+  /**
+   * State of an accumulator ($sum, $avg...) for one group, fed with the documents of the group one by one.
+   */
+  abstract static class Accumulator {
+    /**
+     * Field to accumulate, null if the parameter is not a field.
+     */
+    final String field;
+
+    Accumulator(Object value) {
+      this.field = value.toString().startsWith("$") ? value.toString().substring(1) : null;
+    }
+
+    abstract void accumulate(DBObject object);
+
+    /**
+     * Merge the accumulator of the same group, computed on the next documents.
+     *
+     * @param next an accumulator of the same class and parameter.
+     */
+    abstract void merge(Accumulator next);
+
+    /**
+     * @return the value of the group for this accumulator.
+     */
+    abstract Object result();
+
+    /**
+     * @return estimation of the bytes used by the accumulator.
+     */
+    long size() {
+      return 32;
+    }
+  }
+
   /**
    * {@see http://docs.mongodb.org/manual/reference/aggregation/sum/#grp._S_sum}
-   *
-   * @param coll
-   * @param value
-   * @return
    */
-  private static Object sum(DBCollection coll, Object value) {
-    Number result = null;
-    if (value.toString().startsWith("$")) {
-      String field = value.toString().substring(1);
-      List<DBObject> objects = coll.find(null, new BasicDBObject(field, 1).append(FongoDBCollection.ID_KEY, 0)).toArray();
-      for (DBObject object : objects) {
-        if (Util.containsField(object, field)) {
-          if (result == null) {
-            result = Util.extractField(object, field);
-          } else {
-            Number other = Util.extractField(object, field);
-            result = addWithSameType(result, other);
-          }
-        }
+  static class SumAccumulator extends Accumulator {
+    private final Object value;
+    private final ExactSum sum = new ExactSum();
+    private long count;
+
+    SumAccumulator(Object value) {
+      super(value);
+      this.value = value;
+    }
+
+    @Override
+    void accumulate(DBObject object) {
+      if (field == null) {
+        count++;
+      } else if (Util.containsField(object, field)) {
+        sum.add(Util.extractField(object, field));
+      }
+    }
+
+    @Override
+    void merge(Accumulator next) {
+      SumAccumulator other = (SumAccumulator) next;
+      sum.merge(other.sum);
+      count += other.count;
+    }
+
+    @Override
+    Object result() {
+      if (field != null) {
+        return sum.result();
       }
-    } else {
       Number iValue = (Number) value;
       // TODO : handle null value ?
       if (iValue instanceof Float || iValue instanceof Double) {
-        result = coll.count() * iValue.doubleValue();
+        return count * iValue.doubleValue();
       } else if (iValue instanceof Byte || iValue instanceof Short || iValue instanceof Integer) {
-        result = intOrLong(coll.count() * iValue.longValue());
+        return intOrLong(count * iValue.longValue());
       } else if (iValue instanceof Long) {
-        result = coll.count() * iValue.longValue();
-      } else {
-        LOG.warn("type of field not handled for sum: {}", result.getClass());
+        return count * iValue.longValue();
       }
+      LOG.warn("type of field not handled for sum: {}", iValue.getClass());
+      return null;
     }
-    return result;
   }
 
   /**
@@ -312,146 +675,269 @@ public class Group extends PipelineKeyword {
 
   /**
    * {@see http://docs.mongodb.org/manual/reference/aggregation/avg/#grp._S_avg}
-   *
-   * @param coll  grouped collection to make the avg
-   * @param value field to be averaged.
-   * @return the average of the collection.
+   * <p/>
+   * Always return a double.
    */
-  private static Double avg(DBCollection coll, Object value) {
-    Number result = null;
-    long count = 1;
-    if (value.toString().startsWith("$")) {
-      String field = value.toString().substring(1);
-      List<DBObject> objects = coll.find(null, new BasicDBObject(field, 1).append(FongoDBCollection.ID_KEY, 0)).toArray();
-      for (DBObject object : objects) {
-        LOG.debug("avg object {} ", object);
-
-        if (Util.containsField(object, field)) {
-          if (result == null) {
-            result = Util.extractField(object, field);
-          } else {
-            count++;
-            Number other = Util.extractField(object, field);
-            result = addWithSameType(result, other);
-          }
-        }
+  static class AvgAccumulator extends Accumulator {
+    private final ExactSum sum = new ExactSum();
+
+    AvgAccumulator(Object value) {
+      super(value);
+      if (field == null) {
+        LOG.error("Sorry, doesn't know what to do...");
       }
-    } else {
-      LOG.error("Sorry, doesn't know what to do...");
-      return null;
     }
-    // Always return double.
-    return result == null ? null : (result.doubleValue() / (double) count);
+
+    @Override
+    void accumulate(DBObject object) {
+      if (field != null && Util.containsField(object, field)) {
+        sum.add(Util.extractField(object, field));
+      }
+    }
+
+    @Override
+    void merge(Accumulator next) {
+      sum.merge(((AvgAccumulator) next).sum);
+    }
+
+    @Override
+    Object result() {
+      return sum.count == 0 ? null : sum.doubleValue() / (double) sum.count;
+    }
   }
 
   /**
-   * Return the first or the last of a collection.
-   *
-   * @param coll  collection who contains data.
-   * @param value fieldname for searching.
-   * @return
+   * Return the first or the last value of a group.
    */
-  private static Object firstlast(DBCollection coll, Object value, boolean first) {
-    LOG.debug("first({})/last({}) on {}", first, !first, value);
-    Object result = null;
-    if (value.toString().startsWith("$")) {
-      String field = value.toString().substring(1);
-      DBCursor cursor = coll.find();
-      while (cursor.hasNext()) {
-        result = Util.extractField(cursor.next(), field);
-        if (first) {
-          break;
-        }
+  static class FirstLastAccumulator extends Accumulator {
+    private final boolean first;
+    private boolean found;
+    private Object result;
+
+    FirstLastAccumulator(Object value, boolean first) {
+      super(value);
+      this.first = first;
+      if (field == null) {
+        LOG.error("Sorry, doesn't know what to do...");
       }
-    } else {
-      LOG.error("Sorry, doesn't know what to do...");
     }
 
-    LOG.debug("first({})/last({}) on {}, result : {}", first, !first, value, result);
-    return result;
+    @Override
+    void accumulate(DBObject object) {
+      if (field != null && !(first && found)) {
+        result = Util.extractField(object, field);
+        found = true;
+      }
+    }
+
+    @Override
+    void merge(Accumulator next) {
+      FirstLastAccumulator other = (FirstLastAccumulator) next;
+      if (other.found && !(first && found)) {
+        result = other.result;
+        found = true;
+      }
+    }
+
+    @Override
+    Object result() {
+      return result;
+    }
   }
 
   /**
-   * Return the first or the last of a collection.
-   *
-   * @param coll
-   * @param value fieldname for searching.
-   * @return
+   * Return all the values of a group, unique values if uniqueness.
    */
-  private static BasicDBList pushAddToSet(DBCollection coll, Object value, boolean uniqueness) {
-    LOG.debug("pushAddToSet() on {}", value);
-    BasicDBList result = null;
-    if (value.toString().startsWith("$")) {
-      result = new BasicDBList();
-      String field = value.toString().substring(1);
-      DBCursor cursor = coll.find();
-      while (cursor.hasNext()) {
-        Object fieldValue = Util.extractField(cursor.next(), field);
-        if (!uniqueness || !result.contains(fieldValue)) {
-          result.add(fieldValue);
+  static class PushAccumulator extends Accumulator {
+    private final boolean uniqueness;
+    private final BasicDBList result;
+    private long size = 40;
+
+    PushAccumulator(Object value, boolean uniqueness) {
+      super(value);
+      this.uniqueness = uniqueness;
+      if (field == null) {
+        LOG.error("Sorry, doesn't know what to do...");
+        result = null;
+      } else {
+        result = new BasicDBList();
+      }
+    }
+
+    @Override
+    void accumulate(DBObject object) {
+      if (field != null) {
+        add(Util.extractField(object, field));
+      }
+    }
+
+    @Override
+    void merge(Accumulator next) {
+      if (field != null) {
+        for (Object fieldValue : ((PushAccumulator) next).result) {
+          add(fieldValue);
         }
       }
-    } else {
-      LOG.error("Sorry, doesn't know what to do...");
     }
 
-    LOG.debug("pushAddToSet() on {}, result : {}", value, result);
-    return result;
+    private void add(Object fieldValue) {
+      if (!uniqueness || !result.contains(fieldValue)) {
+        result.add(fieldValue);
+        size += 8 + AggregationContext.sizeOf(fieldValue);
+      }
+    }
+
+    @Override
+    long size() {
+      return size;
+    }
+
+    @Override
+    Object result() {
+      return result;
+    }
   }
 
   /**
-   * Return the min or the max of a collection.
-   *
-   * @param coll
-   * @param value
-   * @param valueComparable 0 for equals, -1 for min, +1 for max
-   * @return
+   * Return the min or the max value of a group.
    */
-  private static Object minmax(DBCollection coll, Object value, int valueComparable) {
-    if (value.toString().startsWith("$")) {
-      String field = value.toString().substring(1);
-      DBCursor cursor = coll.find();
-      Comparable comparable = null;
-      while (cursor.hasNext()) {
-        DBObject object = cursor.next();
-        if (Util.containsField(object, field)) {
-          if (comparable == null) {
-            comparable = Util.extractField(object, field);
-          } else {
-            Comparable other = Util.extractField(object, field);
-            if (comparable.compareTo(other) == valueComparable) {
-              comparable = other;
-            }
-          }
-        }
+  static class MinMaxAccumulator extends Accumulator {
+    // 1 for min, -1 for max
+    private final int valueComparable;
+    private Comparable comparable;
+
+    MinMaxAccumulator(Object value, int valueComparable) {
+      super(value);
+      this.valueComparable = valueComparable;
+      if (field == null) {
+        LOG.error("Sorry, doesn't know what to do...");
+      }
+    }
+
+    @Override
+    void accumulate(DBObject object) {
+      if (field != null && Util.containsField(object, field)) {
+        keep((Comparable) Util.extractField(object, field));
+      }
+    }
+
+    @Override
+    void merge(Accumulator next) {
+      Comparable other = ((MinMaxAccumulator) next).comparable;
+      if (other != null) {
+        keep(other);
       }
+    }
+
+    private void keep(Comparable other) {
+      if (comparable == null) {
+        comparable = other;
+      } else if (comparable.compareTo(other) == valueComparable) {
+        comparable = other;
+      }
+    }
+
+    @Override
+    Object result() {
       return comparable;
-    } else {
-      LOG.error("Sorry, doesn't know what to do...");
     }
-    return null;
   }
 
   /**
-   * Add two number in the same type.
-   *
-   * @param result
-   * @param other
-   * @return
+   * Exact sum of numbers, whatever their order : the result is an int while the sum fits, a long if a value is a long
+   * or if the sum doesn't fit an int, and a double if a value is a double.
+   * <p/>
+   * The integers are added in a long, the doubles and the overflows of the long in a BigDecimal.
    */
-  private static Number addWithSameType(Number result, Number other) {
-    if (result instanceof Float) {
-      result = Float.valueOf(result.floatValue() + other.floatValue());
-    } else if (result instanceof Double) {
-      result = Double.valueOf(result.doubleValue() + other.doubleValue());
-    } else if (result instanceof Integer) {
-      result = Integer.valueOf(result.intValue() + other.intValue());
-    } else if (result instanceof Long) {
-      result = Long.valueOf(result.longValue() + other.longValue());
-    } else {
-      LOG.warn("type of field not handled for sum : {}", result.getClass());
+  static final class ExactSum {
+    private static final int INT = 1;
+    private static final int LONG = 2;
+    private static final int DOUBLE = 3;
+
+    private int type;
+    private long count;
+    private long longSum;
+    private BigDecimal decimalSum;
+    /**
+     * Sum of the infinite values and NaN, not held by a BigDecimal.
+     */
+    private Double nonFiniteSum;
+
+    void add(Object value) {
+      if (value instanceof Double || value instanceof Float) {
+        type = DOUBLE;
+        double d = ((Number) value).doubleValue();
+        if (Double.isNaN(d) || Double.isInfinite(d)) {
+          nonFiniteSum = nonFiniteSum == null ? d : nonFiniteSum + d;
+        } else if (d == Math.rint(d) && Math.abs(d) < (double) (1L << 53)) {
+          addLong((long) d);
+        } else {
+          addDecimal(new BigDecimal(d));
+        }
+      } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+        type = Math.max(type, INT);
+        addLong(((Number) value).longValue());
+      } else if (value instanceof Long) {
+        type = Math.max(type, LONG);
+        addLong((Long) value);
+      } else {
+        if (value != null) {
+          LOG.warn("type of field not handled for sum : {}", value.getClass());
+        }
+        return;
+      }
+      count++;
+    }
+
+    void merge(ExactSum other) {
+      type = Math.max(type, other.type);
+      count += other.count;
+      addLong(other.longSum);
+      if (other.decimalSum != null) {
+        addDecimal(other.decimalSum);
+      }
+      if (other.nonFiniteSum != null) {
+        nonFiniteSum = nonFiniteSum == null ? other.nonFiniteSum : nonFiniteSum + other.nonFiniteSum;
+      }
+    }
+
+    private void addLong(long value) {
+      long sum = longSum + value;
+      if (((longSum ^ sum) & (value ^ sum)) < 0) {
+        // Overflow.
+        addDecimal(BigDecimal.valueOf(value));
+      } else {
+        longSum = sum;
+      }
+    }
+
+    private void addDecimal(BigDecimal value) {
+      decimalSum = decimalSum == null ? value : decimalSum.add(value);
+    }
+
+    double doubleValue() {
+      if (nonFiniteSum != null) {
+        return nonFiniteSum;
+      }
+      return decimalSum == null ? (double) longSum : decimalSum.add(BigDecimal.valueOf(longSum)).doubleValue();
+    }
+
+    /**
+     * @return the sum, null without numbers.
+     */
+    Number result() {
+      if (type == 0) {
+        return null;
+      }
+      if (type == DOUBLE) {
+        return doubleValue();
+      }
+      if (decimalSum != null) {
+        BigDecimal sum = decimalSum.add(BigDecimal.valueOf(longSum));
+        return sum.toBigInteger().bitLength() < 64 ? (Number) sum.longValue() : (Number) sum.doubleValue();
+      }
+      return type == INT ? intOrLong(longSum) : (Number) longSum;
     }
-    return result;
   }
 
 // --Commented out by Inspection START (05/11/13 12:10):
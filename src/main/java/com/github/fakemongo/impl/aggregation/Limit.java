@@ -1,8 +1,7 @@
 package com.github.fakemongo.impl.aggregation;
 
-import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
-import java.util.List;
+import java.util.Iterator;
 import org.bson.util.annotations.ThreadSafe;
 
 /**
@@ -17,14 +16,30 @@ public class Limit extends PipelineKeyword {
   }
 
   /**
-   * @param coll
+   * @param input
    * @param object
    * @return
    */
   @Override
-  public DBCollection apply(DBCollection coll, DBObject object) {
-    List<DBObject> objects = coll.find().limit(((Number) object.get(getKeyword())).intValue()).toArray();
-    return dropAndInsert(coll, objects);
+  public Iterator<DBObject> apply(AggregationContext context, final Iterator<DBObject> input, DBObject object) {
+    final int limit = Math.abs(((Number) object.get(getKeyword())).intValue());
+    if (limit == 0) {
+      // Like find().limit(0).
+      return input;
+    }
+    return new StreamIterator() {
+      private int count = 0;
+
+      @Override
+      protected DBObject computeNext() {
+        // Stop pulling from the previous stages once the limit is reached.
+        if (count >= limit || !input.hasNext()) {
+          return null;
+        }
+        count++;
+        return input.next();
+      }
+    };
   }
 
   @Override
@@ -0,0 +1,330 @@
+package com.github.fakemongo.impl.aggregation;
+
+import com.github.fakemongo.impl.Util;
+import com.github.fakemongo.impl.index.IndexAbstract;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.FongoDBCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import org.bson.util.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@see https://docs.mongodb.org/manual/reference/operator/aggregation/lookup/}
+ * <p/>
+ * Left outer join with a collection of the same database. The foreign documents are read once, in a hash table on their
+ * join key ; when the foreign field has its own index, the index is probed for each document instead.
+ */
+@ThreadSafe
+public class Lookup extends PipelineKeyword {
+  private static final Logger LOG = LoggerFactory.getLogger(Lookup.class);
+
+  public static final Lookup INSTANCE = new Lookup();
+
+  private static final List<String> PARAMETERS = Arrays.asList("from", "localField", "foreignField", "as");
+
+  private Lookup() {
+  }
+
+  /**
+   * The foreign documents matching the local field, like a find({ foreignField : localValue }) ; when the local
+   * field is an array, the documents matching one of its values.
+   */
+  abstract static class Join {
+    abstract BasicDBList match(Object localValue);
+  }
+
+  /**
+   * Hash table of the foreign documents by the value of their join key (each value for an array).
+   */
+  static class HashJoin extends Join {
+    private final Map<Object, List<DBObject>> documentsByKey = new HashMap<Object, List<DBObject>>();
+
+    HashJoin(FongoDBCollection from, String foreignField) {
+      if (from == null) {
+        return;
+      }
+      Project.FieldExpression foreign = new Project.FieldExpression(foreignField);
+      Iterator<DBObject> documents = from.find().iterator();
+      while (documents.hasNext()) {
+        DBObject document = documents.next();
+        for (Object key : keys(foreign.evaluate(document))) {
+          List<DBObject> matches = documentsByKey.get(key);
+          if (matches == null) {
+            matches = new ArrayList<DBObject>(1);
+            documentsByKey.put(key, matches);
+          }
+          matches.add(document);
+        }
+      }
+    }
+
+    @Override
+    BasicDBList match(Object localValue) {
+      BasicDBList result = new BasicDBList();
+      if (!(localValue instanceof List)) {
+        List<DBObject> matches = documentsByKey.get(key(localValue));
+        if (matches != null) {
+          result.addAll(matches);
+        }
+        return result;
+      }
+      Set<DBObject> found = Collections.newSetFromMap(new IdentityHashMap<DBObject, Boolean>());
+      for (Object value : (List<?>) localValue) {
+        List<DBObject> matches = documentsByKey.get(key(value));
+        if (matches != null) {
+          for (DBObject match : matches) {
+            if (found.add(match)) {
+              result.add(match);
+            }
+          }
+        }
+      }
+      return result;
+    }
+
+    private static Set<Object> keys(Object value) {
+      if (!(value instanceof List)) {
+        return Collections.singleton(key(value));
+      }
+      // A document matches once, whatever the number of its values equal to the key.
+      Set<Object> keys = new LinkedHashSet<Object>();
+      for (Object item : (List<?>) value) {
+        keys.add(key(item));
+      }
+      return keys;
+    }
+  }
+
+  /**
+   * Query of the foreign collection for each document, run by the index of the foreign field.
+   * <p/>
+   * The index doesn't hold the documents without the foreign field : the documents matching null are read once, when
+   * first needed. A document or a regular expression would be read as operators by a query : these values are matched
+   * by a hash table of the foreign documents, built when first needed.
+   */
+  static class IndexJoin extends Join {
+    private final FongoDBCollection from;
+    private final String foreignField;
+    private List<DBObject> nullMatches;
+    private HashJoin hashJoin;
+
+    IndexJoin(FongoDBCollection from, String foreignField) {
+      this.from = from;
+      this.foreignField = foreignField;
+    }
+
+    @Override
+    BasicDBList match(Object localValue) {
+      if (!isQueryValue(localValue)) {
+        if (hashJoin == null) {
+          hashJoin = new HashJoin(from, foreignField);
+        }
+        return hashJoin.match(localValue);
+      }
+      BasicDBList result = new BasicDBList();
+      if (!(localValue instanceof List)) {
+        if (localValue == null) {
+          result.addAll(nullMatches());
+        } else {
+          addAll(result, from.find(new BasicDBObject(foreignField, localValue)));
+        }
+        return result;
+      }
+      List<Object> values = new ArrayList<Object>((List<?>) localValue);
+      boolean matchNull = values.remove(null);
+      addAll(result, from.find(new BasicDBObject(foreignField, new BasicDBObject("$in", values))));
+      if (matchNull) {
+        Set<Object> ids = new HashSet<Object>();
+        for (Object document : result) {
+          ids.add(((DBObject) document).get(FongoDBCollection.ID_KEY));
+        }
+        for (DBObject document : nullMatches()) {
+          if (!ids.contains(document.get(FongoDBCollection.ID_KEY))) {
+            result.add(document);
+          }
+        }
+      }
+      return result;
+    }
+
+    /**
+     * @return true if the value (or each value of an array) is matched by equality in a query.
+     */
+    private static boolean isQueryValue(Object value) {
+      if (!(value instanceof List)) {
+        return !(value instanceof DBObject) && !(value instanceof Pattern);
+      }
+      for (Object item : (List<?>) value) {
+        if (item instanceof DBObject || item instanceof Pattern) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private List<DBObject> nullMatches() {
+      if (nullMatches == null) {
+        Project.FieldExpression foreign = new Project.FieldExpression(foreignField);
+        nullMatches = new ArrayList<DBObject>();
+        Iterator<DBObject> documents = from.find().iterator();
+        while (documents.hasNext()) {
+          DBObject document = documents.next();
+          if (HashJoin.keys(foreign.evaluate(document)).contains(null)) {
+            nullMatches.add(document);
+          }
+        }
+      }
+      return nullMatches;
+    }
+
+    private static void addAll(BasicDBList result, DBCursor cursor) {
+      while (cursor.hasNext()) {
+        result.add(cursor.next());
+      }
+    }
+  }
+
+  /**
+   * {@see https://docs.mongodb.org/manual/reference/operator/aggregation/lookup/#pipe._S_lookup}
+   *
+   * @param input
+   * @param object
+   * @return
+   */
+  @Override
+  public Iterator<DBObject> apply(AggregationContext context, final Iterator<DBObject> input, DBObject object) {
+    DBObject parameters = parameters(context, object.get(getKeyword()));
+    String foreignField = (String) parameters.get("foreignField");
+    final Project.FieldExpression local = new Project.FieldExpression((String) parameters.get("localField"));
+    final String[] as = ((String) parameters.get("as")).split("\\.");
+
+    FongoDBCollection from = context.getCollection((String) parameters.get("from"));
+    final Join join = from != null && isIndexed(from, foreignField) ? new IndexJoin(from, foreignField) : new HashJoin(from, foreignField);
+    LOG.debug("lookup() : {} with {}", parameters, join.getClass().getSimpleName());
+
+    return new StreamIterator() {
+      @Override
+      protected DBObject computeNext() {
+        if (!input.hasNext()) {
+          return null;
+        }
+        DBObject document = input.next();
+        Object localValue = local.evaluate(document);
+        return with(document, as, 0, join.match(localValue == Project.MISSING ? null : localValue));
+      }
+    };
+  }
+
+  /**
+   * The foreign documents of the hash table are shared by the local documents matching the same key.
+   */
+  @Override
+  public boolean sharesDocuments() {
+    return true;
+  }
+
+  private static boolean isIndexed(FongoDBCollection collection, String field) {
+    for (IndexAbstract<?> index : collection.getIndexes()) {
+      if (!index.isGeoIndex() && index.getFields().size() == 1 && index.getFields().contains(field)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Hash key of a value : the numbers equal for MongoDB (like 1 and 1.0) have the same key, and null the same key than
+   * a missing field.
+   */
+  static Object key(Object value) {
+    if (value == null || value == Project.MISSING) {
+      return null;
+    }
+    if (value instanceof Pattern) {
+      return new PatternKey((Pattern) value);
+    }
+    return Util.canonicalNumber(value);
+  }
+
+  /**
+   * A regular expression equals the same expression, with the same flags.
+   */
+  private static final class PatternKey {
+    private final String pattern;
+    private final int flags;
+
+    PatternKey(Pattern pattern) {
+      this.pattern = pattern.pattern();
+      this.flags = pattern.flags();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof PatternKey && ((PatternKey) o).pattern.equals(pattern) && ((PatternKey) o).flags == flags;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * pattern.hashCode() + flags;
+    }
+  }
+
+  /**
+   * Copy of the document (the input is not modified) with the value at the path.
+   */
+  private static DBObject with(DBObject document, String[] path, int index, Object value) {
+    DBObject copy = new BasicDBObject();
+    for (String key : document.keySet()) {
+      copy.put(key, document.get(key));
+    }
+    if (index == path.length - 1) {
+      copy.put(path[index], value);
+    } else {
+      Object child = document.get(path[index]);
+      DBObject parent = child instanceof DBObject && !(child instanceof List) ? (DBObject) child : new BasicDBObject();
+      copy.put(path[index], with(parent, path, index + 1, value));
+    }
+    return copy;
+  }
+
+  private static DBObject parameters(AggregationContext context, Object parameters) {
+    if (!(parameters instanceof DBObject) || parameters instanceof List) {
+      context.errorResult(4569, "the $lookup specification must be an Object").throwOnError();
+    }
+    DBObject dbObject = (DBObject) parameters;
+    for (String key : dbObject.keySet()) {
+      Object value = dbObject.get(key);
+      if (!PARAMETERS.contains(key)) {
+        context.errorResult(4571, "unknown argument to $lookup: " + key).throwOnError();
+      }
+      if (!(value instanceof String)) {
+        context.errorResult(4570, "arguments to $lookup must be strings, " + key + ": " + value + " is type "
+            + (value == null ? "null" : value.getClass().getSimpleName())).throwOnError();
+      }
+    }
+    if (!dbObject.keySet().containsAll(PARAMETERS)) {
+      context.errorResult(4572, "need to specify fields from, as, localField, and foreignField for a $lookup").throwOnError();
+    }
+    return dbObject;
+  }
+
+  @Override
+  public String getKeyword() {
+    return "$lookup";
+  }
+}
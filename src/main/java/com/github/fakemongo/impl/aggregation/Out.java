@@ -0,0 +1,69 @@
+package com.github.fakemongo.impl.aggregation;
+
+import com.mongodb.DBObject;
+import java.util.Iterator;
+import org.bson.util.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@see http://docs.mongodb.org/manual/reference/operator/aggregation/out/}
+ * <p/>
+ * The documents are written in the collection as they are read from the previous stage, never kept in a result : the
+ * aggregation returns no document.
+ */
+@ThreadSafe
+public class Out extends PipelineKeyword {
+  private static final Logger LOG = LoggerFactory.getLogger(Out.class);
+
+  public static final Out INSTANCE = new Out();
+
+  private Out() {
+  }
+
+  /**
+   * The collection is replaced when the aggregation is read, once all the documents are written.
+   *
+   * @param input
+   * @param object
+   * @return
+   */
+  @Override
+  public Iterator<DBObject> apply(final AggregationContext context, final Iterator<DBObject> input, DBObject object) {
+    final String collectionName = collectionName(context, object);
+    return new StreamIterator() {
+      private boolean written;
+
+      @Override
+      protected DBObject computeNext() {
+        if (!written) {
+          written = true;
+          int count = context.getOrCreateCollection(collectionName).replaceDocuments(input);
+          LOG.debug("out() : {} documents in {}", count, collectionName);
+        }
+        return null;
+      }
+    };
+  }
+
+  /**
+   * @param object the stage, like { $out : "collection" }.
+   */
+  public String collectionName(AggregationContext context, DBObject object) {
+    Object collectionName = object.get(getKeyword());
+    if (!(collectionName instanceof String)) {
+      context.errorResult(16990, "exception: $out only supports a string argument, not "
+          + (collectionName == null ? "null" : collectionName.getClass().getSimpleName())).throwOnError();
+    }
+    String name = (String) collectionName;
+    if (name.isEmpty() || name.contains("$") || name.startsWith("system.")) {
+      context.errorResult(17385, "exception: Can't $out to special collection: " + name).throwOnError();
+    }
+    return name;
+  }
+
+  @Override
+  public String getKeyword() {
+    return "$out";
+  }
+}
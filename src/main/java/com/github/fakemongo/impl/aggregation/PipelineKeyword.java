@@ -1,28 +1,31 @@
 package com.github.fakemongo.impl.aggregation;
 
-import com.github.fakemongo.Fongo;
-import com.mongodb.DB;
-import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.UUID;
+import java.util.NoSuchElementException;
 
 /**
  * User: william Date: 24/07/13
+ * <p/>
+ * The keywords are shared by all the aggregations : the state of an aggregation is in its {@link AggregationContext}
+ * and in the iterators of its stages, never in a collection.
  */
 public abstract class PipelineKeyword {
 
-  protected static final DB fongo = new Fongo("aggregation_pipeline").getDB("pipeline");
-
-
   /**
-   * Apply the keyword on the collection
+   * Apply the keyword on the documents of the previous stage.
+   * <p/>
+   * Streaming keywords return an iterator which pull the documents one by one from the input ;
+   * blocking keywords (like $sort or $group) consume the whole input first.
    *
-   * @param coll   collection to be processed (will be destroyed).
-   * @param object parameters for keyword.
-   * @return a new collection in result.
+   * @param context state of the aggregation (options, memory limit).
+   * @param input   documents of the previous stage.
+   * @param object  parameters for keyword.
+   * @return the documents of this stage.
    */
-  public abstract DBCollection apply(DBCollection coll, DBObject object);
+  public abstract Iterator<DBObject> apply(AggregationContext context, Iterator<DBObject> input, DBObject object);
 
   /**
    * Return the keyword in the pipeline (like $sort, $group...).
@@ -32,24 +35,60 @@ public abstract class PipelineKeyword {
   public abstract String getKeyword();
 
   /**
-   * Drop collection and create new one with objects.
-   *
-   * @param coll
-   * @param objects
-   * @return the new collection.
+   * Consume all the documents of a stage.
    */
-  protected DBCollection dropAndInsert(DBCollection coll, List<DBObject> objects) {
-    coll.drop();
-    return createAndInsert(objects);
+  protected static List<DBObject> toList(Iterator<DBObject> input) {
+    List<DBObject> objects = new ArrayList<DBObject>();
+    while (input.hasNext()) {
+      objects.add(input.next());
+    }
+    return objects;
   }
 
-  protected DBCollection createAndInsert(List<DBObject> objects) {
-    DBCollection coll = fongo.createCollection(UUID.randomUUID().toString(), null);
-    coll.insert(objects);
-    return coll;
+  /**
+   * @return true if the documents returned by the keyword share values with other documents : the aggregation copies
+   * its results before returning them.
+   */
+  public boolean sharesDocuments() {
+    return false;
   }
 
   public boolean canApply(DBObject object) {
     return object.containsField(getKeyword());
   }
-}
\ No newline at end of file
+
+  /**
+   * Iterator for streaming keywords : the next document is computed only when asked.
+   */
+  protected abstract static class StreamIterator implements Iterator<DBObject> {
+    private DBObject next;
+
+    /**
+     * @return the next document, null at the end of the stream.
+     */
+    protected abstract DBObject computeNext();
+
+    @Override
+    public boolean hasNext() {
+      if (next == null) {
+        next = computeNext();
+      }
+      return next != null;
+    }
+
+    @Override
+    public DBObject next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      DBObject result = next;
+      next = null;
+      return result;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -1,17 +1,14 @@
 package com.github.fakemongo.impl.aggregation;
 
 import com.github.fakemongo.impl.Util;
+import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
-import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
-import com.mongodb.FongoDB;
 import com.mongodb.FongoDBCollection;
-import com.mongodb.MongoException;
-import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -21,7 +18,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * TODO : { project : { _id : 0} } must remove the _id field. If a $sort exist after...
+ * {@see http://docs.mongodb.org/manual/reference/aggregation/project/#pipe._S_project}
+ * <p/>
+ * The specification is compiled once for the pipeline into a tree of expressions, then evaluated on each document.
  */
 @ThreadSafe
 public class Project extends PipelineKeyword {
@@ -29,612 +28,566 @@ public class Project extends PipelineKeyword {
 
   public static final Project INSTANCE = new Project();
 
+  /**
+   * Value of a field not in the document (a null field is a value).
+   */
+  static final Object MISSING = new Object();
+
   private Project() {
   }
 
-  static abstract class ProjectedAbstract<T extends ProjectedAbstract> {
-    static final Map<String, Class<? extends ProjectedAbstract>> projectedAbstractMap = new HashMap<String, Class<? extends ProjectedAbstract>>();
-
-    static {
-      projectedAbstractMap.put(ProjectedStrcasecmp.KEYWORD, ProjectedStrcasecmp.class);
-      projectedAbstractMap.put(ProjectedCmp.KEYWORD, ProjectedCmp.class);
-      projectedAbstractMap.put(ProjectedSubstr.KEYWORD, ProjectedSubstr.class);
-      projectedAbstractMap.put(ProjectedIfNull.KEYWORD, ProjectedIfNull.class);
-      projectedAbstractMap.put(ProjectedConcat.KEYWORD, ProjectedConcat.class);
-      projectedAbstractMap.put(ProjectedToLower.KEYWORD, ProjectedToLower.class);
-      projectedAbstractMap.put(ProjectedToUpper.KEYWORD, ProjectedToUpper.class);
-      projectedAbstractMap.put(ProjectedToDivide.KEYWORD, ProjectedToDivide.class);
-      projectedAbstractMap.put(ProjectedDateDayOfYear.KEYWORD, ProjectedDateDayOfYear.class);
-      projectedAbstractMap.put(ProjectedDateDayOfMonth.KEYWORD, ProjectedDateDayOfMonth.class);
-      projectedAbstractMap.put(ProjectedDateDayOfWeek.KEYWORD, ProjectedDateDayOfWeek.class);
-      projectedAbstractMap.put(ProjectedDateYear.KEYWORD, ProjectedDateYear.class);
-      projectedAbstractMap.put(ProjectedDateMonth.KEYWORD, ProjectedDateMonth.class);
-      projectedAbstractMap.put(ProjectedDateWeek.KEYWORD, ProjectedDateWeek.class);
-      projectedAbstractMap.put(ProjectedDateHour.KEYWORD, ProjectedDateHour.class);
-      projectedAbstractMap.put(ProjectedDateMinute.KEYWORD, ProjectedDateMinute.class);
-      projectedAbstractMap.put(ProjectedDateSecond.KEYWORD, ProjectedDateSecond.class);
-      projectedAbstractMap.put(ProjectedDateMillisecond.KEYWORD, ProjectedDateMillisecond.class);
-    }
-
-    final String keyword;
-
-    final String destName;
-
-    final List<String> infos = new ArrayList<String>();
-
-    private ProjectedAbstract(String keyword, String destName, DBObject object) {
-      this.keyword = keyword;
-      this.destName = destName;
-    }
-
-    public T addInfo(String info) {
-      infos.add(info);
-      return (T) this;
-    }
-
+  /**
+   * An expression of the projection, evaluated on each document.
+   */
+  abstract static class Expression {
     /**
-     * Transform the "object" into the "result" with this "value"
-     *
-     * @param result
-     * @param object
-     * @param key
+     * @param document the document read by the stage.
+     * @return the value, {@link #MISSING} if the expression is a field not in the document.
      */
-    public abstract void unapply(DBObject result, DBObject object, String key);
+    abstract Object evaluate(DBObject document);
+  }
 
-    abstract void doWork(DBCollection coll, DBObject projectResult, Map<String, ProjectedAbstract> projectedFields, String key, Object value, String namespace);
+  /**
+   * A field of the document, like "$item.type".
+   */
+  static class FieldExpression extends Expression {
+    private final String[] path;
 
-    public final void apply(DBCollection coll, DBObject projectResult, Map<String, ProjectedAbstract> projectedFields, String key, DBObject value, String namespace) {
-      doWork(coll, projectResult, projectedFields, key, value.get(this.keyword), namespace);
+    FieldExpression(String field) {
+      List<String> path = Util.path(field);
+      this.path = path.toArray(new String[path.size()]);
     }
 
-    /**
-     * Create the mapping and the criteria for the collection.
-     *
-     * @param projectResult   find criteria.
-     * @param projectedFields mapping from criteria to project structure.
-     * @param key             keyword from a DBObject.
-     * @param kvalue          value for k from a DBObject.
-     * @param namespace       "" if empty, "fieldname." elsewhere.
-     * @param projected       use for unapplying.
-     */
-    public static void createMapping(DBCollection coll, DBObject projectResult, Map<String, ProjectedAbstract> projectedFields, String key, Object kvalue, String namespace, ProjectedAbstract projected) {
-      // Simple case : nb : "$pop"
-      if (kvalue instanceof String) {
-        String value = kvalue.toString();
-        if (value.startsWith("$")) {
-          // Case { date: "$date"}
-
-          // Extract filename from projection.
-          String fieldName = kvalue.toString().substring(1);
-          // Prepare for renaming.
-          projectedFields.put(fieldName, projected.addInfo(namespace + key));
-          projectResult.removeField(key);
-
-          // Handle complex case like $bar.foo with a little trick.
-          if (fieldName.contains(".")) {
-            projectResult.put(fieldName.substring(0, fieldName.indexOf('.')), 1);
-          } else {
-            projectResult.put(fieldName, 1);
+    @Override
+    Object evaluate(DBObject document) {
+      return valueAt(document, 0);
+    }
+
+    private Object valueAt(Object value, int index) {
+      for (int i = index; i < path.length; i++) {
+        if (value instanceof List) {
+          // "$a.b" on [ { b : 1 }, { b : 2 } ] gives [ 1, 2 ].
+          BasicDBList values = new BasicDBList();
+          for (Object item : (List) value) {
+            Object itemValue = valueAt(item, i);
+            if (itemValue != MISSING) {
+              values.add(itemValue);
+            }
           }
-        } else {
-          projectedFields.put(value, projected.addInfo(value));
+          return values;
         }
-      } else if (kvalue instanceof DBObject) {
-        DBObject value = (DBObject) kvalue;
-        ProjectedAbstract projectedAbstract = ProjectedAbstract.getProjected(value, coll, key);
-        if (projectedAbstract != null) {
-          // case : {cmp : {$cmp:[$firstname, $lastname]}}
-          projectedAbstract.apply(coll, projectResult, projectedFields, key, value, namespace);
-          projectResult.removeField(key);
-        } else {
-          // case : {biggestCity:  { name: "$biggestCity",  pop: "$biggestPop" }}
-          projectResult.removeField(key);
-          for (Map.Entry<String, Object> subentry : Util.entrySet(value)) {
-            createMapping(coll, projectResult, projectedFields, subentry.getKey(), subentry.getValue(), namespace + key + ".", ProjectedRename.newInstance(namespace + key + "." + subentry.getKey(), coll, null));
-          }
+        if (!(value instanceof DBObject)) {
+          return MISSING;
         }
-      } else {
-        // Case: {date : 1}
-        projectedFields.put(key, projected.addInfo(key));
-      }
-    }
-
-    /**
-     * Search the projected field if any.
-     *
-     * @param value    the DbObject being worked.
-     * @param coll     collection used.
-     * @param destName destination name for the field.
-     * @return null if it's not a keyword.
-     */
-    private static ProjectedAbstract getProjected(DBObject value, DBCollection coll, String destName) {
-      for (Map.Entry<String, Class<? extends ProjectedAbstract>> entry : projectedAbstractMap.entrySet()) {
-        if (value.containsField(entry.getKey())) {
-          try {
-            return entry.getValue().getConstructor(String.class, DBCollection.class, DBObject.class).newInstance(destName, coll, value);
-          } catch (InstantiationException e) {
-            throw new RuntimeException(e);
-          } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
-          } catch (InvocationTargetException e) {
-            if (e.getTargetException() instanceof MongoException) {
-              throw (MongoException) e.getTargetException();
-            }
-            throw new RuntimeException(e);
-          } catch (NoSuchMethodException e) {
-            throw new RuntimeException(e);
-          }
+        DBObject dbObject = (DBObject) value;
+        value = dbObject.get(path[i]);
+        if (value == null && !dbObject.containsField(path[i])) {
+          return MISSING;
         }
       }
-
-      return null;
-    }
-
-    static void errorResult(DBCollection coll, int code, String err) {
-      ((FongoDB) coll.getDB()).notOkErrorResult(code, err).throwOnError();
-    }
-
-    /**
-     * Extract a value from a field name or value.
-     *
-     * @param object
-     * @param fieldOrValue
-     * @param <T>
-     * @return
-     */
-    static <T> T extractValue(DBObject object, Object fieldOrValue) {
-      if (fieldOrValue instanceof String && fieldOrValue.toString().startsWith("$")) {
-        return Util.extractField(object, fieldOrValue.toString().substring(1));
-      }
-      return (T) fieldOrValue;
+      return value;
     }
   }
 
-  static class ProjectedRename extends ProjectedAbstract<ProjectedRename> {
-    public static final String KEYWORD = "$___fongo$internal$";
-
-    private ProjectedRename(String destName, DBCollection coll, DBObject object) {
-      super(KEYWORD, destName, object);
-    }
+  static class LiteralExpression extends Expression {
+    private final Object value;
 
-    public static ProjectedRename newInstance(String destName, DBCollection coll, DBObject object) {
-      return new ProjectedRename(destName, coll, object);
+    LiteralExpression(Object value) {
+      this.value = value;
     }
 
     @Override
-    public void unapply(DBObject result, DBObject object, String key) {
-      if (key != null) {
-        Object value = Util.extractField(object, key);
-        Util.putValue(result, destName, value);
-      }
-    }
-
-    @Override
-    void doWork(DBCollection coll, DBObject projectResult, Map<String, ProjectedAbstract> projectedFields, String key, Object value, String namespace) {
+    Object evaluate(DBObject document) {
+      return value;
     }
   }
 
-  static class ProjectedIfNull extends ProjectedAbstract<ProjectedIfNull> {
-    public static final String KEYWORD = "$ifNull";
-
-    private final String field;
-    private final String valueIfNull;
-
-    public ProjectedIfNull(String destName, DBCollection coll, DBObject object) {
-      super(KEYWORD, destName, object);
-      Object value = object.get(keyword);
-      if (!(value instanceof List) || ((List) value).size() != 2) {
-        errorResult(coll, 16020, "the $ifNull operator requires an array of 2 operands");
+  // http://docs.mongodb.org/manual/reference/operator/aggregation-string/
+  // http://docs.mongodb.org/manual/reference/operator/aggregation-date/
+  static enum ProjectKeyword {
+    CONCAT("$concat") {
+      @Override
+      Expression compile(AggregationContext context, Object parameter) {
+        if (!(parameter instanceof List) || ((List) parameter).isEmpty()) {
+          errorResult(context, 16020, "the $concat operator requires an array of operands");
+        }
+        final Expression[] operands = compileAll(context, (List) parameter);
+        return new Expression() {
+          @Override
+          Object evaluate(DBObject document) {
+            StringBuilder sb = new StringBuilder();
+            for (Expression operand : operands) {
+              Object value = operand.evaluate(document);
+              if (value == null || value == MISSING) {
+                return null;
+              }
+              sb.append(value);
+            }
+            return sb.toString();
+          }
+        };
       }
-      @SuppressWarnings("unchecked") List<String> values = (List<String>) value;
-      this.field = values.get(0);
-      this.valueIfNull = values.get(1);
-    }
-
-    @Override
-    void doWork(DBCollection coll, DBObject projectResult, Map<String, ProjectedAbstract> projectedFields, String key, Object value, String namespace) {
-      createMapping(coll, projectResult, projectedFields, field, field, namespace, this);
-      createMapping(coll, projectResult, projectedFields, valueIfNull, valueIfNull, namespace, this);
-    }
-
-    @Override
-    public void unapply(DBObject result, DBObject object, String key) {
-      Object value = extractValue(object, field);
-      if (value == null) {
-        value = extractValue(object, valueIfNull);
+    },
+    SUBSTR("$substr") {
+      @Override
+      Expression compile(AggregationContext context, Object parameter) {
+        final Expression[] operands = operands(context, keyword, parameter, 3);
+        return new Expression() {
+          @Override
+          Object evaluate(DBObject document) {
+            Object value = valueOrNull(operands[0], document);
+            if (value == null) {
+              return "";
+            }
+            String string = value.toString();
+            int start = ((Number) operands[1].evaluate(document)).intValue();
+            int end = Math.min(((Number) operands[2].evaluate(document)).intValue(), string.length());
+            if (start >= end) {
+              return "";
+            }
+            return string.substring(start, end);
+          }
+        };
       }
-      result.put(destName, value);
-    }
-  }
-
-  static class ProjectedConcat extends ProjectedAbstract<ProjectedConcat> {
-    public static final String KEYWORD = "$concat";
-
-    private List<Object> toConcat = null;
-
-    public ProjectedConcat(String destName, DBCollection coll, DBObject object) {
-      super(KEYWORD, destName, object);
-      Object value = object.get(keyword);
-      if (!(value instanceof List) || ((List) value).size() == 0) {
-        errorResult(coll, 16020, "the $concat operator requires an array of operands");
+    },
+    IF_NULL("$ifNull") {
+      @Override
+      Expression compile(AggregationContext context, Object parameter) {
+        final Expression[] operands = operands(context, keyword, parameter, 2);
+        return new Expression() {
+          @Override
+          Object evaluate(DBObject document) {
+            Object value = valueOrNull(operands[0], document);
+            return value != null ? value : valueOrNull(operands[1], document);
+          }
+        };
       }
-      //noinspection unchecked
-      toConcat = (List<Object>) value;
-    }
-
-    @Override
-    void doWork(DBCollection coll, DBObject projectResult, Map<String, ProjectedAbstract> projectedFields, String key, Object value, String namespace) {
-      for (Object field : toConcat) {
-        if (field instanceof String) {
-          createMapping(coll, projectResult, projectedFields, (String) field, (String) field, namespace, this);
-        } else if (field instanceof DBObject) {
-          // $concat : [ { $ifnull : [ "$item", "item is null" ] } ]
-        }
+    },
+    CMP("$cmp") {
+      @Override
+      Expression compile(AggregationContext context, Object parameter) {
+        return compare(operands(context, keyword, parameter, 2), false);
       }
-    }
-
-    @Override
-    public void unapply(DBObject result, DBObject object, String key) {
-      StringBuilder sb = new StringBuilder();
-      for (Object info : toConcat) {
-        Object value = extractValue(object, info);
-        if (value == null) {
-          result.put(destName, null);
-          return;
-        } else {
-          String str = value.toString();
-          sb.append(str);
-        }
+    },
+    STRCASECMP("$strcasecmp") {
+      @Override
+      Expression compile(AggregationContext context, Object parameter) {
+        return compare(operands(context, keyword, parameter, 2), true);
       }
-      result.put(destName, sb.toString());
-    }
-  }
-
-  static class ProjectedSubstr extends ProjectedAbstract<ProjectedSubstr> {
-    public static final String KEYWORD = "$substr";
+    },
+    TO_LOWER("$toLower") {
+      @Override
+      Expression compile(AggregationContext context, Object parameter) {
+        final Expression operand = operand(context, keyword, parameter);
+        return new Expression() {
+          @Override
+          Object evaluate(DBObject document) {
+            Object value = valueOrNull(operand, document);
+            return value == null ? "" : value.toString().toLowerCase();
+          }
+        };
+      }
+    },
+    TO_UPPER("$toUpper") {
+      @Override
+      Expression compile(AggregationContext context, Object parameter) {
+        final Expression operand = operand(context, keyword, parameter);
+        return new Expression() {
+          @Override
+          Object evaluate(DBObject document) {
+            Object value = valueOrNull(operand, document);
+            return value == null ? "" : value.toString().toUpperCase();
+          }
+        };
+      }
+    },
+    DIVIDE("$divide") {
+      @Override
+      Expression compile(final AggregationContext context, Object parameter) {
+        final Expression[] operands = operands(context, keyword, parameter, 2);
+        return new Expression() {
+          @Override
+          Object evaluate(DBObject document) {
+            Number dividend = (Number) valueOrNull(operands[0], document);
+            Number divisor = (Number) valueOrNull(operands[1], document);
+            if (dividend == null || divisor == null) {
+              return null;
+            }
+            if (divisor.doubleValue() == 0D) {
+              errorResult(context, 16608, "exception: can't $divide by zero");
+            }
+            return dividend.doubleValue() / divisor.doubleValue();
+          }
+        };
+      }
+    },
+    DAY_OF_YEAR("$dayOfYear") {
+      @Override
+      Expression compile(AggregationContext context, Object parameter) {
+        return date(context, keyword, parameter, Calendar.DAY_OF_YEAR, 0);
+      }
+    },
+    DAY_OF_MONTH("$dayOfMonth") {
+      @Override
+      Expression compile(AggregationContext context, Object parameter) {
+        return date(context, keyword, parameter, Calendar.DAY_OF_MONTH, 0);
+      }
+    },
+    DAY_OF_WEEK("$dayOfWeek") {
+      @Override
+      Expression compile(AggregationContext context, Object parameter) {
+        return date(context, keyword, parameter, Calendar.DAY_OF_WEEK, 0);
+      }
+    },
+    YEAR("$year") {
+      @Override
+      Expression compile(AggregationContext context, Object parameter) {
+        return date(context, keyword, parameter, Calendar.YEAR, 0);
+      }
+    },
+    MONTH("$month") {
+      @Override
+      Expression compile(AggregationContext context, Object parameter) {
+        return date(context, keyword, parameter, Calendar.MONTH, 1);
+      }
+    },
+    WEEK("$week") {
+      @Override
+      Expression compile(AggregationContext context, Object parameter) {
+        return date(context, keyword, parameter, Calendar.WEEK_OF_YEAR, -1);
+      }
+    },
+    HOUR("$hour") {
+      @Override
+      Expression compile(AggregationContext context, Object parameter) {
+        return date(context, keyword, parameter, Calendar.HOUR_OF_DAY, 0);
+      }
+    },
+    MINUTE("$minute") {
+      @Override
+      Expression compile(AggregationContext context, Object parameter) {
+        return date(context, keyword, parameter, Calendar.MINUTE, 0);
+      }
+    },
+    SECOND("$second") {
+      @Override
+      Expression compile(AggregationContext context, Object parameter) {
+        return date(context, keyword, parameter, Calendar.SECOND, 0);
+      }
+    },
+    MILLISECOND("$millisecond") {
+      @Override
+      Expression compile(AggregationContext context, Object parameter) {
+        return date(context, keyword, parameter, Calendar.MILLISECOND, 0);
+      }
+    };
 
-    private final String field;
-    private final int start, end;
+    final String keyword;
 
-    public ProjectedSubstr(String destName, DBCollection coll, DBObject object) {
-      super(KEYWORD, destName, object);
-      Object value = object.get(keyword);
-      if (!(value instanceof List) || ((List) value).size() != 3) {
-        errorResult(coll, 16020, "the $substr operator requires an array of 3 operands");
-      }
-      @SuppressWarnings("unchecked") List<Object> values = (List<Object>) value;
-      field = (String) values.get(0);
-      start = ((Number) values.get(1)).intValue();
-      end = ((Number) values.get(2)).intValue();
+    private ProjectKeyword(String keyword) {
+      this.keyword = keyword;
     }
 
-    @Override
-    void doWork(DBCollection coll, DBObject projectResult, Map<String, ProjectedAbstract> projectedFields, String key, Object value, String namespace) {
-      createMapping(coll, projectResult, projectedFields, destName, destName, namespace, this);
-    }
+    /**
+     * @param parameter parameter of the keyword, like [ "$item.type", " ", "$item.category" ] for $concat.
+     */
+    abstract Expression compile(AggregationContext context, Object parameter);
 
-    @Override
-    public void unapply(DBObject result, DBObject object, String key) {
-      Object exracted = extractValue(object, field);
-      String value = exracted == null ? null : String.valueOf(exracted);
-      if (value == null) {
-        value = "";
-      } else {
-        if (start >= value.length()) {
-          value = "";
-        } else {
-          value = value.substring(start, Math.min(end, value.length()));
+    static ProjectKeyword keywordFor(String keyword) {
+      for (ProjectKeyword projectKeyword : values()) {
+        if (projectKeyword.keyword.equals(keyword)) {
+          return projectKeyword;
         }
       }
-
-      result.put(destName, value);
+      return null;
     }
   }
 
-  static class ProjectedCmp extends ProjectedAbstract<ProjectedCmp> {
-    public static final String KEYWORD = "$cmp";
-
-    private final String field1;
-    private final String field2;
+  /**
+   * A field of the result : included from the document, computed, or a sub document.
+   */
+  static class ProjectedField {
+    private final String name;
 
-    public ProjectedCmp(String destName, DBCollection coll, DBObject object) {
-      this(KEYWORD, destName, coll, object);
-    }
+    // null if the field is not computed.
+    private final Expression expression;
 
-    public ProjectedCmp(String keyword, String destName, DBCollection coll, DBObject object) {
-      super(keyword, destName, object);
-      Object value = object.get(keyword);
-      if (!(value instanceof List) || ((List) value).size() != 2) {
-        errorResult(coll, 16020, "the " + keyword + " operator requires an array of 2 operands");
-      }
-      List<String> values = (List<String>) value;
-      field1 = values.get(0);
-      field2 = values.get(1);
-    }
+    // null if the field is not a sub document.
+    private final Projection projection;
 
-    @Override
-    void doWork(DBCollection coll, DBObject projectResult, Map<String, ProjectedAbstract> projectedFields, String key, Object value, String namespace) {
-      createMapping(coll, projectResult, projectedFields, field1, field1, namespace, this);
-      createMapping(coll, projectResult, projectedFields, field2, field2, namespace, this);
+    ProjectedField(String name, Expression expression, Projection projection) {
+      this.name = name;
+      this.expression = expression;
+      this.projection = projection;
     }
+  }
 
-    @Override
-    public void unapply(DBObject result, DBObject object, String key) {
-      String value = extractValue(object, field1).toString();
-      String secondValue = extractValue(object, field2).toString();
-      int strcmp = compare(value, secondValue);
-      result.put(destName, strcmp < 0 ? -1 : strcmp > 1 ? 1 : 0);
-    }
+  /**
+   * The fields of a document of the result.
+   */
+  static class Projection {
+    private final Projection parent;
 
-    int compare(String value1, String value2) {
-      return value1.compareTo(value2);
-    }
-  }
+    private final List<ProjectedField> fields = new ArrayList<ProjectedField>();
 
-  static class ProjectedStrcasecmp extends ProjectedCmp {
-    public static final String KEYWORD = "$strcasecmp";
+    // true if a field, or a field of a sub document, is computed : the document is always in the result.
+    private boolean computed;
 
-    public ProjectedStrcasecmp(String destName, DBCollection coll, DBObject object) {
-      super(KEYWORD, destName, coll, object);
+    Projection(Projection parent) {
+      this.parent = parent;
     }
 
-    @Override
-    protected int compare(String value1, String value2) {
-      return value1.compareToIgnoreCase(value2);
+    void include(String name) {
+      fields.add(new ProjectedField(name, null, null));
     }
-  }
-
-  static class ProjectedToLower extends ProjectedAbstract<ProjectedToLower> {
-    public static final String KEYWORD = "$toLower";
 
-    private final String field;
-
-    public ProjectedToLower(String destName, DBCollection coll, DBObject object) {
-      this(KEYWORD, destName, coll, object);
+    void compute(String name, Expression expression) {
+      fields.add(new ProjectedField(name, expression, null));
+      for (Projection projection = this; projection != null && !projection.computed; projection = projection.parent) {
+        projection.computed = true;
+      }
     }
 
-    ProjectedToLower(String keyword, String destName, DBCollection coll, DBObject object) {
-      super(KEYWORD, destName, object);
-      Object value = object.get(keyword);
-      if (value instanceof List) {
-        List values = (List) value;
-        if (values.size() != 1) {
-          errorResult(coll, 16020, "the " + keyword + " operator requires 1 operand(s)");
+    Projection subProjection(String name) {
+      for (ProjectedField field : fields) {
+        if (field.name.equals(name) && field.projection != null) {
+          return field.projection;
         }
-        field = (String) values.get(0);
-      } else {
-        field = value.toString();
       }
+      Projection projection = new Projection(this);
+      fields.add(new ProjectedField(name, null, projection));
+      return projection;
     }
 
-    @Override
-    void doWork(DBCollection coll, DBObject projectResult, Map<String, ProjectedAbstract> projectedFields, String key, Object value, String namespace) {
-      createMapping(coll, projectResult, projectedFields, field, field, namespace, this);
-    }
-
-    @Override
-    public void unapply(DBObject result, DBObject object, String key) {
-      Object value = extractValue(object, field);
-      if (value == null) {
-        value = "";
-      } else {
-        value = transformValue(value.toString());
-      }
-      result.put(destName, value);
+    /**
+     * @param root   the document read by the stage, for the computed fields.
+     * @param source the document at the level of this projection, for the included fields ; null if none.
+     */
+    DBObject project(DBObject root, DBObject source) {
+      DBObject result = new BasicDBObject();
+      for (ProjectedField field : fields) {
+        if (field.expression != null) {
+          Object value = field.expression.evaluate(root);
+          if (value != MISSING) {
+            result.put(field.name, value);
+          }
+          continue;
+        }
+        Object value = source == null ? null : source.get(field.name);
+        boolean present = value != null || (source != null && source.containsField(field.name));
+        if (field.projection == null) {
+          if (present) {
+            result.put(field.name, value);
+          }
+        } else if (field.projection.computed) {
+          result.put(field.name, field.projection.project(root, value instanceof DBObject && !(value instanceof List) ? (DBObject) value : null));
+        } else if (present) {
+          Object projected = field.projection.include(value);
+          if (projected != MISSING) {
+            result.put(field.name, projected);
+          }
+        }
+      }
+      return result;
     }
 
-    String transformValue(String value) {
-      return value.toLowerCase();
+    /**
+     * Included fields of a value of the document : "a.b" on [ { b : 1, c : 2 }, 3 ] gives [ { b : 1 } ].
+     */
+    private Object include(Object value) {
+      if (value instanceof List) {
+        BasicDBList values = new BasicDBList();
+        for (Object item : (List) value) {
+          Object projected = include(item);
+          if (projected != MISSING) {
+            values.add(projected);
+          }
+        }
+        return values;
+      }
+      if (value instanceof DBObject) {
+        return project(null, (DBObject) value);
+      }
+      return MISSING;
     }
   }
 
-  static class ProjectedToUpper extends ProjectedToLower {
-    public static final String KEYWORD = "$toUpper";
-
-    public ProjectedToUpper(String destName, DBCollection coll, DBObject object) {
-      super(KEYWORD, destName, coll, object);
-    }
-
-    @Override
-    protected String transformValue(String value) {
-      return value.toUpperCase();
-    }
+  /**
+   * Simple {@see http://docs.mongodb.org/manual/reference/aggregation/project/#pipe._S_project}
+   *
+   * @param input
+   * @param object
+   * @return
+   */
+  @Override
+  public Iterator<DBObject> apply(AggregationContext context, final Iterator<DBObject> input, DBObject object) {
+    LOG.debug("project() : {}", object);
+    final Projection projection = compile(context, (DBObject) object.get(getKeyword()));
+    return new StreamIterator() {
+      @Override
+      protected DBObject computeNext() {
+        if (!input.hasNext()) {
+          return null;
+        }
+        DBObject document = input.next();
+        return projection.project(document, document);
+      }
+    };
   }
 
-  static class ProjectedToDivide extends ProjectedAbstract<ProjectedToDivide> {
-    public static final String KEYWORD = "$divide";
-
-    private final double result;
-
-    public ProjectedToDivide(String destName, DBCollection coll, DBObject object) {
-      this(KEYWORD, destName, coll, object);
+  /**
+   * The "_id" is in the result, first, unless excluded.
+   */
+  static Projection compile(AggregationContext context, DBObject project) {
+    Projection projection = new Projection(null);
+    Object id = project.get(FongoDBCollection.ID_KEY);
+    if (id == null) {
+      projection.include(FongoDBCollection.ID_KEY);
+    } else if (!isInclusion(id)) {
+      compileField(context, projection, FongoDBCollection.ID_KEY, id);
+    } else if (isIncluded(id)) {
+      projection.include(FongoDBCollection.ID_KEY);
     }
-
-    ProjectedToDivide(String keyword, String destName, DBCollection coll, DBObject object) {
-      super(KEYWORD, destName, object);
-      Object value = object.get(keyword);
-      if (!(value instanceof List) || ((List) value).size() != 2) {
-        errorResult(coll, 16020, "the " + keyword + " operator requires an array of 2 operands");
+    for (Map.Entry<String, Object> entry : Util.entrySet(project)) {
+      if (entry.getValue() != null && !FongoDBCollection.ID_KEY.equals(entry.getKey())) {
+        compileField(context, projection, entry.getKey(), entry.getValue());
       }
-      List values = (List) value;
-      double modulus = ((Number) values.get(0)).doubleValue();
-      double expectedValue = ((Number) values.get(1)).doubleValue();
-      result = expectedValue % modulus;
-    }
-
-    @Override
-    void doWork(DBCollection coll, DBObject projectResult, Map<String, ProjectedAbstract> projectedFields, String key, Object value, String namespace) {
-      createMapping(coll, projectResult, projectedFields, destName, destName, namespace, this);
-    }
-
-    @Override
-    public void unapply(DBObject result, DBObject object, String key) {
-      result.put(destName, this.result);
     }
+    return projection;
   }
 
-  static abstract class ProjectedDate<T extends ProjectedDate> extends ProjectedAbstract<T> {
-
-    private final String field;
-    private final int fromCalendar; // See Calendar.*
-    private final int modifier; // See Calendar.*
-
-    public ProjectedDate(String keyword, int fromCalendar, int modifier, String destName, DBCollection coll, DBObject object) {
-      super(keyword, destName, object);
-      Object value = object.get(keyword);
-      this.fromCalendar = fromCalendar;
-      this.modifier = modifier;
-      if (!(value instanceof String)) {
-        errorResult(coll, 16020, "the " + keyword + " operator requires a field name");
-      }
-      this.field = (String) value;
+  private static void compileField(AggregationContext context, Projection projection, String key, Object value) {
+    List<String> path = Util.path(key);
+    for (int i = 0; i < path.size() - 1; i++) {
+      projection = projection.subProjection(path.get(i));
     }
-
-    @Override
-    void doWork(DBCollection coll, DBObject projectResult, Map<String, ProjectedAbstract> projectedFields, String key, Object value, String namespace) {
-      createMapping(coll, projectResult, projectedFields, field, field, namespace, this);
-    }
-
-    @Override
-    public void unapply(DBObject result, DBObject object, String key) {
-      Object value = extractValue(object, field);
-      Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("GMT"), Locale.ENGLISH);
-      calendar.setTimeInMillis((((Date) value).getTime()));
-      int extracted = calendar.get(fromCalendar) + modifier;
-      result.put(destName, extracted);
+    String name = path.get(path.size() - 1);
+    if (isInclusion(value)) {
+      if (!isIncluded(value)) {
+        errorResult(context, 16406, "exception: The top-level _id field is the only field currently supported for exclusion");
+      }
+      // case : { date : 1 }
+      projection.include(name);
+    } else if (value instanceof DBObject && !(value instanceof List) && !isOperator((DBObject) value)) {
+      // case : { biggestCity : { name : "$biggestCity", pop : "$biggestPop" } }
+      Projection subProjection = projection.subProjection(name);
+      for (Map.Entry<String, Object> entry : Util.entrySet((DBObject) value)) {
+        if (entry.getValue() != null) {
+          compileField(context, subProjection, entry.getKey(), entry.getValue());
+        }
+      }
+    } else {
+      // case : { renamedDate : "$date" }, { food : { $concat : [ "$item.type", " ", "$item.category" ] } }
+      if (value instanceof String && !value.toString().startsWith("$")) {
+        errorResult(context, 16873, "exception: FieldPath '" + value + "' doesn't start with $");
+      }
+      projection.compute(name, compileExpression(context, value));
     }
   }
 
-  // http://docs.mongodb.org/manual/reference/operator/aggregation-date/
-  static class ProjectedDateDayOfYear extends ProjectedDate<ProjectedDateDayOfYear> {
-    public static final String KEYWORD = "$dayOfYear";
-
-    public ProjectedDateDayOfYear(String destName, DBCollection coll, DBObject object) {
-      super(KEYWORD, Calendar.DAY_OF_YEAR, 0, destName, coll, object);
+  /**
+   * Compile an operand : a field ("$field"), an operator ({ $toLower : "$field" }) or a value.
+   */
+  static Expression compileExpression(AggregationContext context, Object value) {
+    if (value instanceof String && value.toString().startsWith("$")) {
+      return new FieldExpression(value.toString().substring(1));
+    }
+    if (value instanceof DBObject && !(value instanceof List) && isOperator((DBObject) value)) {
+      DBObject dbObject = (DBObject) value;
+      String keyword = dbObject.keySet().iterator().next();
+      ProjectKeyword projectKeyword = ProjectKeyword.keywordFor(keyword);
+      if (projectKeyword == null) {
+        errorResult(context, 15999, "exception: invalid operator '" + keyword + "'");
+      }
+      return projectKeyword.compile(context, dbObject.get(keyword));
     }
+    return new LiteralExpression(value);
   }
 
-  static class ProjectedDateDayOfMonth extends ProjectedDate<ProjectedDateDayOfMonth> {
-    public static final String KEYWORD = "$dayOfMonth";
-
-    public ProjectedDateDayOfMonth(String destName, DBCollection coll, DBObject object) {
-      super(KEYWORD, Calendar.DAY_OF_MONTH, 0, destName, coll, object);
+  private static Expression[] compileAll(AggregationContext context, List values) {
+    Expression[] expressions = new Expression[values.size()];
+    for (int i = 0; i < expressions.length; i++) {
+      expressions[i] = compileExpression(context, values.get(i));
     }
+    return expressions;
   }
 
-  static class ProjectedDateDayOfWeek extends ProjectedDate<ProjectedDateDayOfWeek> {
-    public static final String KEYWORD = "$dayOfWeek";
-
-    public ProjectedDateDayOfWeek(String destName, DBCollection coll, DBObject object) {
-      super(KEYWORD, Calendar.DAY_OF_WEEK, 0, destName, coll, object);
+  private static Expression[] operands(AggregationContext context, String keyword, Object parameter, int count) {
+    if (!(parameter instanceof List) || ((List) parameter).size() != count) {
+      errorResult(context, 16020, "the " + keyword + " operator requires an array of " + count + " operands");
     }
+    return compileAll(context, (List) parameter);
   }
 
-  static class ProjectedDateYear extends ProjectedDate<ProjectedDateYear> {
-    public static final String KEYWORD = "$year";
-
-    public ProjectedDateYear(String destName, DBCollection coll, DBObject object) {
-      super(KEYWORD, Calendar.YEAR, 0, destName, coll, object);
+  /**
+   * The operand of an operator, alone or in an array : { $toLower : "$field" } or { $toLower : [ "$field" ] }.
+   */
+  private static Expression operand(AggregationContext context, String keyword, Object parameter) {
+    if (parameter instanceof List) {
+      List values = (List) parameter;
+      if (values.size() != 1) {
+        errorResult(context, 16020, "the " + keyword + " operator requires 1 operand(s)");
+      }
+      return compileExpression(context, values.get(0));
     }
+    return compileExpression(context, parameter);
   }
 
-  static class ProjectedDateMonth extends ProjectedDate<ProjectedDateMonth> {
-    public static final String KEYWORD = "$month";
-
-    public ProjectedDateMonth(String destName, DBCollection coll, DBObject object) {
-      super(KEYWORD, Calendar.MONTH, 1, destName, coll, object);
-    }
+  private static Expression compare(final Expression[] operands, final boolean ignoreCase) {
+    return new Expression() {
+      @Override
+      Object evaluate(DBObject document) {
+        Object value1 = valueOrNull(operands[0], document);
+        Object value2 = valueOrNull(operands[1], document);
+        if (value1 == null || value2 == null) {
+          return value1 == value2 ? 0 : (value1 == null ? -1 : 1);
+        }
+        int compare = ignoreCase ? value1.toString().compareToIgnoreCase(value2.toString()) : value1.toString().compareTo(value2.toString());
+        return compare < 0 ? -1 : (compare > 0 ? 1 : 0);
+      }
+    };
   }
 
-  static class ProjectedDateWeek extends ProjectedDate<ProjectedDateWeek> {
-    public static final String KEYWORD = "$week";
-
-    public ProjectedDateWeek(String destName, DBCollection coll, DBObject object) {
-      super(KEYWORD, Calendar.WEEK_OF_YEAR, -1, destName, coll, object);
-    }
+  /**
+   * @param fromCalendar See Calendar.*
+   * @param modifier     added to the field of the calendar.
+   */
+  private static Expression date(final AggregationContext context, final String keyword, Object parameter, final int fromCalendar, final int modifier) {
+    final Expression operand = operand(context, keyword, parameter);
+    // The expression is evaluated by the thread reading the stage.
+    final Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("GMT"), Locale.ENGLISH);
+    return new Expression() {
+      @Override
+      Object evaluate(DBObject document) {
+        Object value = operand.evaluate(document);
+        if (!(value instanceof Date)) {
+          errorResult(context, 16006, "exception: can't convert from BSON type " + (value == MISSING ? "EOO" : (value == null ? "NULL" : value.getClass().getSimpleName())) + " to Date");
+        }
+        calendar.setTimeInMillis(((Date) value).getTime());
+        return calendar.get(fromCalendar) + modifier;
+      }
+    };
   }
 
-  static class ProjectedDateHour extends ProjectedDate<ProjectedDateHour> {
-    public static final String KEYWORD = "$hour";
-
-    public ProjectedDateHour(String destName, DBCollection coll, DBObject object) {
-      super(KEYWORD, Calendar.HOUR_OF_DAY, 0, destName, coll, object);
-    }
+  private static Object valueOrNull(Expression expression, DBObject document) {
+    Object value = expression.evaluate(document);
+    return value == MISSING ? null : value;
   }
 
-  static class ProjectedDateMinute extends ProjectedDate<ProjectedDateMinute> {
-    public static final String KEYWORD = "$minute";
-
-    public ProjectedDateMinute(String destName, DBCollection coll, DBObject object) {
-      super(KEYWORD, Calendar.MINUTE, 0, destName, coll, object);
-    }
+  private static boolean isOperator(DBObject value) {
+    return value.keySet().size() == 1 && value.keySet().iterator().next().startsWith("$");
   }
 
-  static class ProjectedDateSecond extends ProjectedDate<ProjectedDateSecond> {
-    public static final String KEYWORD = "$second";
-
-    public ProjectedDateSecond(String destName, DBCollection coll, DBObject object) {
-      super(KEYWORD, Calendar.SECOND, 0, destName, coll, object);
-    }
+  private static boolean isInclusion(Object value) {
+    return value instanceof Number || value instanceof Boolean;
   }
 
-  static class ProjectedDateMillisecond extends ProjectedDate<ProjectedDateMillisecond> {
-    public static final String KEYWORD = "$millisecond";
-
-    public ProjectedDateMillisecond(String destName, DBCollection coll, DBObject object) {
-      super(KEYWORD, Calendar.MILLISECOND, 0, destName, coll, object);
-    }
+  private static boolean isIncluded(Object value) {
+    return value instanceof Number ? ((Number) value).doubleValue() != 0D : (Boolean) value;
   }
 
-  /**
-   * Simple {@see http://docs.mongodb.org/manual/reference/aggregation/project/#pipe._S_project}
-   *
-   * @param coll
-   * @param object
-   * @return
-   */
-  @Override
-  public DBCollection apply(DBCollection coll, DBObject object) {
-    LOG.debug("project() : {}", object);
-
-    DBObject project = (DBObject) object.get(getKeyword());
-    DBObject projectResult = Util.clone(project);
-
-    // Extract fields who will be renamed.
-    Map<String, ProjectedAbstract> projectedFields = new HashMap<String, ProjectedAbstract>();
-    for (Map.Entry<String, Object> entry : Util.entrySet(project)) {
-      if (entry.getValue() != null) {
-        ProjectedAbstract.createMapping(coll, projectResult, projectedFields, entry.getKey(), entry.getValue(), "", ProjectedRename.newInstance(entry.getKey(), coll, null));
-      }
-    }
-
-    LOG.debug("project() of {} renamed {}", projectResult, projectedFields);
-    List<DBObject> objects = coll.find(null, projectResult).toArray();
-
-    // Rename or transform fields
-    List<DBObject> objectsResults = new ArrayList<DBObject>(objects.size());
-    for (DBObject result : objects) {
-      DBObject renamed = new BasicDBObject(FongoDBCollection.ID_KEY, result.get(FongoDBCollection.ID_KEY));
-      for (Map.Entry<String, ProjectedAbstract> entry : projectedFields.entrySet()) {
-        if (Util.containsField(result, entry.getKey())) {
-          entry.getValue().unapply(renamed, result, entry.getKey());
-        }
-      }
-
-      // TODO REFACTOR
-      // Handle special case like ifNull who can doesn't have field in list.
-      for (ProjectedAbstract projected : projectedFields.values()) {
-//        if (!projected.isDone() && (projected.keyword.recallIfNotFound)) {
-        projected.unapply(renamed, result, null);
-//        }
-//        projected.setDone(false);
-      }
-
-      objectsResults.add(renamed);
-    }
-    coll = dropAndInsert(coll, objectsResults);
-    LOG.debug("project() : {}, result : {}", object, objects);
-    return coll;
+  private static void errorResult(AggregationContext context, int code, String err) {
+    context.errorResult(code, err).throwOnError();
   }
 
   @Override
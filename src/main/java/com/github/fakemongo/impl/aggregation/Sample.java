@@ -0,0 +1,90 @@
+package com.github.fakemongo.impl.aggregation;
+
+import com.mongodb.DBObject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import org.bson.util.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@see https://docs.mongodb.org/manual/reference/operator/aggregation/sample/}
+ * <p/>
+ * In first position, the documents are sampled from the "_id" index of the collection (see the
+ * {@link com.github.fakemongo.impl.Aggregator}) ; after another stage, they are sampled in one pass over the input,
+ * keeping only "size" documents.
+ */
+@ThreadSafe
+public class Sample extends PipelineKeyword {
+  private static final Logger LOG = LoggerFactory.getLogger(Sample.class);
+
+  public static final Sample INSTANCE = new Sample();
+
+  private Sample() {
+  }
+
+  /**
+   * Reservoir sampling : the n-th document replaces a sampled one with the probability size / n.
+   *
+   * @param input
+   * @param object
+   * @return
+   */
+  @Override
+  public Iterator<DBObject> apply(AggregationContext context, Iterator<DBObject> input, DBObject object) {
+    int size = size(context, object);
+    LOG.debug("sample() : {}", size);
+    Random random = new Random();
+    List<DBObject> reservoir = new ArrayList<DBObject>(Math.min(size, 1024));
+    long count = 0;
+    while (input.hasNext()) {
+      DBObject document = input.next();
+      count++;
+      if (reservoir.size() < size) {
+        reservoir.add(document);
+      } else {
+        long index = (long) (random.nextDouble() * count);
+        if (index < size) {
+          reservoir.set((int) index, document);
+        }
+      }
+    }
+    // The first documents of the input must not stay in the first positions.
+    Collections.shuffle(reservoir, random);
+    return reservoir.iterator();
+  }
+
+  /**
+   * @param object the stage, like { $sample : { size : 10 } }.
+   * @return the number of documents to sample.
+   */
+  public int size(AggregationContext context, DBObject object) {
+    Object parameters = object.get(getKeyword());
+    if (!(parameters instanceof DBObject) || parameters instanceof List) {
+      context.errorResult(28745, "the $sample stage specification must be an object").throwOnError();
+    }
+    DBObject dbObject = (DBObject) parameters;
+    for (String key : dbObject.keySet()) {
+      if (!"size".equals(key)) {
+        context.errorResult(28748, "unrecognized option to $sample: " + key).throwOnError();
+      }
+    }
+    Object size = dbObject.get("size");
+    if (!(size instanceof Number)) {
+      context.errorResult(28746, "size argument to $sample must be a number").throwOnError();
+    }
+    long value = ((Number) size).longValue();
+    if (value < 0) {
+      context.errorResult(28747, "size argument to $sample must not be negative").throwOnError();
+    }
+    return (int) Math.min(value, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public String getKeyword() {
+    return "$sample";
+  }
+}
@@ -1,9 +1,16 @@
 package com.github.fakemongo.impl.aggregation;
 
-import com.mongodb.DBCollection;
+import com.github.fakemongo.impl.ExpressionParser;
 import com.mongodb.DBObject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.PriorityQueue;
 import org.bson.util.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * User: william
@@ -11,20 +18,173 @@ import org.bson.util.annotations.ThreadSafe;
  */
 @ThreadSafe
 public class Sort extends PipelineKeyword {
+  private static final Logger LOG = LoggerFactory.getLogger(Sort.class);
+
   public static final Sort INSTANCE = new Sort();
 
   private Sort() {
   }
 
   /**
-   * @param coll
+   * Stable sort of the input, in memory while the documents fit in the memory limit of the aggregation.
+   * <p/>
+   * Over the limit, with allowDiskUse, the documents are sorted by runs written in temporary files, then the runs are
+   * merged.
+   *
+   * @param context
+   * @param input
    * @param object
    * @return
    */
   @Override
-  public DBCollection apply(DBCollection coll, DBObject object) {
-    List<DBObject> objects = coll.find().sort((DBObject) object.get(getKeyword())).toArray();
-    return dropAndInsert(coll, objects);
+  public Iterator<DBObject> apply(AggregationContext context, Iterator<DBObject> input, DBObject object) {
+    Comparator<Object> comparator = comparator(context, object);
+    List<DBObject> objects = new ArrayList<DBObject>();
+    List<SpillFile> runs = new ArrayList<SpillFile>();
+    long memory = 0;
+    while (input.hasNext()) {
+      DBObject dbObject = input.next();
+      objects.add(dbObject);
+      memory += AggregationContext.sizeOf(dbObject);
+      if (memory > context.getMemoryLimit()) {
+        if (!context.isAllowDiskUse()) {
+          context.errorResult(16819, "exception: Sort exceeded memory limit of " + context.getMemoryLimit()
+              + " bytes, but did not opt in to external sorting. Aborting operation. Pass allowDiskUse:true to opt in.").throwOnError();
+        }
+        runs.add(writeRun(context, objects, comparator));
+        objects.clear();
+        memory = 0;
+      }
+    }
+    // Stable sort, like a find().sort().
+    Collections.sort(objects, comparator);
+    if (runs.isEmpty()) {
+      return objects.iterator();
+    }
+    List<Iterator<DBObject>> iterators = new ArrayList<Iterator<DBObject>>(runs.size() + 1);
+    for (SpillFile run : runs) {
+      iterators.add(run.read());
+    }
+    iterators.add(objects.iterator());
+    return merge(iterators, comparator);
+  }
+
+  /**
+   * The comparator of the stage : also checks the stage when the sort is run by the collection.
+   *
+   * @param object the stage, like { $sort : { name : 1 } }.
+   */
+  public Comparator<Object> comparator(AggregationContext context, DBObject object) {
+    Object orderBy = object.get(getKeyword());
+    if (!(orderBy instanceof DBObject)) {
+      context.errorResult(15973, "exception: the " + getKeyword() + " key specification must be an object").throwOnError();
+    }
+    return new ExpressionParser().sortSpecificationComparator((DBObject) orderBy);
+  }
+
+  private static SpillFile writeRun(AggregationContext context, List<DBObject> objects, Comparator<Object> comparator) {
+    Collections.sort(objects, comparator);
+    SpillFile run = new SpillFile(context, "sort");
+    for (DBObject dbObject : objects) {
+      run.write(dbObject);
+    }
+    LOG.debug("sort() : {} written", run);
+    return run;
+  }
+
+  /**
+   * Merge the sorted runs : equal documents are taken in the order of the runs, so the sort stays stable.
+   */
+  private static Iterator<DBObject> merge(List<Iterator<DBObject>> runs, final Comparator<Object> comparator) {
+    final PriorityQueue<Ranked> heads = new PriorityQueue<Ranked>(runs.size(), new Comparator<Ranked>() {
+      @Override
+      public int compare(Ranked o1, Ranked o2) {
+        int compare = comparator.compare(o1.object, o2.object);
+        if (compare == 0) {
+          compare = o1.rank < o2.rank ? -1 : (o1.rank == o2.rank ? 0 : 1);
+        }
+        return compare;
+      }
+    });
+    final List<Iterator<DBObject>> iterators = runs;
+    for (int i = 0; i < iterators.size(); i++) {
+      if (iterators.get(i).hasNext()) {
+        heads.add(new Ranked(iterators.get(i).next(), i));
+      }
+    }
+    return new StreamIterator() {
+      @Override
+      protected DBObject computeNext() {
+        Ranked head = heads.poll();
+        if (head == null) {
+          return null;
+        }
+        Iterator<DBObject> run = iterators.get((int) head.rank);
+        if (run.hasNext()) {
+          heads.add(new Ranked(run.next(), head.rank));
+        }
+        return head.object;
+      }
+    };
+  }
+
+  /**
+   * Sort when only the first documents are read after : a heap keeps the smallest documents, instead of sorting all the
+   * input.
+   *
+   * @param context
+   * @param input
+   * @param object
+   * @param limit   number of documents read after the sort ($skip + $limit), 0 if all documents are read.
+   * @return
+   */
+  public Iterator<DBObject> apply(AggregationContext context, Iterator<DBObject> input, DBObject object, int limit) {
+    if (limit <= 0) {
+      return apply(context, input, object);
+    }
+    final Comparator<Object> comparator = comparator(context, object);
+    // Equal documents are ranked in input order, like the stable sort.
+    Comparator<Ranked> rankedComparator = new Comparator<Ranked>() {
+      @Override
+      public int compare(Ranked o1, Ranked o2) {
+        int compare = comparator.compare(o1.object, o2.object);
+        if (compare == 0) {
+          compare = o1.rank < o2.rank ? -1 : (o1.rank == o2.rank ? 0 : 1);
+        }
+        return compare;
+      }
+    };
+
+    // The head is the greatest document kept.
+    PriorityQueue<Ranked> heap = new PriorityQueue<Ranked>(Math.min(limit, 1024), Collections.reverseOrder(rankedComparator));
+    long rank = 0;
+    while (input.hasNext()) {
+      Ranked ranked = new Ranked(input.next(), rank++);
+      if (heap.size() < limit) {
+        heap.add(ranked);
+      } else if (rankedComparator.compare(ranked, heap.peek()) < 0) {
+        heap.poll();
+        heap.add(ranked);
+      }
+    }
+
+    List<Ranked> sorted = new ArrayList<Ranked>(heap);
+    Collections.sort(sorted, rankedComparator);
+    List<DBObject> objects = new ArrayList<DBObject>(sorted.size());
+    for (Ranked ranked : sorted) {
+      objects.add(ranked.object);
+    }
+    return objects.iterator();
+  }
+
+  private static final class Ranked {
+    private final DBObject object;
+    private final long rank;
+
+    Ranked(DBObject object, long rank) {
+      this.object = object;
+      this.rank = rank;
+    }
   }
 
   @Override
@@ -0,0 +1,227 @@
+package com.github.fakemongo.impl.aggregation;
+
+import com.github.fakemongo.FongoException;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.DefaultDBEncoder;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Temporary file of documents, for the stages going over the memory limit of the aggregation.
+ * <p/>
+ * The documents are written one after the other in BSON, then read back once, in the same order : the file is deleted
+ * at the end of the read, or when the aggregation is closed (see {@link AggregationContext#close()}). The files still
+ * there when the JVM stops are deleted by a shutdown hook.
+ */
+class SpillFile implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(SpillFile.class);
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * The document is wrapped, else the encoder moves its "_id" in first position.
+   */
+  private static final String DOCUMENT = "d";
+
+  /**
+   * The files not deleted yet, for the shutdown hook.
+   */
+  private static final Set<File> FILES = new LinkedHashSet<File>();
+
+  private static boolean shutdownHook;
+
+  private final File file;
+
+  private final DefaultDBEncoder encoder = new DefaultDBEncoder();
+
+  private OutputStream output;
+
+  private InputStream input;
+
+  private boolean deleted;
+
+  private long count;
+
+  /**
+   * @param context the aggregation, closing the file with it.
+   */
+  SpillFile(AggregationContext context, String prefix) {
+    try {
+      this.file = File.createTempFile("fongo-" + prefix + "-", ".bson");
+    } catch (IOException e) {
+      throw new FongoException("can't create a temporary file for the aggregation", e);
+    }
+    addFile(file);
+    context.register(this);
+    try {
+      this.output = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+    } catch (IOException e) {
+      delete();
+      throw new FongoException("can't create a temporary file for the aggregation", e);
+    }
+    LOG.debug("spill to {}", file);
+  }
+
+  void write(DBObject object) {
+    try {
+      output.write(encoder.encode(new BasicDBObject(DOCUMENT, object)));
+      count++;
+    } catch (IOException e) {
+      throw new FongoException("can't write in " + file, e);
+    }
+  }
+
+  long count() {
+    return count;
+  }
+
+  /**
+   * Close the file and read its documents.
+   */
+  Iterator<DBObject> read() {
+    closeOutput();
+    final DataInputStream input;
+    try {
+      input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+    } catch (IOException e) {
+      delete();
+      throw new FongoException("can't read " + file, e);
+    }
+    this.input = input;
+    return new PipelineKeyword.StreamIterator() {
+      private final DefaultDBDecoder decoder = new DefaultDBDecoder();
+      private long remaining = count;
+
+      @Override
+      protected DBObject computeNext() {
+        if (remaining <= 0) {
+          if (remaining == 0) {
+            remaining = -1;
+            close();
+          }
+          return null;
+        }
+        remaining--;
+        try {
+          return (DBObject) decoder.decode(readDocument(input), (DBCollection) null).get(DOCUMENT);
+        } catch (IOException e) {
+          remaining = -1;
+          close();
+          throw new FongoException("can't read " + file, e);
+        }
+      }
+    };
+  }
+
+  private static byte[] readDocument(DataInputStream input) throws IOException {
+    byte[] size = new byte[4];
+    input.readFully(size);
+    // BSON size : little endian, including these 4 bytes.
+    int length = (size[0] & 0xff) | (size[1] & 0xff) << 8 | (size[2] & 0xff) << 16 | (size[3] & 0xff) << 24;
+    if (length < 5) {
+      throw new EOFException("invalid document size " + length);
+    }
+    byte[] document = new byte[length];
+    System.arraycopy(size, 0, document, 0, 4);
+    input.readFully(document, 4, length - 4);
+    return document;
+  }
+
+  private void closeOutput() {
+    if (output != null) {
+      try {
+        output.close();
+      } catch (IOException e) {
+        throw new FongoException("can't write in " + file, e);
+      } finally {
+        output = null;
+      }
+    }
+  }
+
+  /**
+   * Close the file and delete it, whether it was read or not.
+   */
+  @Override
+  public void close() {
+    closeQuietly(output);
+    output = null;
+    closeQuietly(input);
+    input = null;
+    delete();
+  }
+
+  private void delete() {
+    if (deleted) {
+      return;
+    }
+    deleted = true;
+    if (file.delete() || !file.exists()) {
+      removeFile(file);
+    } else {
+      LOG.warn("can't delete {}", file);
+    }
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    if (closeable == null) {
+      return;
+    }
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      LOG.warn("can't close the temporary file", e);
+    }
+  }
+
+  private static synchronized void addFile(File file) {
+    if (!shutdownHook) {
+      shutdownHook = true;
+      Runtime.getRuntime().addShutdownHook(new Thread("fongo-spill-files") {
+        @Override
+        public void run() {
+          deleteFiles();
+        }
+      });
+    }
+    FILES.add(file);
+  }
+
+  private static synchronized void removeFile(File file) {
+    FILES.remove(file);
+  }
+
+  private static synchronized void deleteFiles() {
+    for (File file : FILES) {
+      if (!file.delete()) {
+        LOG.warn("can't delete {}", file);
+      }
+    }
+    FILES.clear();
+  }
+
+  @Override
+  public String toString() {
+    return "SpillFile{" +
+        "file=" + file +
+        ", count=" + count +
+        '}';
+  }
+}
@@ -0,0 +1,154 @@
+package com.github.fakemongo.impl.aggregation;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Iterator;
+
+/**
+ * Statistics of one stage of a profiled aggregation : the documents read and returned, the time spent and the bytes
+ * allocated by the stage itself, without its previous stages.
+ * <p/>
+ * The bytes are allocated by the thread reading the aggregation (-1 if the JVM can't tell) : the tasks of a parallel
+ * $group are not counted.
+ */
+public class StageProfile {
+  private static final ThreadMXBean THREADS = threadMXBean();
+
+  private final DBObject stage;
+
+  private final String keyword;
+
+  private final StageProfile previous;
+
+  private long output;
+
+  // With the time and bytes of the previous stages.
+  private long totalNanos;
+
+  private long totalBytes;
+
+  private long startNanos;
+
+  private long startBytes;
+
+  /**
+   * @param stage    the stage, like { $match : { ... } }.
+   * @param previous the profile of the previous stage, null for the first one.
+   */
+  public StageProfile(DBObject stage, StageProfile previous) {
+    this.stage = stage;
+    this.keyword = stage.keySet().iterator().next();
+    this.previous = previous;
+  }
+
+  /**
+   * Start to measure the stage (the previous stages are measured by their own profile).
+   */
+  public void start() {
+    startNanos = System.nanoTime();
+    startBytes = allocatedBytes();
+  }
+
+  public void stop() {
+    totalNanos += System.nanoTime() - startNanos;
+    if (startBytes >= 0) {
+      totalBytes += allocatedBytes() - startBytes;
+    }
+  }
+
+  /**
+   * Measure the documents returned by the stage.
+   */
+  public Iterator<DBObject> profile(final Iterator<DBObject> documents) {
+    return new Iterator<DBObject>() {
+      @Override
+      public boolean hasNext() {
+        start();
+        boolean hasNext = documents.hasNext();
+        stop();
+        return hasNext;
+      }
+
+      @Override
+      public DBObject next() {
+        start();
+        DBObject next = documents.next();
+        stop();
+        output++;
+        return next;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  public String getKeyword() {
+    return keyword;
+  }
+
+  public DBObject getStage() {
+    return stage;
+  }
+
+  /**
+   * @return documents read from the previous stage.
+   */
+  public long getInput() {
+    return previous == null ? output : previous.output;
+  }
+
+  /**
+   * @return documents returned by this stage.
+   */
+  public long getOutput() {
+    return output;
+  }
+
+  public long getNanos() {
+    return previous == null ? totalNanos : totalNanos - previous.totalNanos;
+  }
+
+  /**
+   * @return bytes allocated by this stage, -1 if unknown.
+   */
+  public long getAllocatedBytes() {
+    if (startBytes < 0) {
+      return -1;
+    }
+    return previous == null ? totalBytes : totalBytes - previous.totalBytes;
+  }
+
+  public DBObject toDBObject() {
+    return new BasicDBObject("stage", keyword).append("input", getInput()).append("output", getOutput())
+        .append("micros", getNanos() / 1000).append("allocatedBytes", getAllocatedBytes());
+  }
+
+  private static ThreadMXBean threadMXBean() {
+    try {
+      ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+      if (threads instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+        return threads;
+      }
+    } catch (LinkageError e) {
+      // Not a HotSpot JVM.
+    }
+    return null;
+  }
+
+  private static long allocatedBytes() {
+    if (THREADS == null || !((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemoryEnabled()) {
+      return -1;
+    }
+    return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  @Override
+  public String toString() {
+    return "StageProfile" + toDBObject();
+  }
+}
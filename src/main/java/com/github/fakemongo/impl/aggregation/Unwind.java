@@ -2,11 +2,13 @@ package com.github.fakemongo.impl.aggregation;
 
 import com.github.fakemongo.impl.Util;
 import com.mongodb.BasicDBList;
-import com.mongodb.DBCollection;
+import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
 import com.mongodb.MongoException;
-import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 import org.bson.util.annotations.ThreadSafe;
 
 /**
@@ -32,36 +34,77 @@ public class Unwind extends PipelineKeyword {
    * If you specify a target field for $unwind that holds an empty array ([]) in an input document, the pipeline ignores the input document, and will generates no result documents.
    * </pre>
    *
-   * @param coll
+   * @param input
    * @param object
    * @return
    */
   @Override
-  public DBCollection apply(DBCollection coll, DBObject object) {
-    String fieldName = object.get(getKeyword()).toString();
-    if (!fieldName.startsWith("$")) {
+  public Iterator<DBObject> apply(AggregationContext context, final Iterator<DBObject> input, DBObject object) {
+    String field = object.get(getKeyword()).toString();
+    if (!field.startsWith("$")) {
       throw new MongoException(""); // TODO
     }
-    fieldName = fieldName.substring(1);
+    List<String> fieldPath = Util.path(field.substring(1));
+    final String[] path = fieldPath.toArray(new String[fieldPath.size()]);
 
-    List<DBObject> result = new ArrayList<DBObject>();
-    for (DBObject dbObject : coll.find().toArray()) {
-      if (Util.containsField(dbObject, fieldName)) {
-        Object oValue = Util.extractField(dbObject, fieldName);
-        if (!(oValue instanceof BasicDBList)) {
-//          throw fongoDB..errorResult(15978, "$unwind:  value at end of field path must be an array").getException;
-          throw new MongoException(15978, "exception: $unwind:  value at end of field path must be an array");
-        }
-        BasicDBList list = (BasicDBList) oValue;
-        for (Object sublist : list) {
-          DBObject newValue = Util.clone(dbObject);
-          Util.putValue(newValue, fieldName, sublist);
-          newValue.removeField("_id"); // TODO _id must be the same (but Fongo doesn't handle)
-          result.add(newValue);
+    return new StreamIterator() {
+      private DBObject current;
+      private Iterator<Object> values = Collections.emptyList().iterator();
+
+      @Override
+      protected DBObject computeNext() {
+        while (!values.hasNext()) {
+          if (!input.hasNext()) {
+            return null;
+          }
+          current = input.next();
+          values = unwind(current, path);
         }
+        return unwound(current, path, 0, values.next());
+      }
+    };
+  }
+
+  private static Iterator<Object> unwind(DBObject dbObject, String[] path) {
+    Object oValue = dbObject;
+    for (String field : path) {
+      if (!(oValue instanceof DBObject) || !((DBObject) oValue).containsField(field)) {
+        return Collections.emptyList().iterator();
       }
+      oValue = ((DBObject) oValue).get(field);
     }
-    return dropAndInsert(coll, result);
+    if (!(oValue instanceof BasicDBList)) {
+//      throw fongoDB..errorResult(15978, "$unwind:  value at end of field path must be an array").getException;
+      throw new MongoException(15978, "exception: $unwind:  value at end of field path must be an array");
+    }
+    return ((BasicDBList) oValue).iterator();
+  }
+
+  /**
+   * Shallow copy of the document with one value of the array : the other fields are shared with the parent document
+   * (the stages don't modify their input), only the documents on the path of the array are copied.
+   */
+  private static DBObject unwound(DBObject parent, String[] path, int index, Object value) {
+    Set<String> keys = parent.keySet();
+    DBObject document = new BasicDBObject(keys.size());
+    for (String key : keys) {
+      if (!path[index].equals(key)) {
+        document.put(key, parent.get(key));
+      } else if (index == path.length - 1) {
+        document.put(key, value);
+      } else {
+        document.put(key, unwound((DBObject) parent.get(key), path, index + 1, value));
+      }
+    }
+    return document;
+  }
+
+  /**
+   * The documents unwound from a same document share its fields.
+   */
+  @Override
+  public boolean sharesDocuments() {
+    return true;
   }
 
   @Override
@@ -249,6 +249,31 @@ public abstract class IndexAbstract<T extends DBObject> {
     return values;
   }
 
+  /**
+   * Random objects of the index, selected in one pass over the values without copying them (selection sampling).
+   *
+   * @param size   number of objects to select.
+   * @param random source of the selection.
+   * @return at most size objects, in the order of the index.
+   */
+  public List<T> sample(int size, Random random) {
+    int remaining = size();
+    List<T> sample = new ArrayList<T>(Math.min(size, remaining));
+    for (List<T> objects : mapValues.values()) {
+      for (T object : objects) {
+        if (sample.size() >= size) {
+          return sample;
+        }
+        // Each object is selected with the probability (still to select) / (still to read).
+        if (random.nextInt(remaining) < size - sample.size()) {
+          sample.add(object);
+        }
+        remaining--;
+      }
+    }
+    return sample;
+  }
+
   public void clear() {
     mapValues.clear();
   }
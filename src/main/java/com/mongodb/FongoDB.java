@@ -3,6 +3,9 @@ package com.mongodb;
 import com.github.fakemongo.Fongo;
 import com.github.fakemongo.impl.Aggregator;
 import com.github.fakemongo.impl.MapReduce;
+import com.github.fakemongo.impl.aggregation.AggregationContext;
+import com.github.fakemongo.impl.aggregation.AggregationListener;
+import com.github.fakemongo.impl.aggregation.StageProfile;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -64,11 +67,9 @@ public class FongoDB extends DB {
     return coll.findAndModify(query, fields, sort, remove, update, returnNew, upsert);
   }
 
-  private List<DBObject> doAggregateCollection(String collection, List<DBObject> pipeline) {
+  private Aggregator doAggregateCollection(String collection, List<DBObject> pipeline, boolean allowDiskUse, boolean profile) {
     FongoDBCollection coll = doGetCollection(collection);
-    Aggregator aggregator = new Aggregator(this, coll, pipeline);
-
-    return aggregator.computeResult();
+    return new Aggregator(this, coll, pipeline, new AggregationContext(this, allowDiskUse, AggregationContext.DEFAULT_MEMORY_LIMIT, profile));
   }
 
   private DBObject doMapReduce(String collection, String map, String reduce, String finalize, DBObject out, DBObject query, DBObject sort, Number limit) {
@@ -77,6 +78,20 @@ public class FongoDB extends DB {
     return mapReduce.computeResult();
   }
 
+  /**
+   * Map-reduce of java functions, without javascript.
+   *
+   * @param out      like the "out" of the mapReduce command ({ inline : 1 }, { replace : "collection" }...).
+   * @param parallel true if the functions can be called by several threads.
+   * @return the result of the mapReduce command.
+   */
+  public CommandResult mapReduce(String collection, MapReduce.MapFunction map, MapReduce.ReduceFunction reduce, MapReduce.FinalizeFunction finalize,
+                                 DBObject out, DBObject query, DBObject sort, Number limit, boolean parallel) {
+    FongoDBCollection coll = doGetCollection(collection);
+    MapReduce mapReduce = new MapReduce(this.fongo, coll, map, reduce, finalize, out, query, sort, limit, parallel);
+    return mapReduceResult(mapReduce.computeResult());
+  }
+
   private List<DBObject> doGeoNearCollection(String collection, DBObject near, DBObject query, Number limit, Number maxDistance, boolean spherical) {
     FongoDBCollection coll = doGetCollection(collection);
     return coll.geoNear(near, query, limit, maxDistance, spherical);
@@ -181,7 +196,16 @@ public class FongoDB extends DB {
       CommandResult okResult = okResult();
       return okResult;
     } else if (cmd.containsField("aggregate")) {
-      @SuppressWarnings("unchecked") List<DBObject> result = doAggregateCollection((String) cmd.get("aggregate"), (List<DBObject>) cmd.get("pipeline"));
+      @SuppressWarnings("unchecked") Aggregator aggregator = doAggregateCollection((String) cmd.get("aggregate"), (List<DBObject>) cmd.get("pipeline"),
+          Boolean.TRUE.equals(cmd.get("allowDiskUse")), Boolean.TRUE.equals(cmd.get("profile")));
+      if (Boolean.TRUE.equals(cmd.get("explain"))) {
+        CommandResult okResult = okResult();
+        BasicDBList stages = new BasicDBList();
+        stages.addAll(aggregator.explain());
+        okResult.put("stages", stages);
+        return okResult;
+      }
+      List<DBObject> result = aggregator.computeResult();
       if (result == null) {
         return notOkErrorResult("can't aggregate");
       }
@@ -189,6 +213,14 @@ public class FongoDB extends DB {
       BasicDBList list = new BasicDBList();
       list.addAll(result);
       okResult.put("result", list);
+      if (Boolean.TRUE.equals(cmd.get("profile"))) {
+        // Fongo only : the statistics of each stage.
+        BasicDBList profiles = new BasicDBList();
+        for (StageProfile profile : aggregator.getProfiles()) {
+          profiles.add(profile.toDBObject());
+        }
+        okResult.put("profile", profiles);
+      }
       return okResult;
     } else if (cmd.containsField("findAndModify")) {
       return runFindAndModify(cmd, "findAndModify");
@@ -273,6 +305,10 @@ public class FongoDB extends DB {
     return notOkErrorResult(null, "no such cmd: " + command);
   }
 
+  public AggregationListener getAggregationListener() {
+    return fongo.getAggregationListener();
+  }
+
   public CommandResult okResult() {
     CommandResult result = new CommandResult(fongo.getServerAddress());
     result.put("ok", 1.0);
@@ -352,6 +388,10 @@ public class FongoDB extends DB {
         (DBObject) cmd.get("query"),
         (DBObject) cmd.get("sort"),
         (Number) cmd.get("limit"));
+    return mapReduceResult(result);
+  }
+
+  private CommandResult mapReduceResult(DBObject result) {
     if (result == null) {
       return notOkErrorResult("can't mapReduce");
     }
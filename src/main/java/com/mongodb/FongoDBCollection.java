@@ -1,11 +1,13 @@
 package com.mongodb;
 
 import com.github.fakemongo.FongoException;
+import com.github.fakemongo.impl.Aggregator;
 import com.github.fakemongo.impl.ExpressionParser;
 import com.github.fakemongo.impl.Filter;
 import com.github.fakemongo.impl.Tuple2;
 import com.github.fakemongo.impl.UpdateEngine;
 import com.github.fakemongo.impl.Util;
+import com.github.fakemongo.impl.aggregation.AggregationContext;
 import com.github.fakemongo.impl.geo.GeoUtil;
 import com.github.fakemongo.impl.index.GeoIndex;
 import com.github.fakemongo.impl.index.IndexAbstract;
@@ -24,6 +26,8 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
 import java.util.Set;
 import org.bson.BSON;
 import org.bson.io.BasicOutputBuffer;
@@ -49,7 +53,11 @@ public class FongoDBCollection extends DBCollection {
 
   public static final String FONGO_SPECIAL_ORDER_BY = "$$$$$FONGO_ORDER_BY$$$$$";
 
-  private static final String ID_NAME_INDEX = "_id_";
+  public static final String ID_NAME_INDEX = "_id_";
+  /**
+   * Documents in the first batch of a cursor, when not given.
+   */
+  private static final int DEFAULT_BATCH_SIZE = 101;
   private final FongoDB fongoDb;
   private final ExpressionParser expressionParser;
   private final UpdateEngine updateEngine;
@@ -57,7 +65,7 @@ public class FongoDBCollection extends DBCollection {
   private final ExpressionParser.ObjectComparator objectComparator;
   // Fields/Index
   private final List<IndexAbstract> indexes = new ArrayList<IndexAbstract>();
-  private final IndexAbstract _idIndex;
+  private IndexAbstract _idIndex;
 
   public FongoDBCollection(FongoDB db, String name) {
     super(db, name);
@@ -826,13 +834,21 @@ public class FongoDBCollection extends DBCollection {
       final Set<String> orderbyKeySet = orderby.keySet();
       if (!orderbyKeySet.isEmpty()) {
         DBObject[] objectsToSort = objects.toArray(new DBObject[objects.size()]);
+        final int size = orderbyKeySet.size();
+        @SuppressWarnings({"unchecked", "rawtypes"}) final List<String>[] paths = new List[size];
+        final int[] sortDirections = new int[size];
+        int k = 0;
+        for (String sortKey : orderbyKeySet) {
+          paths[k] = Util.path(sortKey);
+          sortDirections[k++] = (Integer) orderby.get(sortKey);
+        }
 
         Arrays.sort(objectsToSort, new Comparator<DBObject>() {
           @Override
           public int compare(DBObject o1, DBObject o2) {
-            for (String sortKey : orderbyKeySet) {
-              final List<String> path = Util.split(sortKey);
-              int sortDirection = (Integer) orderby.get(sortKey);
+            for (int i = 0; i < size; i++) {
+              final List<String> path = paths[i];
+              int sortDirection = sortDirections[i];
 
               List<Object> o1list = expressionParser.getEmbeddedValues(path, o1);
               List<Object> o2list = expressionParser.getEmbeddedValues(path, o2);
@@ -951,7 +967,22 @@ public class FongoDBCollection extends DBCollection {
 
   @Override
   public Cursor aggregate(List<DBObject> pipeline, AggregationOptions options, ReadPreference readPreference) {
-    return this.createQueryResultIterator(this.aggregate(pipeline, readPreference).results().iterator());
+    if (options.getOutputMode() == AggregationOptions.OutputMode.CURSOR) {
+      if (pipeline.isEmpty()) {
+        throw new MongoException("Aggregation pipelines can not be empty");
+      }
+      AggregationContext context = new AggregationContext(fongoDb, Boolean.TRUE.equals(options.getAllowDiskUse()));
+      Iterator<DBObject> results = new Aggregator(fongoDb, this, pipeline, context).resultIterator();
+      Integer batchSize = options.getBatchSize();
+      AggregationCursor cursor = createQueryResultIterator(AggregationCursor.class, new BatchIterator(results, batchSize == null || batchSize <= 0 ? DEFAULT_BATCH_SIZE : batchSize));
+      cursor.context = context;
+      return cursor;
+    }
+    // The options (allowDiskUse...) are in the command.
+    CommandResult result = getDB().command(prepareCommand(pipeline, options), getOptions(), readPreference);
+    result.throwOnError();
+    @SuppressWarnings("unchecked") List<DBObject> documents = (List<DBObject>) result.get("result");
+    return this.createQueryResultIterator(documents.iterator());
   }
 
   @Override
@@ -1138,6 +1169,112 @@ public class FongoDBCollection extends DBCollection {
     }
   }
 
+  /**
+   * Replace all the documents of the collection (like the $out stage of an aggregation), keeping its indexes.
+   * <p/>
+   * The documents are read into a new "_id" index without the lock of the collection ; the other indexes are then built
+   * once with all the documents, and the collection changes at once.
+   *
+   * @param documents the new documents.
+   * @return the number of documents.
+   */
+  public int replaceDocuments(Iterator<DBObject> documents) {
+    IndexAbstract<?> idIndex = IndexFactory.create(ID_KEY, new BasicDBObject(ID_KEY, 1), true);
+    int count = 0;
+    while (documents.hasNext()) {
+      DBObject document = filterLists(Util.cloneIdFirst(documents.next()));
+      putIdIfNotPresent(document);
+      if (++count > 100000) {
+        throw new FongoException("Whoa, hold up there.  Fongo's designed for lightweight testing.  100,000 items per collection max");
+      }
+      List<List<Object>> notUnique = idIndex.addOrUpdate(document, null);
+      if (!notUnique.isEmpty()) {
+        fongoDb.errorResult(11000, "E11000 duplicate key error index: " + getFullName() + ".$" + ID_NAME_INDEX + "  dup key: { : " + notUnique + " }").throwOnError();
+      }
+    }
+    List<DBObject> values = idIndex.values();
+    synchronized (this) {
+      List<IndexAbstract<?>> newIndexes = new ArrayList<IndexAbstract<?>>(indexes.size());
+      for (IndexAbstract<?> index : indexes) {
+        if (index == _idIndex) {
+          newIndexes.add(idIndex);
+          continue;
+        }
+        IndexAbstract<?> newIndex = IndexFactory.create(index.getName(), index.getKeys(), index.isUnique());
+        List<List<Object>> notUnique = newIndex.addAll(values);
+        if (!notUnique.isEmpty()) {
+          fongoDb.errorResult(11000, "E11000 duplicate key error index: " + getFullName() + ".$" + index.getName() + "  dup key: { : " + notUnique + " }").throwOnError();
+        }
+        newIndexes.add(newIndex);
+      }
+      _idIndex = idIndex;
+      indexes.clear();
+      indexes.addAll(newIndexes);
+    }
+    return count;
+  }
+
+  /**
+   * Random documents of the collection, read from the "_id" index.
+   *
+   * @param size number of documents, all the documents if the collection has fewer.
+   * @return copies of the documents, in a random order.
+   */
+  public synchronized List<DBObject> sample(int size, Random random) {
+    List<DBObject> sample = new ArrayList<DBObject>();
+    for (Object object : _idIndex.sample(size, random)) {
+      sample.add(Util.clone((DBObject) object));
+    }
+    Collections.shuffle(sample, random);
+    return sample;
+  }
+
+  /**
+   * Read the documents of several "_id" under one lock of the collection, each from the "_id" index without a query.
+   *
+   * @param ids the "_id" of the documents.
+   * @return a copy of the document of each "_id", in the same order ; null if there is no document.
+   */
+  public synchronized List<DBObject> findByIds(List<Object> ids) {
+    List<DBObject> documents = new ArrayList<DBObject>(ids.size());
+    IndexAbstract<?> idIndex = _idIndex;
+    for (Object id : ids) {
+      DBObject query = new BasicDBObject(ID_KEY, id);
+      Collection<? extends DBObject> found;
+      if (id == null || id instanceof DBObject || id instanceof Binary || id instanceof byte[]) {
+        found = idIndex.retrieveObjects(query);
+      } else {
+        found = idIndex.get(query);
+      }
+      documents.add(found == null || found.isEmpty() ? null : Util.clone(found.iterator().next()));
+    }
+    return documents;
+  }
+
+  /**
+   * Write several documents under one lock of the collection : a document replaces the document of the same "_id",
+   * or is inserted if there is none (like an update with upsert by "_id").
+   *
+   * @param documents the documents, with their "_id".
+   * @return the number of replaced documents.
+   */
+  public synchronized int upsertByIds(List<DBObject> documents) {
+    WriteConcern concern = getWriteConcern();
+    IndexAbstract<?> idIndex = _idIndex;
+    int replaced = 0;
+    for (DBObject document : documents) {
+      DBObject cloned = filterLists(Util.cloneIdFirst(document));
+      Iterator<? extends DBObject> oldObjects = idIndex.retrieveObjects(new BasicDBObject(ID_KEY, cloned.get(ID_KEY))).iterator();
+      if (oldObjects.hasNext()) {
+        addToIndexes(cloned, oldObjects.next(), concern);
+        replaced++;
+      } else {
+        fInsert(cloned, concern);
+      }
+    }
+    return replaced;
+  }
+
   public synchronized Collection<IndexAbstract> getIndexes() {
     return Collections.unmodifiableList(indexes);
   }
@@ -1161,9 +1298,61 @@ public class FongoDBCollection extends DBCollection {
     return ts.findByTextSearch(search, project == null ? new BasicDBObject() : project, limit == null ? 100 : limit.intValue());
   }
 
+  /**
+   * Results of an aggregation read by batches, like a cursor of the server : the first batch is read when the cursor is
+   * created, the next batches are computed when the previous one is read.
+   */
+  private static class BatchIterator implements Iterator<DBObject> {
+    private final Iterator<DBObject> results;
+    private final int batchSize;
+    private final List<DBObject> batch;
+    private int index;
+
+    BatchIterator(Iterator<DBObject> results, int batchSize) {
+      this.results = results;
+      this.batchSize = batchSize;
+      this.batch = new ArrayList<DBObject>(batchSize);
+      nextBatch();
+    }
+
+    private void nextBatch() {
+      batch.clear();
+      index = 0;
+      while (batch.size() < batchSize && results.hasNext()) {
+        batch.add(results.next());
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (index == batch.size()) {
+        nextBatch();
+      }
+      return index < batch.size();
+    }
+
+    @Override
+    public DBObject next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      // The batch doesn't keep the documents already read.
+      return batch.set(index++, null);
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
   private QueryResultIterator createQueryResultIterator(Iterator<DBObject> values) {
+    return createQueryResultIterator(QueryResultIterator.class, values);
+  }
+
+  private static <T extends QueryResultIterator> T createQueryResultIterator(Class<T> cursorClass, Iterator<DBObject> values) {
     try {
-      QueryResultIterator iterator = new ObjenesisStd().getInstantiatorOf(QueryResultIterator.class).newInstance();
+      T iterator = new ObjenesisStd().getInstantiatorOf(cursorClass).newInstance();
       Field field = QueryResultIterator.class.getDeclaredField("_cur");
       field.setAccessible(true);
       field.set(iterator, values);
@@ -1172,4 +1361,25 @@ public class FongoDBCollection extends DBCollection {
       throw new RuntimeException(e);
     }
   }
+
+  /**
+   * Cursor of an aggregation : closing the cursor before its end also closes the aggregation (its temporary files).
+   */
+  private static final class AggregationCursor extends QueryResultIterator {
+    private AggregationContext context;
+
+    private AggregationCursor() {
+      // Never called : created by objenesis.
+      super((DBObject) null, null, null, 0, null, null);
+    }
+
+    @Override
+    public void close() {
+      try {
+        context.close();
+      } finally {
+        super.close();
+      }
+    }
+  }
 }
@@ -0,0 +1,77 @@
+package com.github.fakemongo;
+
+import ch.qos.logback.classic.Level;
+import com.github.fakemongo.impl.ExpressionParser;
+import com.github.fakemongo.impl.Filter;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.FongoDBCollection;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measure the bytes allocated by the filters for each document (needs a HotSpot JVM).
+ */
+public class FilterAllocationPerfTest {
+  private static final int DOCUMENTS = 10000;
+
+  public static void main(String[] args) {
+    // Desactivate logback
+    ch.qos.logback.classic.Logger log = (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(FongoDBCollection.class);
+    log.setLevel(Level.ERROR);
+    log = (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(ExpressionParser.class);
+    log.setLevel(Level.ERROR);
+
+    List<DBObject> documents = new ArrayList<DBObject>(DOCUMENTS);
+    for (int i = 0; i < DOCUMENTS; i++) {
+      documents.add(new BasicDBObject("_id", i).append("a", i % 100)
+          .append("n", new BasicDBObject("a", i % 10).append("b", new BasicDBObject("c", "value" + i))));
+    }
+
+    ExpressionParser expressionParser = new ExpressionParser();
+    List<DBObject> queries = new ArrayList<DBObject>();
+    queries.add(new BasicDBObject("a", 5));
+    queries.add(new BasicDBObject("n.a", 5));
+    queries.add(new BasicDBObject("n.b.c", new BasicDBObject("$gte", "value5")));
+    queries.add(new BasicDBObject("n.a", new BasicDBObject("$in", java.util.Arrays.asList(1, 2))));
+    queries.add(new BasicDBObject("n.a", new BasicDBObject("$ne", 1)).append("n.b.c", new BasicDBObject("$exists", true)));
+
+    System.out.println("Warming jvm");
+    for (int i = 0; i < 200; i++) {
+      for (DBObject query : queries) {
+        filter(expressionParser, query, documents);
+      }
+    }
+    System.out.println("Warming jvm done.");
+
+    for (DBObject query : queries) {
+      long allocated = allocatedBytes();
+      long startTime = System.nanoTime();
+      int count = 0;
+      for (int i = 0; i < 100; i++) {
+        count += filter(expressionParser, query, documents);
+      }
+      long took = System.nanoTime() - startTime;
+      allocated = allocatedBytes() - allocated;
+      System.out.println(query + " : " + (allocated / (100L * DOCUMENTS)) + " bytes/document, "
+          + (took / (100L * DOCUMENTS)) + " ns/document (" + count / 100 + " found)");
+    }
+  }
+
+  private static int filter(ExpressionParser expressionParser, DBObject query, List<DBObject> documents) {
+    Filter filter = expressionParser.buildFilter(query);
+    int count = 0;
+    for (DBObject document : documents) {
+      if (filter.apply(document)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private static long allocatedBytes() {
+    return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+}
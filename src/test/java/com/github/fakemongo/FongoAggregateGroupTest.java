@@ -2,9 +2,12 @@ package com.github.fakemongo;
 
 import com.github.fakemongo.junit.FongoRule;
 import com.mongodb.AggregationOutput;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
 import com.mongodb.util.JSON;
+import java.util.ArrayList;
 import java.util.List;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
@@ -55,4 +58,129 @@ public class FongoAggregateGroupTest {
   }
 
 
+  @Test
+  public void testGroupInOnePassKeepsOrderOfFirstSeenKey() {
+    DBCollection coll = fongoRule.newCollection();
+    fongoRule.insertJSON(coll, "[{ _id: 1, city: \"Paris\", pop: 10 },\n" +
+        "{ _id: 2, city: \"Lyon\", pop: 5 },\n" +
+        "{ _id: 3, city: \"Paris\", pop: 20 },\n" +
+        "{ _id: 4, city: \"Nice\" },\n" +
+        "{ _id: 5, city: \"Lyon\", pop: 7 }]");
+    DBObject group = fongoRule.parseDBObject("{ $group: { _id: \"$city\", total: { $sum: \"$pop\" }, count: { $sum: 1 }, " +
+        "avg: { $avg: \"$pop\" }, min: { $min: \"$pop\" }, max: { $max: \"$pop\" }, " +
+        "first: { $first: \"$_id\" }, last: { $last: \"$_id\" }, ids: { $push: \"$_id\" } } }");
+
+    // When
+    AggregationOutput output = coll.aggregate(group);
+
+    // Then
+    assertTrue(output.getCommandResult().ok());
+    List<DBObject> result = (List<DBObject>) output.getCommandResult().get("result");
+    assertEquals(JSON.parse("[" +
+        "{ _id: \"Paris\", total: 30, count: 2, avg: 15.0, min: 10, max: 20, first: 1, last: 3, ids: [1, 3] }," +
+        "{ _id: \"Lyon\", total: 12, count: 2, avg: 6.0, min: 5, max: 7, first: 2, last: 5, ids: [2, 5] }," +
+        "{ _id: \"Nice\", count: 1, first: 4, last: 4, ids: [4] }" +
+        "]"), result);
+    // The pipeline is left untouched.
+    assertTrue(((DBObject) group.get("$group")).containsField("_id"));
+  }
+
+  @Test
+  public void testGroupNumbersOfDifferentTypesTogether() {
+    DBCollection coll = fongoRule.newCollection();
+    fongoRule.insertJSON(coll, "[{ _id: 1, value: 1 },\n" +
+        "{ _id: 2, value: 1.0 },\n" +
+        "{ _id: 3, value: 2 }]");
+    coll.insert(new BasicDBObject("_id", 4).append("value", 1L));
+    DBObject group = fongoRule.parseDBObject("{ $group: { _id: \"$value\", count: { $sum: 1 } } }");
+
+    // When
+    AggregationOutput output = coll.aggregate(group);
+
+    // Then
+    List<DBObject> result = (List<DBObject>) output.getCommandResult().get("result");
+    assertEquals(JSON.parse("[{ _id: 1, count: 3 }, { _id: 2, count: 1 }]"), result);
+  }
+
+  @Test
+  public void testGroupInParallelGivesSameResultThanSequential() {
+    DBCollection coll = fongoRule.newCollection();
+    // Several chunks of documents.
+    int size = 30017;
+    List<DBObject> objects = new ArrayList<DBObject>();
+    for (int i = 0; i < size; i++) {
+      objects.add(new BasicDBObject("_id", i).append("k", i % 3).append("v", i).append("s", i % 5));
+    }
+    coll.insert(objects);
+    DBObject group = fongoRule.parseDBObject("{ $group: { _id: \"$k\", total: { $sum: \"$v\" }, count: { $sum: 1 }, " +
+        "avg: { $avg: \"$v\" }, min: { $min: \"$v\" }, max: { $max: \"$v\" }, " +
+        "first: { $first: \"$v\" }, last: { $last: \"$v\" }, values: { $push: \"$v\" }, set: { $addToSet: \"$s\" } } }");
+
+    // When
+    AggregationOutput output = coll.aggregate(group);
+
+    // Then
+    List<DBObject> result = (List<DBObject>) output.getCommandResult().get("result");
+    assertEquals(3, result.size());
+    for (int k = 0; k < 3; k++) {
+      DBObject groupResult = result.get(k);
+      long total = 0;
+      int count = 0;
+      BasicDBList values = new BasicDBList();
+      for (int v = k; v < size; v += 3) {
+        total += v;
+        count++;
+        values.add(v);
+      }
+      int last = values.size() - 1;
+      assertEquals(k, groupResult.get("_id"));
+      assertEquals((int) total, groupResult.get("total"));
+      assertEquals(count, groupResult.get("count"));
+      assertEquals((double) total / count, groupResult.get("avg"));
+      assertEquals(k, groupResult.get("min"));
+      assertEquals(values.get(last), groupResult.get("max"));
+      assertEquals(k, groupResult.get("first"));
+      assertEquals(values.get(last), groupResult.get("last"));
+      assertEquals(values, groupResult.get("values"));
+      assertEquals(JSON.parse("[" + (k % 5) + ", " + ((k + 3) % 5) + ", " + ((k + 6) % 5) + ", " + ((k + 9) % 5) + ", " + ((k + 12) % 5) + "]"), groupResult.get("set"));
+    }
+  }
+
+  @Test
+  public void testSumAndAvgOfIntsAndDoublesInParallel() {
+    DBCollection coll = fongoRule.newCollection();
+    // The first chunk holds only ints, the next ones only doubles.
+    int size = 20000;
+    List<DBObject> objects = new ArrayList<DBObject>();
+    for (int i = 0; i < size; i++) {
+      objects.add(new BasicDBObject("_id", i).append("v", i < 8192 ? (Object) 1 : (Object) 1.5D));
+    }
+    coll.insert(objects);
+    DBObject group = fongoRule.parseDBObject("{ $group: { _id: null, total: { $sum: \"$v\" }, avg: { $avg: \"$v\" } } }");
+
+    // When
+    AggregationOutput output = coll.aggregate(group);
+
+    // Then
+    List<DBObject> result = (List<DBObject>) output.getCommandResult().get("result");
+    assertEquals(1, result.size());
+    assertEquals(25904D, result.get(0).get("total"));
+    assertEquals(25904D / size, result.get(0).get("avg"));
+  }
+
+  @Test
+  public void testSumOfIntsAndDoubles() {
+    DBCollection coll = fongoRule.newCollection();
+    fongoRule.insertJSON(coll, "[{ _id: 1, v: 1, i: 1 }, { _id: 2, v: 1.5, i: 2147483647 }, { _id: 3, v: 2147483647 }]");
+    DBObject group = fongoRule.parseDBObject("{ $group: { _id: null, total: { $sum: \"$v\" }, ints: { $sum: \"$i\" } } }");
+
+    // When
+    AggregationOutput output = coll.aggregate(group);
+
+    // Then
+    List<DBObject> result = (List<DBObject>) output.getCommandResult().get("result");
+    assertEquals(2147483649.5D, result.get(0).get("total"));
+    assertEquals(2147483648L, result.get(0).get("ints"));
+  }
+
 }
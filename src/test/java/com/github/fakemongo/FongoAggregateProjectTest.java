@@ -16,7 +16,6 @@ import org.assertj.core.api.Assertions;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
-import org.junit.Ignore;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
@@ -100,7 +99,6 @@ public class FongoAggregateProjectTest {
    * See http://docs.mongodb.org/manual/reference/aggregation/concat/
    */
   @Test
-  @Ignore // TODO(twillouer)
   public void testConcatNullOrMissingIfNull() {
     DBCollection coll = fongoRule.newCollection();
     fongoRule.insertJSON(coll, "[{ _id: 1, item: { sec: \"dessert\", category: \"pie\", type: \"apple\" } },\n" +
@@ -131,7 +129,6 @@ public class FongoAggregateProjectTest {
   }
 
   @Test
-  @Ignore // TODO(twillouer)
   public void testProjectDoenstSendArray() {
     DBCollection coll = fongoRule.newCollection();
     coll.insert(new BasicDBObject("a", Util.list(1, 2, 3)));
@@ -1047,6 +1044,37 @@ public class FongoAggregateProjectTest {
     Assertions.assertThat(output.results()).isEqualTo(fongoRule.parseList("[{_id:1, \"day\":8}]"));
   }
 
+  @Test
+  public void should_project_dotted_fields_in_arrays() {
+    // Given
+    DBCollection collection = fongoRule.newCollection();
+    fongoRule.insertJSON(collection, "[{_id:1, items:[{type:\"apple\", price:1}, {type:\"pie\", price:3}, 4], other:2}]");
+
+    // When
+    AggregationOutput output = collection.aggregate(fongoRule.parseList("[{ $project: { \"items.type\": 1, prices: \"$items.price\" } }]"));
+
+    // Then
+    Assertions.assertThat(output.results()).isEqualTo(fongoRule.parseList("[{_id:1, items:[{type:\"apple\"}, {type:\"pie\"}], prices:[1, 3]}]"));
+  }
+
+  @Test
+  public void should_fail_to_exclude_other_field_than_id() {
+    ExpectedMongoException.expectCommandFailure(exception, 16406);
+    DBCollection collection = fongoRule.newCollection();
+    collection.insert(new BasicDBObject("_id", 1).append("a", 1));
+
+    collection.aggregate(fongoRule.parseList("[{ $project: { a: 0 } }]"));
+  }
+
+  @Test
+  public void should_fail_on_unknown_operator() {
+    ExpectedMongoException.expectCommandFailure(exception, 15999);
+    DBCollection collection = fongoRule.newCollection();
+    collection.insert(new BasicDBObject("_id", 1).append("a", 1));
+
+    collection.aggregate(fongoRule.parseList("[{ $project: { b: { $unknown: \"$a\" } } }]"));
+  }
+
   private DBCollection createTestCollection() {
     DBCollection collection = fongoRule.newCollection();
     collection.insert(new BasicDBObject("myId", "p0").append("date", 1));
@@ -1,15 +1,34 @@
 package com.github.fakemongo;
 
+import com.github.fakemongo.impl.Aggregator;
 import com.github.fakemongo.impl.Util;
+import com.github.fakemongo.impl.aggregation.AggregationContext;
+import com.github.fakemongo.impl.aggregation.AggregationListener;
+import com.github.fakemongo.impl.aggregation.StageProfile;
 import com.github.fakemongo.junit.FongoRule;
+import com.mongodb.AggregationOptions;
 import com.mongodb.AggregationOutput;
+import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.Cursor;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
+import com.mongodb.FongoDB;
+import com.mongodb.FongoDBCollection;
 import com.mongodb.MongoException;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 import org.assertj.core.api.Assertions;
 import org.assertj.core.util.Lists;
 import org.junit.Assert;
@@ -45,6 +64,24 @@ public class FongoAggregateTest {
     // Not found : com.mongodb.CommandFailureException: { "serverUsed" : "localhost/127.0.0.1:27017" , "errmsg" : "exception: Unrecognized pipeline stage name: '_id'" , "code" : 16436 , "ok" : 0.0}
   }
 
+  @Test
+  public void shouldFailOnEmptyLeadingSort() {
+    exception.expect(FongoException.class);
+    DBCollection collection = fongoRule.newCollection();
+    collection.insert(new BasicDBObject("_id", 1));
+
+    collection.aggregate(Arrays.<DBObject>asList(new BasicDBObject("$sort", new BasicDBObject())));
+  }
+
+  @Test
+  public void shouldFailOnLeadingSortOfANumber() {
+    ExpectedMongoException.expectCommandFailure(exception, 15973);
+    DBCollection collection = fongoRule.newCollection();
+    collection.insert(new BasicDBObject("_id", 1));
+
+    collection.aggregate(Arrays.<DBObject>asList(new BasicDBObject("$sort", 1)));
+  }
+
   @Test
   public void shouldGenerateErrorOnNonList() {
     ExpectedMongoException.expect(exception, MongoException.class);
@@ -241,10 +278,9 @@ public class FongoAggregateTest {
     List<DBObject> result = (List<DBObject>) output.getCommandResult().get("result");
     assertEquals(3, result.size());
 
-    // TODO : remove comment when _id can NOT be unique anymore.
-//    Assert.assertEquals(fongoRule.parseList("[ { \"_id\" : 1 , \"author\" : \"william\" , \"tags\" : \"scala\"} ," +
-//        " { \"_id\" : 1 , \"author\" : \"william\" , \"tags\" : \"java\"} ," +
-//        " { \"_id\" : 1 , \"author\" : \"william\" , \"tags\" : \"mongo\"}]"), result);
+    Assert.assertEquals(fongoRule.parseList("[ { \"_id\" : 1 , \"author\" : \"william\" , \"tags\" : \"scala\"} ," +
+        " { \"_id\" : 1 , \"author\" : \"william\" , \"tags\" : \"java\"} ," +
+        " { \"_id\" : 1 , \"author\" : \"william\" , \"tags\" : \"mongo\"}]"), result);
     assertEquals("william", Util.extractField(result.get(0), "author"));
     assertEquals("scala", Util.extractField(result.get(0), "tags"));
     assertEquals("william", Util.extractField(result.get(1), "author"));
@@ -253,6 +289,549 @@ public class FongoAggregateTest {
     assertEquals("mongo", Util.extractField(result.get(2), "tags"));
   }
 
+  @Test
+  public void shouldUnwindNestedListIntoIndependentDocuments() {
+    DBCollection collection = fongoRule.newCollection();
+    collection.insert(new BasicDBObject("_id", 1).append("item", new BasicDBObject("name", "pie").append("tags", Util.list("a", "b")))
+        .append("details", new BasicDBObject("price", 3)));
+
+    AggregationOutput output = collection.aggregate(new BasicDBObject("$unwind", "$item.tags"));
+
+    List<DBObject> result = (List<DBObject>) output.getCommandResult().get("result");
+
+    assertEquals(fongoRule.parseList("[{ _id: 1, item: { name: \"pie\", tags: \"a\" }, details: { price: 3 } }, "
+        + "{ _id: 1, item: { name: \"pie\", tags: \"b\" }, details: { price: 3 } }]"), result);
+    ((DBObject) result.get(0).get("details")).put("price", 4);
+    assertEquals(3, ((DBObject) result.get(1).get("details")).get("price"));
+    assertEquals(Util.list("a", "b"), ((DBObject) collection.findOne().get("item")).get("tags"));
+  }
+
+  @Test
+  public void shouldStreamStagesWithoutIntermediateCollections() {
+    DBCollection collection = fongoRule.newCollection();
+    // Unwind generate more documents than a collection can hold in Fongo.
+    for (int i = 0; i < 1000; i++) {
+      BasicDBList values = new BasicDBList();
+      for (int j = 0; j < 200; j++) {
+        values.add(i * 200 + j);
+      }
+      collection.insert(new BasicDBObject("_id", i).append("values", values));
+    }
+    DBObject unwind = new BasicDBObject("$unwind", "$values");
+    DBObject skip = new BasicDBObject("$skip", 150000);
+    DBObject limit = new BasicDBObject("$limit", 2);
+    DBObject project = new BasicDBObject("$project", new BasicDBObject("_id", 0).append("values", 1));
+
+    AggregationOutput output = collection.aggregate(Arrays.asList(unwind, skip, limit, project));
+
+    assertTrue(output.getCommandResult().ok());
+    List<DBObject> result = (List<DBObject>) output.getCommandResult().get("result");
+    assertEquals(2, result.size());
+    assertEquals(150000, result.get(0).get("values"));
+    assertEquals(150001, result.get(1).get("values"));
+  }
+
+  @Test
+  public void shouldRunLeadingMatchAndSortOnCollectionIndexes() {
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("score", 1));
+    for (int i = 0; i < 20; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("score", (i * 7) % 20).append("team", i % 2 == 0 ? "red" : "blue"));
+    }
+    DBObject matchScore = new BasicDBObject("$match", new BasicDBObject("score", new BasicDBObject("$gte", 10)));
+    DBObject matchTeam = new BasicDBObject("$match", new BasicDBObject("team", "red"));
+    DBObject sort = new BasicDBObject("$sort", new BasicDBObject("score", -1));
+    DBObject project = new BasicDBObject("$project", new BasicDBObject("score", 1));
+
+    AggregationOutput output = collection.aggregate(Arrays.asList(matchScore, matchTeam, sort, project));
+
+    List<DBObject> result = (List<DBObject>) output.getCommandResult().get("result");
+    assertEquals(fongoRule.parseList("[{ _id: 14, score: 18 }, { _id: 8, score: 16 }, { _id: 2, score: 14 }, " +
+        "{ _id: 16, score: 12 }, { _id: 10, score: 10 }]"), result);
+  }
+
+  @Test
+  public void shouldKeepTopDocumentsOnSortSkipLimit() {
+    DBCollection collection = fongoRule.newCollection();
+    for (int i = 0; i < 100; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("score", (i * 37) % 10));
+    }
+    DBObject project = new BasicDBObject("$project", new BasicDBObject("score", 1));
+    DBObject sort = new BasicDBObject("$sort", new BasicDBObject("score", -1));
+    DBObject skip = new BasicDBObject("$skip", 8);
+    DBObject limit = new BasicDBObject("$limit", 4);
+
+    AggregationOutput output = collection.aggregate(Arrays.asList(project, sort, skip, limit));
+
+    // Equal scores stay in the order of the collection.
+    List<DBObject> result = (List<DBObject>) output.getCommandResult().get("result");
+    assertEquals(fongoRule.parseList("[{ _id: 87, score: 9 }, { _id: 97, score: 9 }, { _id: 4, score: 8 }, { _id: 14, score: 8 }]"), result);
+  }
+
+  @Test
+  public void shouldNotPullDocumentsAfterLimit() {
+    DBCollection collection = fongoRule.newCollection();
+    collection.insert(new BasicDBObject("_id", 1).append("tags", Util.list("scala", "java")));
+    collection.insert(new BasicDBObject("_id", 2).append("tags", "not an array"));
+    DBObject unwind = new BasicDBObject("$unwind", "$tags");
+    DBObject limit = new BasicDBObject("$limit", 2);
+
+    AggregationOutput output = collection.aggregate(Arrays.asList(unwind, limit));
+
+    List<DBObject> result = (List<DBObject>) output.getCommandResult().get("result");
+    assertEquals(2, result.size());
+    assertEquals("scala", result.get(0).get("tags"));
+    assertEquals("java", result.get(1).get("tags"));
+  }
+
+  @Test
+  public void shouldSortInTemporaryFilesOverMemoryLimit() {
+    DBCollection collection = fongoRule.newCollection();
+    for (int i = 0; i < 5000; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("score", (i * 37) % 100).append("name", "name" + i));
+    }
+    DBObject project = new BasicDBObject("$project", new BasicDBObject("score", 1).append("name", 1));
+    DBObject sort = new BasicDBObject("$sort", new BasicDBObject("score", -1));
+
+    List<DBObject> inMemory = aggregator(collection, Arrays.asList(project, sort), false, AggregationContext.DEFAULT_MEMORY_LIMIT).computeResult();
+    List<DBObject> spilled = aggregator(collection, Arrays.asList(project, sort), true, 16 * 1024).computeResult();
+
+    // Equal scores stay in the order of the collection.
+    assertEquals(5000, spilled.size());
+    assertEquals(fongoRule.parseDBObject("{ _id: 3, score: 11, name: 'name3' }"), spilled.get(4400));
+    assertEquals(inMemory, spilled);
+  }
+
+  @Test
+  public void shouldGroupInTemporaryFilesOverMemoryLimit() {
+    DBCollection collection = fongoRule.newCollection();
+    for (int i = 0; i < 20000; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("group", (i * 37) % 1000).append("value", i));
+    }
+    DBObject group = fongoRule.parseDBObject("{ $group: { _id: '$group', total: { $sum: '$value' }, count: { $sum: 1 }, "
+        + "first: { $first: '$value' }, last: { $last: '$value' }, values: { $push: '$value' } } }");
+    DBObject sort = new BasicDBObject("$sort", new BasicDBObject("_id", 1));
+
+    List<DBObject> inMemory = aggregator(collection, Arrays.asList(group, sort), false, AggregationContext.DEFAULT_MEMORY_LIMIT).computeResult();
+    List<DBObject> spilled = aggregator(collection, Arrays.asList(group, sort), true, 16 * 1024).computeResult();
+
+    assertEquals(1000, spilled.size());
+    assertEquals(inMemory, spilled);
+  }
+
+  @Test
+  public void shouldDeleteTemporaryFilesWhenTheAggregationIsClosedBeforeItsEnd() {
+    DBCollection collection = fongoRule.newCollection();
+    for (int i = 0; i < 5000; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("score", (i * 37) % 100).append("name", "name" + i));
+    }
+    DBObject project = new BasicDBObject("$project", new BasicDBObject("score", 1).append("name", 1));
+    DBObject sort = new BasicDBObject("$sort", new BasicDBObject("score", -1));
+    FongoDB fongoDB = (FongoDB) fongoRule.getDB();
+    AggregationContext context = new AggregationContext(fongoDB, true, 16 * 1024);
+    int before = spillFiles();
+
+    Iterator<DBObject> documents = new Aggregator(fongoDB, (FongoDBCollection) collection, Arrays.asList(project, sort), context).resultIterator();
+    documents.next();
+    assertTrue(spillFiles() > before);
+    context.close();
+
+    assertEquals(before, spillFiles());
+  }
+
+  @Test
+  public void shouldDeleteTemporaryFilesWhenTheAggregationFails() {
+    DBCollection collection = fongoRule.newCollection();
+    for (int i = 0; i < 5000; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("score", (i * 37) % 100).append("name", "name" + i));
+    }
+    DBObject project = new BasicDBObject("$project", new BasicDBObject("score", 1).append("name", 1));
+    DBObject sort = new BasicDBObject("$sort", new BasicDBObject("score", -1));
+    DBObject invalidSort = new BasicDBObject("$sort", new BasicDBObject());
+    int before = spillFiles();
+
+    try {
+      aggregator(collection, Arrays.asList(project, sort, invalidSort), true, 16 * 1024).computeResult();
+      Assert.fail("the second $sort is invalid");
+    } catch (FongoException expected) {
+    }
+
+    assertEquals(before, spillFiles());
+  }
+
+  private static int spillFiles() {
+    String[] files = new File(System.getProperty("java.io.tmpdir")).list(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.startsWith("fongo-sort-");
+      }
+    });
+    return files == null ? 0 : files.length;
+  }
+
+  @Test
+  public void shouldFailToSortOverMemoryLimitWithoutAllowDiskUse() {
+    ExpectedMongoException.expect(exception, MongoException.class);
+    ExpectedMongoException.expectCode(exception, 16819);
+    DBCollection collection = fongoRule.newCollection();
+    for (int i = 0; i < 100; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("name", "name" + i));
+    }
+    DBObject project = new BasicDBObject("$project", new BasicDBObject("name", 1));
+    DBObject sort = new BasicDBObject("$sort", new BasicDBObject("name", 1));
+
+    aggregator(collection, Arrays.asList(project, sort), false, 1024).computeResult();
+  }
+
+  @Test
+  public void shouldFailToGroupOverMemoryLimitWithoutAllowDiskUse() {
+    ExpectedMongoException.expect(exception, MongoException.class);
+    ExpectedMongoException.expectCode(exception, 16945);
+    DBCollection collection = fongoRule.newCollection();
+    for (int i = 0; i < 100; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("name", "name" + i));
+    }
+    DBObject group = fongoRule.parseDBObject("{ $group: { _id: '$name', count: { $sum: 1 } } }");
+
+    aggregator(collection, Arrays.<DBObject>asList(group), false, 1024).computeResult();
+  }
+
+  @Test
+  public void shouldAggregateWithOptions() {
+    DBCollection collection = fongoRule.newCollection();
+    for (int i = 0; i < 10; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("score", i % 3));
+    }
+    DBObject group = fongoRule.parseDBObject("{ $group: { _id: '$score', count: { $sum: 1 } } }");
+    DBObject sort = new BasicDBObject("$sort", new BasicDBObject("_id", 1));
+
+    Cursor cursor = collection.aggregate(Arrays.asList(group, sort), AggregationOptions.builder().allowDiskUse(true)
+        .outputMode(AggregationOptions.OutputMode.CURSOR).build());
+
+    List<DBObject> result = new ArrayList<DBObject>();
+    while (cursor.hasNext()) {
+      result.add(cursor.next());
+    }
+    assertEquals(fongoRule.parseList("[{ _id: 0, count: 4 }, { _id: 1, count: 3 }, { _id: 2, count: 3 }]"), result);
+    cursor.close();
+  }
+
+  @Test
+  public void shouldReadAggregationCursorByBatches() {
+    DBCollection collection = fongoRule.newCollection();
+    for (int i = 0; i < 10; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("tags", Util.list("a" + i, "b" + i)));
+    }
+    collection.insert(new BasicDBObject("_id", 10).append("tags", "not an array"));
+    DBObject unwind = new BasicDBObject("$unwind", "$tags");
+
+    Cursor cursor = collection.aggregate(Arrays.asList(unwind), AggregationOptions.builder().batchSize(4)
+        .outputMode(AggregationOptions.OutputMode.CURSOR).build());
+
+    // The last document is unwound only when the last batch is read.
+    List<Object> tags = new ArrayList<Object>();
+    for (int i = 0; i < 20; i++) {
+      tags.add(cursor.next().get("tags"));
+    }
+    assertEquals(Arrays.<Object>asList("a0", "b0", "a1", "b1"), tags.subList(0, 4));
+    assertEquals(Arrays.<Object>asList("a9", "b9"), tags.subList(18, 20));
+    ExpectedMongoException.expect(exception, MongoException.class);
+    ExpectedMongoException.expectCode(exception, 15978);
+    cursor.hasNext();
+  }
+
+  @Test
+  public void shouldExplainPlannedStages() {
+    DBCollection collection = fongoRule.newCollection();
+    collection.insert(new BasicDBObject("_id", 1).append("score", 5));
+    DBObject match = new BasicDBObject("$match", new BasicDBObject("score", new BasicDBObject("$gt", 1)));
+    DBObject project = new BasicDBObject("$project", new BasicDBObject("score", 1));
+    DBObject sort = new BasicDBObject("$sort", new BasicDBObject("score", -1));
+    DBObject limit = new BasicDBObject("$limit", 3);
+
+    CommandResult result = collection.explainAggregate(Arrays.asList(match, project, sort, limit), AggregationOptions.builder().build());
+
+    result.throwOnError();
+    assertEquals(fongoRule.parseList("[{ $cursor: { query: { score: { $gt: 1 } } } }, { $project: { score: 1 } }, "
+        + "{ $sort: { sortKey: { score: -1 }, limit: 3 } }, { $limit: 3 }]"), result.get("stages"));
+    assertNull(result.get("result"));
+  }
+
+  @Test
+  public void shouldProfileStagesInCommandResult() {
+    DBCollection collection = fongoRule.newCollection();
+    for (int i = 0; i < 10; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("score", i % 3));
+    }
+    DBObject match = new BasicDBObject("$match", new BasicDBObject("score", new BasicDBObject("$gt", 0)));
+    DBObject group = fongoRule.parseDBObject("{ $group: { _id: '$score', count: { $sum: 1 } } }");
+    DBObject limit = new BasicDBObject("$limit", 1);
+
+    CommandResult result = fongoRule.getDB().command(new BasicDBObject("aggregate", collection.getName())
+        .append("pipeline", Arrays.asList(match, group, limit)).append("profile", true));
+
+    result.throwOnError();
+    List<DBObject> profiles = (List<DBObject>) result.get("profile");
+    assertEquals(3, profiles.size());
+    assertEquals(Arrays.asList("$cursor", 6L, 6L), Arrays.asList(profiles.get(0).get("stage"), profiles.get(0).get("input"), profiles.get(0).get("output")));
+    // $limit doesn't pull the second group.
+    assertEquals(Arrays.asList("$group", 6L, 1L), Arrays.asList(profiles.get(1).get("stage"), profiles.get(1).get("input"), profiles.get(1).get("output")));
+    assertEquals(Arrays.asList("$limit", 1L, 1L), Arrays.asList(profiles.get(2).get("stage"), profiles.get(2).get("input"), profiles.get(2).get("output")));
+    assertTrue(((Long) profiles.get(1).get("micros")) >= 0);
+  }
+
+  @Test
+  public void shouldNotifyAggregationListener() {
+    final List<StageProfile> received = new ArrayList<StageProfile>();
+    final List<String> namespaces = new ArrayList<String>();
+    fongoRule.getFongo().setAggregationListener(new AggregationListener() {
+      @Override
+      public void onAggregation(String namespace, List<DBObject> pipeline, List<StageProfile> profiles) {
+        namespaces.add(namespace);
+        received.addAll(profiles);
+      }
+    });
+    DBCollection collection = fongoRule.newCollection();
+    for (int i = 0; i < 10; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("tags", Util.list("a", "b")));
+    }
+    DBObject unwind = new BasicDBObject("$unwind", "$tags");
+    DBObject skip = new BasicDBObject("$skip", 5);
+
+    collection.aggregate(Arrays.asList(unwind, skip));
+
+    assertEquals(Arrays.asList(collection.getFullName()), namespaces);
+    assertEquals(3, received.size());
+    assertEquals("$unwind", received.get(1).getKeyword());
+    assertEquals(10, received.get(1).getInput());
+    assertEquals(20, received.get(1).getOutput());
+    assertEquals("$skip", received.get(2).getKeyword());
+    assertEquals(15, received.get(2).getOutput());
+  }
+
+  @Test
+  public void shouldAggregateConcurrentlyWithoutTemporaryCollections() throws InterruptedException {
+    final DBCollection collection = fongoRule.newCollection();
+    for (int i = 0; i < 100; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("group", i % 4).append("tags", Util.list("a", "b")));
+    }
+    final List<DBObject> pipeline = fongoRule.parseList("[{ $unwind: \"$tags\" }, { $group: { _id: \"$group\", count: { $sum: 1 } } }, "
+        + "{ $sort: { _id: 1 } }, { $project: { count: 1 } }]");
+    final List<DBObject> expected = fongoRule.parseList("[{ _id: 0, count: 50 }, { _id: 1, count: 50 }, { _id: 2, count: 50 }, { _id: 3, count: 50 }]");
+    Set<String> collectionNames = fongoRule.getDB().getCollectionNames();
+    int size = 8;
+    final CountDownLatch done = new CountDownLatch(size);
+    final List<Object> results = Collections.synchronizedList(new ArrayList<Object>());
+
+    for (int i = 0; i < size; i++) {
+      new Thread() {
+        public void run() {
+          try {
+            for (int j = 0; j < 10; j++) {
+              results.add(collection.aggregate(pipeline).results());
+            }
+          } catch (RuntimeException e) {
+            results.add(e);
+          } finally {
+            done.countDown();
+          }
+        }
+      }.start();
+    }
+
+    assertTrue("Too long :-(", done.await(30, TimeUnit.SECONDS));
+    assertEquals(size * 10, results.size());
+    for (Object result : results) {
+      assertEquals(expected, result);
+    }
+    assertEquals(collectionNames, fongoRule.getDB().getCollectionNames());
+  }
+
+  @Test
+  public void shouldLookupForeignDocuments() {
+    DBCollection orders = fongoRule.newCollection();
+    DBCollection inventory = fongoRule.newCollection();
+    fongoRule.insertJSON(orders, "[{ _id: 1, item: \"abc\", price: 12 }, { _id: 2, item: \"jkl\", price: 20 }, { _id: 3 }, "
+        + "{ _id: 4, item: [\"abc\", \"xyz\"] }]");
+    fongoRule.insertJSON(inventory, "[{ _id: 1, sku: \"abc\", instock: 120 }, { _id: 2, sku: \"def\", instock: 80 }, "
+        + "{ _id: 3, sku: [\"jkl\", \"abc\"], instock: 70 }, { _id: 4, instock: 60 }]");
+    DBObject lookup = fongoRule.parseDBObject("{ $lookup: { from: \"" + inventory.getName() + "\", localField: \"item\", "
+        + "foreignField: \"sku\", as: \"inventory_docs\" } }");
+
+    List<DBObject> result = Lists.newArrayList(orders.aggregate(Arrays.asList(lookup)).results());
+
+    assertEquals(fongoRule.parseList("[{ _id: 1, item: \"abc\", price: 12, inventory_docs: [{ _id: 1, sku: \"abc\", instock: 120 }, "
+        + "{ _id: 3, sku: [\"jkl\", \"abc\"], instock: 70 }] }, "
+        + "{ _id: 2, item: \"jkl\", price: 20, inventory_docs: [{ _id: 3, sku: [\"jkl\", \"abc\"], instock: 70 }] }, "
+        + "{ _id: 3, inventory_docs: [{ _id: 4, instock: 60 }] }, "
+        + "{ _id: 4, item: [\"abc\", \"xyz\"], inventory_docs: [{ _id: 1, sku: \"abc\", instock: 120 }, "
+        + "{ _id: 3, sku: [\"jkl\", \"abc\"], instock: 70 }] }]"), result);
+
+    // Same documents when the index of the foreign field is probed.
+    inventory.remove(new BasicDBObject("_id", 3));
+    List<DBObject> hashed = Lists.newArrayList(orders.aggregate(Arrays.asList(lookup)).results());
+    inventory.createIndex(new BasicDBObject("sku", 1));
+    assertEquals(hashed, Lists.newArrayList(orders.aggregate(Arrays.asList(lookup)).results()));
+  }
+
+  @Test
+  public void shouldLookupDocumentsAndRegularExpressionsByEqualityOnAnIndexedField() {
+    DBCollection orders = fongoRule.newCollection();
+    DBCollection inventory = fongoRule.newCollection();
+    orders.insert(new BasicDBObject("_id", 1).append("item", new BasicDBObject("$gt", 1)));
+    orders.insert(new BasicDBObject("_id", 2).append("item", Pattern.compile("^a")));
+    orders.insert(new BasicDBObject("_id", 3).append("item", Arrays.asList("abc", new BasicDBObject("$gt", 1))));
+    inventory.insert(new BasicDBObject("_id", 1).append("sku", 5));
+    inventory.insert(new BasicDBObject("_id", 2).append("sku", "abc"));
+    inventory.insert(new BasicDBObject("_id", 3).append("sku", new BasicDBObject("$gt", 1)));
+    inventory.insert(new BasicDBObject("_id", 4).append("sku", Pattern.compile("^a")));
+    DBObject lookup = new BasicDBObject("$lookup", new BasicDBObject("from", inventory.getName()).append("localField", "item")
+        .append("foreignField", "sku").append("as", "docs"));
+    List<DBObject> hashed = Lists.newArrayList(orders.aggregate(Arrays.asList(lookup)).results());
+    inventory.createIndex(new BasicDBObject("sku", 1));
+
+    List<DBObject> result = Lists.newArrayList(orders.aggregate(Arrays.asList(lookup)).results());
+
+    assertEquals(hashed, result);
+    assertEquals(Arrays.asList(3), ids((List<?>) result.get(0).get("docs")));
+    assertEquals(Arrays.asList(4), ids((List<?>) result.get(1).get("docs")));
+    assertEquals(Arrays.asList(2, 3), ids((List<?>) result.get(2).get("docs")));
+  }
+
+  private static List<Object> ids(List<?> documents) {
+    List<Object> ids = new ArrayList<Object>();
+    for (Object document : documents) {
+      ids.add(((DBObject) document).get("_id"));
+    }
+    return ids;
+  }
+
+  @Test
+  public void shouldLookupNumbersOfDifferentTypesInMissingCollection() {
+    DBCollection orders = fongoRule.newCollection();
+    DBCollection products = fongoRule.newCollection();
+    orders.insert(new BasicDBObject("_id", 1).append("product", 7));
+    products.insert(new BasicDBObject("_id", 7L).append("name", "pie"));
+    DBObject lookup = new BasicDBObject("$lookup", new BasicDBObject("from", products.getName()).append("localField", "product")
+        .append("foreignField", "_id").append("as", "details.products"));
+    DBObject lookupMissing = new BasicDBObject("$lookup", new BasicDBObject("from", "missing").append("localField", "product")
+        .append("foreignField", "_id").append("as", "others"));
+
+    List<DBObject> result = Lists.newArrayList(orders.aggregate(Arrays.asList(lookup, lookupMissing)).results());
+
+    assertEquals(fongoRule.parseList("[{ _id: 1, product: 7, details: { products: [{ _id: { $numberLong: \"7\" }, name: \"pie\" }] }, others: [] }]"), result);
+  }
+
+  @Test
+  public void shouldFailToLookupWithUnknownArgument() {
+    ExpectedMongoException.expectCommandFailure(exception, 4571);
+    DBCollection collection = fongoRule.newCollection();
+    collection.insert(new BasicDBObject("_id", 1));
+
+    collection.aggregate(fongoRule.parseList("[{ $lookup: { from: \"other\", localField: \"a\", foreignField: \"b\", as: \"c\", let: \"d\" } }]"));
+  }
+
+  @Test
+  public void shouldSampleDocumentsOfTheCollection() {
+    DBCollection collection = fongoRule.newCollection();
+    for (int i = 0; i < 100; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("even", i % 2 == 0));
+    }
+    DBObject sample = new BasicDBObject("$sample", new BasicDBObject("size", 10));
+
+    List<DBObject> first = Lists.newArrayList(collection.aggregate(Arrays.asList(sample)).results());
+    List<DBObject> second = Lists.newArrayList(collection.aggregate(Arrays.asList(sample)).results());
+    List<DBObject> all = Lists.newArrayList(collection.aggregate(Arrays.<DBObject>asList(new BasicDBObject("$sample", new BasicDBObject("size", 200)))).results());
+
+    assertEquals(10, new HashSet<DBObject>(first).size());
+    assertTrue(collection.find().toArray().containsAll(first));
+    // 1 chance in 17 310 309 456 440 to fail.
+    Assert.assertNotEquals(first, second);
+    assertEquals(new HashSet<DBObject>(collection.find().toArray()), new HashSet<DBObject>(all));
+    assertEquals(fongoRule.parseList("[{ $cursor: { sample: 10 } }]"), aggregator(collection, Arrays.asList(sample), false, 0).explain());
+  }
+
+  @Test
+  public void shouldSampleDocumentsOfAStage() {
+    DBCollection collection = fongoRule.newCollection();
+    for (int i = 0; i < 100; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("even", i % 2 == 0));
+    }
+    DBObject match = new BasicDBObject("$match", new BasicDBObject("even", true));
+    DBObject sample = new BasicDBObject("$sample", new BasicDBObject("size", 10));
+
+    List<DBObject> result = Lists.newArrayList(collection.aggregate(Arrays.asList(match, sample)).results());
+
+    assertEquals(10, new HashSet<DBObject>(result).size());
+    assertTrue(collection.find(new BasicDBObject("even", true)).toArray().containsAll(result));
+  }
+
+  @Test
+  public void shouldFailToSampleNegativeSize() {
+    ExpectedMongoException.expectCommandFailure(exception, 28747);
+    DBCollection collection = fongoRule.newCollection();
+    collection.insert(new BasicDBObject("_id", 1));
+
+    collection.aggregate(fongoRule.parseList("[{ $sample: { size: -1 } }]"));
+  }
+
+  @Test
+  public void shouldOutToCollection() {
+    DBCollection collection = fongoRule.newCollection();
+    DBCollection target = fongoRule.newCollection();
+    for (int i = 0; i < 10; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("score", i * 10).append("name", "name" + i));
+    }
+    target.insert(new BasicDBObject("_id", 100).append("score", 1000));
+    target.createIndex(new BasicDBObject("score", -1));
+    List<DBObject> indexes = target.getIndexInfo();
+    DBObject match = new BasicDBObject("$match", new BasicDBObject("score", new BasicDBObject("$gte", 50)));
+    DBObject project = new BasicDBObject("$project", new BasicDBObject("score", 1));
+    DBObject out = new BasicDBObject("$out", target.getName());
+
+    AggregationOutput output = collection.aggregate(Arrays.asList(match, project, out));
+
+    assertTrue(output.getCommandResult().ok());
+    assertEquals(Collections.emptyList(), output.getCommandResult().get("result"));
+    assertEquals(fongoRule.parseList("[{ _id: 9, score: 90 }, { _id: 8, score: 80 }, { _id: 7, score: 70 }, { _id: 6, score: 60 }, { _id: 5, score: 50 }]"),
+        target.find().sort(new BasicDBObject("score", -1)).toArray());
+    assertEquals(indexes, target.getIndexInfo());
+    assertEquals(1, target.count(new BasicDBObject("score", 70)));
+  }
+
+  @Test
+  public void shouldNotReplaceCollectionWhenOutFails() {
+    DBCollection collection = fongoRule.newCollection();
+    DBCollection target = fongoRule.newCollection();
+    collection.insert(new BasicDBObject("_id", 1).append("tags", Util.list("a", "b")));
+    target.insert(new BasicDBObject("_id", 100));
+    DBObject unwind = new BasicDBObject("$unwind", "$tags");
+    DBObject out = new BasicDBObject("$out", target.getName());
+
+    try {
+      collection.aggregate(Arrays.asList(unwind, out));
+      Assert.fail("the unwound documents have the same _id");
+    } catch (MongoException e) {
+      assertEquals(11000, e.getCode());
+    }
+
+    assertEquals(fongoRule.parseList("[{ _id: 100 }]"), target.find().toArray());
+  }
+
+  @Test
+  public void shouldFailToOutBeforeTheLastStage() {
+    ExpectedMongoException.expectCommandFailure(exception, 16991);
+    DBCollection collection = fongoRule.newCollection();
+    collection.insert(new BasicDBObject("_id", 1));
+
+    collection.aggregate(fongoRule.parseList("[{ $out: \"other\" }, { $limit: 1 }]"));
+  }
+
+  private Aggregator aggregator(DBCollection collection, List<DBObject> pipeline, boolean allowDiskUse, long memoryLimit) {
+    FongoDB fongoDB = (FongoDB) fongoRule.getDB();
+    return new Aggregator(fongoDB, (FongoDBCollection) collection, pipeline, new AggregationContext(fongoDB, allowDiskUse, memoryLimit));
+  }
+
   @Test
   public void shouldUnwindEmptyList() {
     DBCollection collection = fongoRule.newCollection();
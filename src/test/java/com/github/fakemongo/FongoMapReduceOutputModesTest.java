@@ -319,4 +319,34 @@ public class FongoMapReduceOutputModesTest {
         .append("_id", user3.get("_id"))
         .append("value", user3.append("login", user3Login.get("login"))));
   }
+
+  @Test
+  public void reduceIntoExistingKeysOnly() {
+    FongoDBCollection counts = (FongoDBCollection) db.getCollection("counts");
+    for (int i = 0; i < 1000; i++) {
+      counts.insert(new BasicDBObject("_id", new BasicDBObject("user", "idUser" + i)).append("value", new BasicDBObject("count", 1.0)));
+    }
+    users.insert(new BasicDBObject("_id", "idUser1"));
+    users.insert(new BasicDBObject("_id", "idUser1000"));
+
+    String map = "function () {" +
+        "emit({user : this._id}, {count : 1});" +
+        "};";
+    String reduce = "function (key, values) {" +
+        "  var res = values[0];" +
+        "  for (var i = 1; i < values.length; i++) {" +
+        "    res.count += values[i].count;" +
+        "  }" +
+        "  return res;" +
+        "}";
+    users.mapReduce(map, reduce, counts.getName(), MapReduceCommand.OutputType.REDUCE, new BasicDBObject());
+
+    Assertions.assertThat(counts.count()).isEqualTo(1001);
+    Assertions.assertThat(counts.findOne(new BasicDBObject("_id", new BasicDBObject("user", "idUser1"))))
+        .isEqualTo(new BasicDBObject("_id", new BasicDBObject("user", "idUser1")).append("value", new BasicDBObject("count", 2.0)));
+    Assertions.assertThat(counts.findOne(new BasicDBObject("_id", new BasicDBObject("user", "idUser1000"))))
+        .isEqualTo(new BasicDBObject("_id", new BasicDBObject("user", "idUser1000")).append("value", new BasicDBObject("count", 1.0)));
+    Assertions.assertThat(counts.findOne(new BasicDBObject("_id", new BasicDBObject("user", "idUser2"))))
+        .isEqualTo(new BasicDBObject("_id", new BasicDBObject("user", "idUser2")).append("value", new BasicDBObject("count", 1.0)));
+  }
 }
@@ -1,15 +1,22 @@
 package com.github.fakemongo;
 
+import com.github.fakemongo.impl.MapReduce;
+import com.github.fakemongo.impl.ScriptCache;
 import com.github.fakemongo.junit.FongoRule;
 import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
+import com.mongodb.FongoDB;
 import com.mongodb.MapReduceCommand;
 import com.mongodb.MapReduceOutput;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import static org.junit.Assert.assertEquals;
 import com.mongodb.util.JSON;
 import org.assertj.core.api.Assertions;
@@ -230,6 +237,219 @@ public class FongoMapReduceTest {
     assertEquals(fongoRule.parse("[{ \"_id\" : \"www.google.com\" , \"value\" : { \"count\" : 2.0}}, { \"_id\" : \"www.no-fucking-idea.com\" , \"value\" : { \"count\" : 3.0}}]"), output.results());
   }
 
+  @Test
+  public void testMapReduceFinalize() {
+    DBCollection coll = fongoRule.newCollection();
+    fongoRule.insertJSON(coll, "[{url: \"www.google.com\", date: 1 },\n" +
+        " {url: \"www.no-fucking-idea.com\", date: 1 },\n" +
+        " {url: \"www.google.com\", date: 2 }]");
+
+    String map = "function(){    emit(this.url, this.date);  };";
+    String reduce = "function(key, values){    return Array.sum(values);  };";
+    String finalize = "function(key, value){    return {url: key, total: value, average: value / 2};  };";
+    MapReduceCommand mapReduceCommand = new MapReduceCommand(coll, map, reduce, null, MapReduceCommand.OutputType.INLINE, new BasicDBObject());
+    mapReduceCommand.setFinalize(finalize);
+    MapReduceOutput output = coll.mapReduce(mapReduceCommand);
+
+    assertEquals(fongoRule.parse("[{ \"_id\" : \"www.google.com\" , \"value\" : { \"url\" : \"www.google.com\", \"total\" : 3.0, \"average\" : 1.5}}, " +
+        "{ \"_id\" : \"www.no-fucking-idea.com\" , \"value\" : { \"url\" : \"www.no-fucking-idea.com\", \"total\" : 1.0, \"average\" : 0.5}}]"), output.results());
+  }
+
+  @Test
+  public void testMapReduceKeepsChangesOfEmittedDocuments() {
+    DBCollection coll = fongoRule.newCollection();
+    fongoRule.insertJSON(coll, "[{_id: \"a\", k: 1, n: 1}, {_id: \"b\", k: 1, n: 2}, {_id: \"c\", k: 2, n: 5}]");
+
+    String map = "function(){    emit(this.k, this);  };";
+    String reduce = "function(key, values){    for (var i = 1; i < values.length; i++) { values[0].n += values[i].n; }    return values[0];  };";
+    String finalize = "function(key, value){    value.extra = 'finalized';    return value;  };";
+    MapReduceCommand mapReduceCommand = new MapReduceCommand(coll, map, reduce, null, MapReduceCommand.OutputType.INLINE, new BasicDBObject());
+    mapReduceCommand.setFinalize(finalize);
+    MapReduceOutput output = coll.mapReduce(mapReduceCommand);
+
+    assertEquals(fongoRule.parse("[{ \"_id\" : 1 , \"value\" : { \"_id\" : \"a\", \"k\" : 1, \"n\" : 3.0, \"extra\" : \"finalized\"}}, " +
+        "{ \"_id\" : 2 , \"value\" : { \"_id\" : \"c\", \"k\" : 2, \"n\" : 5, \"extra\" : \"finalized\"}}]"), output.results());
+  }
+
+  @Test
+  public void testMapReduceManyDocumentsWithoutSerialization() {
+    DBCollection coll = fongoRule.newCollection();
+    for (int i = 0; i < 5000; i++) {
+      coll.insert(new BasicDBObject("group", i % 3).append("n", 1).append("text", "a \"quoted\"\n\\ text " + i));
+    }
+
+    String map = "function(){    if (this.text.indexOf('\"quoted\"') > 0) { emit(this.group, this.n); }  };";
+    String reduce = "function(key, values){    return Array.sum(values);  };";
+    MapReduceOutput output = coll.mapReduce(map, reduce, null, MapReduceCommand.OutputType.INLINE, new BasicDBObject());
+
+    assertEquals(fongoRule.parse("[{ \"_id\" : 0 , \"value\" : 1667.0}, { \"_id\" : 1 , \"value\" : 1667.0}, { \"_id\" : 2 , \"value\" : 1666.0}]"), output.results());
+  }
+
+  @Test
+  public void testMapReduceIsSequentialByDefault() {
+    DBCollection coll = fongoRule.newCollection();
+    for (int i = 0; i < 3000; i++) {
+      coll.insert(new BasicDBObject("_id", i));
+    }
+
+    // The map counts the documents in a global : only one scope sees all of them.
+    String map = "function(){    seen = (typeof seen == 'undefined' ? 0 : seen) + 1;    emit(1, seen);  };";
+    String reduce = "function(key, values){    return Math.max.apply(null, values);  };";
+    MapReduceOutput output = coll.mapReduce(map, reduce, null, MapReduceCommand.OutputType.INLINE, new BasicDBObject());
+
+    assertEquals(fongoRule.parse("[{ \"_id\" : 1.0 , \"value\" : 3000.0}]"), output.results());
+  }
+
+  @Test
+  public void testMapReduceInParallelChunks() {
+    fongoRule.getFongo().setParallelMapReduce(true);
+    DBCollection coll = fongoRule.newCollection();
+    for (int i = 0; i < 10000; i++) {
+      coll.insert(new BasicDBObject("_id", i).append("group", i < 9000 ? "a" + (i % 2) : "b").append("n", 1));
+    }
+
+    String map = "function(){    emit(this.group, {count: this.n, first: this._id});  };";
+    String reduce = "function(key, values){    var res = values[0];    for (var i = 1; i < values.length; i++) { res.count += values[i].count; }    return res;  };";
+    MapReduceOutput output = coll.mapReduce(map, reduce, null, MapReduceCommand.OutputType.INLINE, new BasicDBObject());
+
+    assertEquals(fongoRule.parse("[{ \"_id\" : \"a0\" , \"value\" : { \"count\" : 4500.0, \"first\" : 0}}, " +
+        "{ \"_id\" : \"a1\" , \"value\" : { \"count\" : 4500.0, \"first\" : 1}}, " +
+        "{ \"_id\" : \"b\" , \"value\" : { \"count\" : 1000.0, \"first\" : 9000}}]"), output.results());
+  }
+
+  @Test
+  public void testMapReduceMapInErrorInParallelChunks() {
+    ExpectedMongoException.expectCommandFailure(exception, 16722);
+    fongoRule.getFongo().setParallelMapReduce(true);
+    DBCollection coll = fongoRule.newCollection();
+    for (int i = 0; i < 5000; i++) {
+      coll.insert(new BasicDBObject("_id", i));
+    }
+
+    String map = "function(){    if (this._id == 4000) { undefinedFunction(); }    emit(this._id, 1);  };";
+    String reduce = "function(key, values){    return Array.sum(values);  };";
+    coll.mapReduce(map, reduce, null, MapReduceCommand.OutputType.INLINE, new BasicDBObject());
+  }
+
+  @Test
+  public void testJavaMapReduceInParallelChunks() {
+    DBCollection coll = fongoRule.newCollection();
+    for (int i = 0; i < 10000; i++) {
+      coll.insert(new BasicDBObject("_id", i).append("group", i % 3).append("n", 2));
+    }
+
+    CommandResult result = ((FongoDB) fongoRule.getDB()).mapReduce(coll.getName(), new MapReduce.MapFunction() {
+      @Override
+      public void map(DBObject document, MapReduce.Emitter emitter) {
+        emitter.emit(document.get("group"), document.get("n"));
+      }
+    }, new SumFunction(), new MapReduce.FinalizeFunction() {
+      @Override
+      public Object finalize(Object key, Object value) {
+        return new BasicDBObject("total", value);
+      }
+    }, new BasicDBObject("inline", 1), null, null, null, true);
+
+    assertEquals(fongoRule.parse("[{ \"_id\" : 0 , \"value\" : { \"total\" : 6668}}, { \"_id\" : 1 , \"value\" : { \"total\" : 6666}}, " +
+        "{ \"_id\" : 2 , \"value\" : { \"total\" : 6666}}]"), result.get("results"));
+  }
+
+  @Test
+  public void testJavaMapReduceOutputReduce() {
+    DBCollection coll = fongoRule.newCollection();
+    fongoRule.insertJSON(coll, "[{url: \"www.google.com\", n: 1 },\n" +
+        " {url: \"www.no-fucking-idea.com\", n: 2 },\n" +
+        " {url: \"www.google.com\", n: 3 }]");
+    DBCollection output = fongoRule.newCollection("result");
+    fongoRule.insertJSON(output, "[{_id: \"www.google.com\", value: 10 }]");
+
+    CommandResult result = ((FongoDB) fongoRule.getDB()).mapReduce(coll.getName(), new MapReduce.MapFunction() {
+      @Override
+      public void map(DBObject document, MapReduce.Emitter emitter) {
+        emitter.emit(document.get("url"), document.get("n"));
+      }
+    }, new SumFunction(), null, new BasicDBObject("reduce", "result"), null, null, null, false);
+
+    assertEquals(fongoRule.parseDBObject("{ \"collection\" : \"result\" , \"db\" : \"" + fongoRule.getDB().getName() + "\"}"), result.get("result"));
+    assertEquals(fongoRule.parse("[{ \"_id\" : \"www.google.com\" , \"value\" : 14}, { \"_id\" : \"www.no-fucking-idea.com\" , \"value\" : 2}]"), output.find().toArray());
+  }
+
+  private static class SumFunction implements MapReduce.ReduceFunction {
+    @Override
+    public Object reduce(Object key, List<Object> values) {
+      int sum = 0;
+      for (Object value : values) {
+        sum += ((Number) value).intValue();
+      }
+      return sum;
+    }
+  }
+
+  @Test
+  public void testMapReduceCompiledOnceForTheSameFunctions() {
+    DBCollection coll = fongoRule.newCollection();
+    fongoRule.insertJSON(coll, "[{url: \"www.google.com\"}, {url: \"www.no-fucking-idea.com\"}, {url: \"www.google.com\"}]");
+    String map = "function(){    emit(this.url, 1);  };";
+    String reduce = "function(key, values){    return Array.sum(values) + 0;  };";
+    coll.mapReduce(map, reduce, null, MapReduceCommand.OutputType.INLINE, new BasicDBObject());
+    long misses = ScriptCache.getMisses();
+    long hits = ScriptCache.getHits();
+
+    MapReduceOutput output = coll.mapReduce(map, reduce, null, MapReduceCommand.OutputType.INLINE, new BasicDBObject());
+
+    assertEquals(fongoRule.parse("[{ \"_id\" : \"www.google.com\" , \"value\" : 2.0}, { \"_id\" : \"www.no-fucking-idea.com\" , \"value\" : 1.0}]"), output.results());
+    assertEquals(misses, ScriptCache.getMisses());
+    Assertions.assertThat(ScriptCache.getHits()).isGreaterThanOrEqualTo(hits + 2);
+  }
+
+  @Test
+  public void testMapReduceCompilesASourceOnceForConcurrentThreads() throws InterruptedException {
+    final DBCollection coll = fongoRule.newCollection();
+    fongoRule.insertJSON(coll, "[{url: \"www.google.com\"}, {url: \"www.no-fucking-idea.com\"}]");
+    final String reduce = "function(key, values){    return Array.sum(values) + 1;  };";
+    long misses = ScriptCache.getMisses();
+    coll.mapReduce("function(){    emit(this.url, 2);  };", reduce, null, MapReduceCommand.OutputType.INLINE, new BasicDBObject());
+    long compiledForOne = ScriptCache.getMisses() - misses;
+    misses = ScriptCache.getMisses();
+
+    final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+    final CountDownLatch start = new CountDownLatch(1);
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            coll.mapReduce("function(){    emit(this.url, 3);  };", reduce, null, MapReduceCommand.OutputType.INLINE, new BasicDBObject());
+          } catch (Throwable t) {
+            errors.add(t);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(Collections.emptyList(), errors);
+    assertEquals(compiledForOne - 1, ScriptCache.getMisses() - misses);
+  }
+
+  @Test
+  public void testMapReduceGlobalsAreNotShared() {
+    DBCollection coll = fongoRule.newCollection();
+    fongoRule.insertJSON(coll, "[{url: \"www.google.com\"}]");
+    String reduce = "function(key, values){    return Array.sum(values);  };";
+    coll.mapReduce("function(){    seen = 1; emit(this.url, 1);  };", reduce, null, MapReduceCommand.OutputType.INLINE, new BasicDBObject());
+
+    MapReduceOutput output = coll.mapReduce("function(){    emit(typeof seen, 1);  };", reduce, null, MapReduceCommand.OutputType.INLINE, new BasicDBObject());
+
+    assertEquals(fongoRule.parse("[{ \"_id\" : \"undefined\" , \"value\" : 1.0}]"), output.results());
+  }
+
   @Test
   public void testMapReduceMapInError() {
     ExpectedMongoException.expectCommandFailure(exception, 16722);
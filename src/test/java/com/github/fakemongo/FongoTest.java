@@ -24,6 +24,9 @@ import com.mongodb.ServerAddress;
 import com.mongodb.WriteConcern;
 import com.mongodb.WriteResult;
 import com.mongodb.util.JSON;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.InetSocketAddress;
 import java.sql.Time;
 import java.sql.Timestamp;
@@ -94,6 +97,94 @@ public class FongoTest {
     assertEquals(newHashSet("coll", "system.indexes", "system.users"), db.getCollectionNames());
   }
 
+  @Test
+  public void testSaveAndRestoreSnapshot() throws IOException {
+    Fongo fongo = newFongo();
+    DBCollection users = fongo.getDB("db").getCollection("users");
+    users.createIndex(new BasicDBObject("login", 1), new BasicDBObject("unique", true));
+    ObjectId id = new ObjectId();
+    Date date = new Date(1000);
+    users.insert(new BasicDBObject("_id", id).append("login", "jon").append("date", date)
+        .append("roles", Arrays.asList("admin", new BasicDBObject("db", "other"))));
+    users.insert(new BasicDBObject("_id", 2).append("login", "twillouer"));
+    fongo.getDB("other").getCollection("empty").createIndex(new BasicDBObject("a", 1));
+    File file = File.createTempFile("fongo-", ".snapshot");
+    file.deleteOnExit();
+
+    fongo.saveSnapshot(file);
+    Fongo restored = newFongo();
+    restored.restoreSnapshot(file);
+
+    DBCollection restoredUsers = restored.getDB("db").getCollection("users");
+    assertEquals(users.find().toArray(), restoredUsers.find().toArray());
+    assertEquals(users.getIndexInfo(), restoredUsers.getIndexInfo());
+    assertEquals(new BasicDBObject("_id", id).append("login", "jon").append("date", date)
+        .append("roles", Arrays.asList("admin", new BasicDBObject("db", "other"))), restoredUsers.findOne(new BasicDBObject("login", "jon")));
+    assertEquals(fongo.getDB("other").getCollection("empty").getIndexInfo(), restored.getDB("other").getCollection("empty").getIndexInfo());
+    try {
+      restoredUsers.insert(new BasicDBObject("login", "jon"));
+      fail("the unique index must be restored");
+    } catch (DuplicateKeyException expected) {
+    }
+  }
+
+  @Test
+  public void testRestoreSnapshotOverExistingCollection() throws IOException {
+    Fongo fongo = newFongo();
+    DBCollection saved = fongo.getDB("db").getCollection("users");
+    saved.createIndex(new BasicDBObject("u", 1), new BasicDBObject("unique", true));
+    saved.insert(new BasicDBObject("_id", 1).append("u", 1));
+    saved.insert(new BasicDBObject("_id", 2).append("u", 2));
+    File file = File.createTempFile("fongo-", ".snapshot");
+    file.deleteOnExit();
+    fongo.saveSnapshot(file);
+    Fongo restored = newFongo();
+    DBCollection users = restored.getDB("db").getCollection("users");
+    users.insert(new BasicDBObject("_id", 3).append("u", 7));
+    users.insert(new BasicDBObject("_id", 4).append("u", 7));
+
+    restored.restoreSnapshot(file);
+
+    assertEquals(saved.find().toArray(), users.find().toArray());
+    assertEquals(saved.getIndexInfo(), users.getIndexInfo());
+  }
+
+  @Test
+  public void testRestoreSnapshotFailsOnAnotherFile() throws IOException {
+    File file = File.createTempFile("fongo-", ".snapshot");
+    file.deleteOnExit();
+    exception.expect(FongoException.class);
+
+    newFongo().restoreSnapshot(file);
+  }
+
+  @Test
+  public void testRestoreTruncatedSnapshotFailsWithoutChange() throws IOException {
+    Fongo fongo = newFongo();
+    DBCollection users = fongo.getDB("db").getCollection("users");
+    users.createIndex(new BasicDBObject("login", 1), new BasicDBObject("unique", true));
+    users.insert(new BasicDBObject("_id", 1).append("login", "jon"));
+    users.insert(new BasicDBObject("_id", 2).append("login", "twillouer"));
+    File file = File.createTempFile("fongo-", ".snapshot");
+    file.deleteOnExit();
+    fongo.saveSnapshot(file);
+    RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+    try {
+      for (long length = truncated.length() - 1; length >= 0; length--) {
+        truncated.setLength(length);
+        Fongo restored = newFongo();
+        try {
+          restored.restoreSnapshot(file);
+          fail("a snapshot truncated to " + length + " bytes must not be restored");
+        } catch (FongoException expected) {
+        }
+        assertEquals(Collections.emptyList(), restored.getDatabaseNames());
+      }
+    } finally {
+      truncated.close();
+    }
+  }
+
   @Test
   public void testCreateCollection() {
     DB db = fongoRule.getDB("db");
@@ -101,6 +192,23 @@ public class FongoTest {
     assertEquals(new HashSet<String>(Arrays.asList("coll", "system.indexes", "system.users")), db.getCollectionNames());
   }
 
+  @Test
+  public void testUpsertByIdsReplacesAndInsertsAtOnce() {
+    DBCollection collection = newCollection();
+    collection.createIndex(new BasicDBObject("v", 1));
+    collection.insert(new BasicDBObject("_id", 1).append("v", 1));
+    collection.insert(new BasicDBObject("_id", 2).append("v", 2));
+
+    int replaced = ((FongoDBCollection) collection).upsertByIds(Arrays.<DBObject>asList(
+        new BasicDBObject("_id", 1).append("v", 10), new BasicDBObject("_id", 3).append("v", 3)));
+
+    assertEquals(1, replaced);
+    assertEquals(Arrays.<DBObject>asList(new BasicDBObject("_id", 1).append("v", 10), new BasicDBObject("_id", 2).append("v", 2),
+        new BasicDBObject("_id", 3).append("v", 3)), collection.find().sort(new BasicDBObject("_id", 1)).toArray());
+    assertNull(collection.findOne(new BasicDBObject("v", 1)));
+    assertEquals(new BasicDBObject("_id", 1).append("v", 10), collection.findOne(new BasicDBObject("v", 10)));
+  }
+
   @Test
   public void testCountMethod() {
     DBCollection collection = newCollection();
@@ -3,6 +3,7 @@ package com.github.fakemongo.impl;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
@@ -307,6 +308,48 @@ public class ExpressionParserTest {
     ), results);
   }
 
+  @Test
+  public void testInOperatorMatchesNumbersOfAnyType() {
+    DBObject query = new BasicDBObject("a", new BasicDBObject("$in", asList(1, 2L, 3.0, 4.5, Pattern.compile("^f"))));
+    List<DBObject> results = doFilter(
+        query,
+        new BasicDBObject("_id", 1).append("a", 1L),
+        new BasicDBObject("_id", 2).append("a", 2),
+        new BasicDBObject("_id", 3).append("a", 3),
+        new BasicDBObject("_id", 4).append("a", 4.5F),
+        new BasicDBObject("_id", 5).append("a", 4),
+        new BasicDBObject("_id", 6).append("a", "fred"),
+        new BasicDBObject("_id", 7).append("a", "1")
+    );
+    assertEquals(Arrays.<DBObject>asList(
+        new BasicDBObject("_id", 1).append("a", 1L),
+        new BasicDBObject("_id", 2).append("a", 2),
+        new BasicDBObject("_id", 3).append("a", 3),
+        new BasicDBObject("_id", 4).append("a", 4.5F),
+        new BasicDBObject("_id", 6).append("a", "fred")
+    ), results);
+  }
+
+  @Test
+  public void testNinOperatorOnManyValues() {
+    List<Object> values = new ArrayList<Object>();
+    for (int i = 0; i < 10000; i++) {
+      values.add((double) i);
+    }
+    DBObject query = new BasicDBObject("a", new BasicDBObject("$nin", values));
+    List<DBObject> results = doFilter(
+        query,
+        new BasicDBObject("_id", 1).append("a", 9999),
+        new BasicDBObject("_id", 2).append("a", 10000L),
+        new BasicDBObject("_id", 3).append("a", asList(-1, 5)),
+        new BasicDBObject("_id", 4)
+    );
+    assertEquals(Arrays.<DBObject>asList(
+        new BasicDBObject("_id", 2).append("a", 10000L),
+        new BasicDBObject("_id", 4)
+    ), results);
+  }
+
   @Test
   public void testInEmbeddedOperator() {
     DBObject query = new BasicDBObject("a.b", new BasicDBObject("$in", asList(2)));
@@ -962,6 +1005,155 @@ public class ExpressionParserTest {
     ));
   }
 
+  @Test
+  public void testWhereFunction() {
+    assertQuery(new BasicDBObject("$where", "function() { return this.n == 'fred' || this.a > 4; }"), Arrays.<DBObject>asList(
+        new BasicDBObject("n", "fred").append("a", 2),
+        new BasicDBObject("n", "tim").append("a", 5)
+    ));
+  }
+
+  @Test
+  public void testWhereFunctionGlobalsAreLocalToEachDocument() {
+    List<DBObject> results = doFilter(
+        new BasicDBObject("$where", "function() { if (this.n == 'fred') { seen = true; } return typeof seen != 'undefined'; }"),
+        new BasicDBObject("n", "neil"),
+        new BasicDBObject("n", "fred"),
+        new BasicDBObject("n", "ted")
+    );
+    assertEquals(Arrays.<DBObject>asList(new BasicDBObject("n", "fred")), results);
+  }
+
+  @Test
+  public void testWhereOnEmbeddedDocumentsAndArrays() {
+    List<DBObject> results = doFilter(
+        new BasicDBObject("$where", "var first = this.tags[0]; this.author.name == 'william' && first == 'java' && this.tags.length == 2"),
+        new BasicDBObject("author", new BasicDBObject("name", "william")).append("tags", asList("java", "mongo")),
+        new BasicDBObject("author", new BasicDBObject("name", "william")).append("tags", asList("scala", "mongo")),
+        new BasicDBObject("author", new BasicDBObject("name", "jon")).append("tags", asList("java", "mongo"))
+    );
+    assertEquals(Arrays.<DBObject>asList(
+        new BasicDBObject("author", new BasicDBObject("name", "william")).append("tags", asList("java", "mongo"))
+    ), results);
+  }
+
+  @Test
+  public void testSameShapeQueriesReuseCompiledFilter() {
+    ExpressionParser ep = new ExpressionParser();
+    DBObject first = new BasicDBObject("a", new BasicDBObject("$gt", 1)).append("$or", asList(new BasicDBObject("n", "neil"), new BasicDBObject("n", "ted")));
+    DBObject second = new BasicDBObject("a", new BasicDBObject("$gt", 2)).append("$or", asList(new BasicDBObject("n", "stu"), new BasicDBObject("n", "ted")));
+    assertEquals(ep.queryShape(first), ep.queryShape(second));
+
+    DBObject neil = new BasicDBObject("n", "neil").append("a", 2);
+    DBObject ted = new BasicDBObject("n", "ted").append("a", 3);
+    DBObject stu = new BasicDBObject("n", "stu").append("a", 4);
+    Filter firstFilter = ep.buildFilter(first);
+    Filter secondFilter = ep.buildFilter(second);
+    assertTrue(firstFilter.apply(neil));
+    assertTrue(firstFilter.apply(ted));
+    assertFalse(firstFilter.apply(stu));
+    assertFalse(secondFilter.apply(neil));
+    assertTrue(secondFilter.apply(ted));
+    assertTrue(secondFilter.apply(stu));
+  }
+
+  @Test
+  public void testQueryShapeDependsOnOperators() {
+    ExpressionParser ep = new ExpressionParser();
+    assertFalse(ep.queryShape(new BasicDBObject("a", new BasicDBObject("$gt", 1))).equals(ep.queryShape(new BasicDBObject("a", new BasicDBObject("$lt", 1)))));
+    assertFalse(ep.queryShape(new BasicDBObject("a", Pattern.compile("^a"))).equals(ep.queryShape(new BasicDBObject("a", "^a"))));
+    assertEquals(ep.queryShape(new BasicDBObject("a", asList(1, 2))), ep.queryShape(new BasicDBObject("a", 3)));
+  }
+
+  @Test
+  public void testAndFilterEvaluatesCheapestFirst() {
+    CountingFilter expensive = new CountingFilter(true);
+    CountingFilter cheap = new CountingFilter(false);
+    ExpressionParser.AndFilter andFilter = new ExpressionParser.AndFilter();
+    andFilter.addFilter(expensive, ExpressionParser.WHERE_FILTER_COST);
+    andFilter.addFilter(cheap, ExpressionParser.DEFAULT_FILTER_COST);
+
+    assertFalse(andFilter.apply(new BasicDBObject()));
+    assertEquals(1, cheap.count);
+    assertEquals(0, expensive.count);
+  }
+
+  @Test
+  public void testAndFilterAdaptsToPassRate() {
+    CountingFilter alwaysPass = new CountingFilter(true);
+    CountingFilter neverPass = new CountingFilter(false);
+    ExpressionParser.AndFilter andFilter = new ExpressionParser.AndFilter();
+    andFilter.addFilter(alwaysPass);
+    andFilter.addFilter(neverPass);
+
+    for (int i = 0; i < ExpressionParser.AndFilter.ADAPT_EVERY * 4; i++) {
+      assertFalse(andFilter.apply(new BasicDBObject()));
+    }
+    assertEquals(ExpressionParser.AndFilter.ADAPT_EVERY * 4, neverPass.count);
+    assertEquals(ExpressionParser.AndFilter.ADAPT_EVERY - 1, alwaysPass.count);
+  }
+
+  @Test
+  public void testWhereIsNotEvaluatedWhenEqualityRejects() {
+    List<DBObject> results = doFilter(
+        new BasicDBObject("$where", "this.a.b.c == 1").append("n", "fred"),
+        new BasicDBObject("n", "neil"),
+        new BasicDBObject("n", "fred").append("a", new BasicDBObject("b", new BasicDBObject("c", 1)))
+    );
+    assertEquals(Arrays.<DBObject>asList(
+        new BasicDBObject("n", "fred").append("a", new BasicDBObject("b", new BasicDBObject("c", 1)))
+    ), results);
+  }
+
+  @Test
+  public void testGetEmbeddedValueFallsBackOnArrays() {
+    ExpressionParser expressionParser = new ExpressionParser();
+    DBObject dbo = new BasicDBObject("a", new BasicDBObject("b", 1).append("n", null))
+        .append("l", asDbList(new BasicDBObject("b", 2), new BasicDBObject("b", 3)));
+
+    assertEquals(1, expressionParser.getEmbeddedValue(Util.path("a.b"), dbo));
+    assertEquals(null, expressionParser.getEmbeddedValue(Util.path("a.n"), dbo));
+    assertTrue(ExpressionParser.NO_VALUE == expressionParser.getEmbeddedValue(Util.path("a.c"), dbo));
+    assertTrue(ExpressionParser.NO_VALUE == expressionParser.getEmbeddedValue(Util.path("a.b.c"), dbo));
+    assertTrue(ExpressionParser.MULTIPLE_VALUES == expressionParser.getEmbeddedValue(Util.path("l.b"), dbo));
+    assertTrue(ExpressionParser.MULTIPLE_VALUES == expressionParser.getEmbeddedValue(Util.path("l.0.b"), dbo));
+    assertEquals(Arrays.<Object>asList(2, 3), expressionParser.getEmbeddedValues("l.b", dbo));
+    assertEquals(Arrays.<Object>asList(2), expressionParser.getEmbeddedValues("l.0.b", dbo));
+    assertTrue(Util.path("l.0.b") == Util.path("l.0.b"));
+  }
+
+  @Test
+  public void testNotEqualsOnEmbeddedValuesAndArrays() {
+    List<DBObject> results = doFilter(
+        new BasicDBObject("a.b", new BasicDBObject("$ne", 2)),
+        new BasicDBObject("_id", 1).append("a", new BasicDBObject("b", 2)),
+        new BasicDBObject("_id", 2).append("a", new BasicDBObject("b", 3)),
+        new BasicDBObject("_id", 3).append("a", asDbList(new BasicDBObject("b", 3), new BasicDBObject("b", 2))),
+        new BasicDBObject("_id", 4).append("a", asDbList(new BasicDBObject("b", 3), new BasicDBObject("b", 4))),
+        new BasicDBObject("_id", 5)
+    );
+    assertEquals(Arrays.<DBObject>asList(
+        new BasicDBObject("_id", 2).append("a", new BasicDBObject("b", 3)),
+        new BasicDBObject("_id", 4).append("a", asDbList(new BasicDBObject("b", 3), new BasicDBObject("b", 4))),
+        new BasicDBObject("_id", 5)
+    ), results);
+  }
+
+  static class CountingFilter implements Filter {
+    final boolean result;
+    int count;
+
+    CountingFilter(boolean result) {
+      this.result = result;
+    }
+
+    @Override
+    public boolean apply(DBObject o) {
+      count++;
+      return result;
+    }
+  }
+
   private void assertQuery(BasicDBObject query, List<DBObject> expected) {
     List<DBObject> results = doFilter(
         query,